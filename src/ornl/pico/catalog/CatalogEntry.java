@@ -0,0 +1,181 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.catalog;
+
+import java.security.MessageDigest;
+
+import ornl.pico.io.HashAlgorithm;
+
+/**
+ * What the catalog knows about one file. Files that are not Pico files are
+ * recorded too, so they need not be read again until they change; these have
+ * no hash algorithm, an empty hash, and a key length of -1.
+ * <p>
+ * Entries cannot be changed.
+ * 
+ * @author jcarter
+ */
+public final class CatalogEntry {
+
+    /** The absolute, normalized path of the file. */
+    private final String _path;
+
+    /** The modification time of the file, in milliseconds since the epoch. */
+    private final long _modified;
+
+    /** The length of the file, including the header. */
+    private final long _filelength;
+
+    /** The length of the data, which is the length of the unwrapped file. */
+    private final long _datalength;
+
+    /** The length of the key, or -1 if this is not a Pico file. */
+    private final int _keylength;
+
+    /** The algorithm that computed the hash, or {@code null}. */
+    private final HashAlgorithm _algorithm;
+
+    /** The hash of the unencrypted data. This is never handed out. */
+    private final byte[] _hash;
+
+    /**
+     * Make a new entry.
+     * 
+     * @param path The absolute, normalized path of the file.
+     * @param modified The modification time of the file.
+     * @param filelength The length of the file.
+     * @param datalength The length of the data.
+     * @param keylength The length of the key, or -1 if this is not a Pico
+     *            file.
+     * @param algorithm The algorithm that computed the hash, or {@code null}
+     *            if this is not a Pico file.
+     * @param hash The hash, which is kept and not copied.
+     */
+    CatalogEntry(String path, long modified, long filelength, long datalength, int keylength,
+            HashAlgorithm algorithm, byte[] hash) {
+        _path = path;
+        _modified = modified;
+        _filelength = filelength;
+        _datalength = datalength;
+        _keylength = keylength;
+        _algorithm = algorithm;
+        _hash = hash;
+    }
+
+    /**
+     * Get the absolute, normalized path of the file.
+     * 
+     * @return The path.
+     */
+    public String getPath() {
+        return _path;
+    }
+
+    /**
+     * Get the modification time of the file when it was catalogued.
+     * 
+     * @return The time, in milliseconds since the epoch.
+     */
+    public long getModified() {
+        return _modified;
+    }
+
+    /**
+     * Get the length of the file, including the header, when it was
+     * catalogued.
+     * 
+     * @return The length of the file.
+     */
+    public long getFileLength() {
+        return _filelength;
+    }
+
+    /**
+     * Get the length of the data, which is the length of the unwrapped file.
+     * 
+     * @return The length of the data, or zero if this is not a Pico file.
+     */
+    public long getDataLength() {
+        return _datalength;
+    }
+
+    /**
+     * Get the length of the key.
+     * 
+     * @return The length of the key, or -1 if this is not a Pico file.
+     */
+    public int getKeyLength() {
+        return _keylength;
+    }
+
+    /**
+     * Get the algorithm that computed the hash.
+     * 
+     * @return The algorithm, or {@code null} if this is not a Pico file.
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return _algorithm;
+    }
+
+    /**
+     * Get the hash of the unencrypted data.
+     * 
+     * @return A copy of the hash.
+     */
+    public byte[] getHash() {
+        return _hash.clone();
+    }
+
+    /**
+     * Determine whether the hash is the given one, without copying it.
+     * 
+     * @param hash The hash to compare.
+     * @return True if the hashes are the same.
+     */
+    public boolean hashEquals(byte[] hash) {
+        return MessageDigest.isEqual(_hash, hash);
+    }
+
+    /**
+     * Determine whether the file is a Pico file.
+     * 
+     * @return True if the file is a Pico file.
+     */
+    public boolean isPico() {
+        return _keylength >= 0;
+    }
+
+    /**
+     * Get the hash itself, for writing the index.
+     * 
+     * @return The hash, not a copy.
+     */
+    byte[] hash() {
+        return _hash;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{ path: \"").append(_path).append("\", modified: ").append(_modified);
+        builder.append(", file-length: ").append(_filelength);
+        if (isPico()) {
+            builder.append(", data-length: ").append(_datalength);
+            builder.append(", key-size: ").append(_keylength);
+            builder.append(", hash-algorithm: \"").append(_algorithm).append("\", hash: 0x");
+            for (byte byt : _hash) {
+                builder.append(String.format("%02x", byt));
+            } // Add the hash code.
+        }
+        return builder.append(" }").toString();
+    }
+}
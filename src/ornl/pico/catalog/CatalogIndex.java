@@ -0,0 +1,658 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.catalog;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import ornl.pico.PicoException;
+import ornl.pico.io.HashAlgorithm;
+
+/**
+ * A catalog index file, mapped into memory for queries. The index holds a
+ * fixed-length record per file, sorted by hash, followed by the paths. A
+ * lookup by hash is a binary search of the mapped records, and other queries
+ * are a single pass over them; paths are decoded only for the entries
+ * returned. The index is never changed once written, so it can be shared by
+ * any number of threads.
+ * <p>
+ * Close the index when done with it, so the file is unmapped at once rather
+ * than when the mapping is garbage collected; until then the file cannot be
+ * replaced on some platforms. It must not be closed while another thread is
+ * querying it, and it cannot be used after.
+ * <p>
+ * A single mapped buffer can cover at most 2 GB, so the index is mapped in
+ * segments of {@value #DEFAULT_SEGMENT} bytes, which can be changed with the
+ * system property {@code ornl.pico.catalog.segment}. Each segment overlaps
+ * the next by a few bytes, so any single value can be read from one segment.
+ * <p>
+ * The file holds the following, in {@link ByteOrder#BIG_ENDIAN} order.
+ * <table>
+ * <tr><th>Item</th><th>Length</th></tr>
+ * <tr><td>Magic string, {@code PCAT}</td><td>4</td></tr>
+ * <tr><td>Version</td><td>2</td></tr>
+ * <tr><td>Unused</td><td>2</td></tr>
+ * <tr><td>Number of records</td><td>4</td></tr>
+ * <tr><td>Unused</td><td>4</td></tr>
+ * <tr><td>Records</td><td>{@value #RECORD_LENGTH} each</td></tr>
+ * <tr><td>Paths, in UTF-8</td><td>to the end of the file</td></tr>
+ * </table>
+ * Each record holds the following.
+ * <table>
+ * <tr><th>Item</th><th>Length</th></tr>
+ * <tr><td>Hash, padded with zeros</td><td>{@value #HASH_SLOT}</td></tr>
+ * <tr><td>Length of the hash</td><td>1</td></tr>
+ * <tr><td>Hash algorithm identifier, or -1</td><td>1</td></tr>
+ * <tr><td>Key length, or -1 if not a Pico file</td><td>2</td></tr>
+ * <tr><td>Length of the path</td><td>4</td></tr>
+ * <tr><td>Modification time</td><td>8</td></tr>
+ * <tr><td>File length</td><td>8</td></tr>
+ * <tr><td>Data length</td><td>8</td></tr>
+ * <tr><td>Position of the path in the file</td><td>8</td></tr>
+ * </table>
+ * The records are sorted by the padded hash as unsigned bytes, then by the
+ * length of the hash, then by path.
+ * 
+ * @author jcarter
+ */
+public final class CatalogIndex implements Closeable {
+
+    /** The magic string at the start of an index. */
+    static final byte[] MAGIC = { 'P', 'C', 'A', 'T' };
+
+    /** The version of the index format. */
+    static final short VERSION = 1;
+
+    /** The length of the fixed part at the start of an index. */
+    static final int HEADER_LENGTH = 16;
+
+    /** The space for the hash in a record; long enough for any algorithm. */
+    static final int HASH_SLOT = 32;
+
+    /** The length of a record. */
+    static final int RECORD_LENGTH = 72;
+
+    // Positions of the fields in a record.
+    private static final int HASHLEN_AT = HASH_SLOT;
+    private static final int ALGORITHM_AT = HASHLEN_AT + 1;
+    private static final int KEYLEN_AT = ALGORITHM_AT + 1;
+    private static final int PATHLEN_AT = KEYLEN_AT + 2;
+    private static final int MODIFIED_AT = PATHLEN_AT + 4;
+    private static final int FILELEN_AT = MODIFIED_AT + 8;
+    private static final int DATALEN_AT = FILELEN_AT + 8;
+    private static final int PATH_AT = DATALEN_AT + 8;
+
+    /** The default size of a segment of the mapping. */
+    static final int DEFAULT_SEGMENT = 1024 * 1024 * 1024;
+
+    /** The bytes by which segments overlap: the longest value read. */
+    private static final int OVERLAP = 8;
+
+    /** The order in which records are written. */
+    private static final Comparator<CatalogEntry> ORDER = new Comparator<CatalogEntry>() {
+        @Override
+        public int compare(CatalogEntry first, CatalogEntry second) {
+            int result = _compareHash(first.hash(), second.hash());
+            return (result != 0) ? result : first.getPath().compareTo(second.getPath());
+        }
+    };
+
+    /** The mapped segments of the index, in big-endian order. */
+    private final MappedByteBuffer[] _segments;
+
+    /** The size of a segment, not counting the overlap. */
+    private final long _segment;
+
+    /** The number of records. */
+    private int _count = 0;
+
+    /** Whether the index has been closed. */
+    private volatile boolean _closed = false;
+
+    /**
+     * Make a new index over a mapping.
+     * 
+     * @param segments The mapped segments, in big-endian order.
+     * @param segment The size of a segment, not counting the overlap.
+     */
+    private CatalogIndex(MappedByteBuffer[] segments, long segment) {
+        _segments = segments;
+        _segment = segment;
+    }
+
+    /**
+     * Map an index file into memory.
+     * 
+     * @param path The index file.
+     * @return The index.
+     * @throws IOException The file cannot be read, or is not an index.
+     */
+    public static CatalogIndex open(Path path) throws IOException {
+        int segment = Integer.getInteger("ornl.pico.catalog.segment", DEFAULT_SEGMENT);
+        if (segment < 1 || segment > Integer.MAX_VALUE - OVERLAP) {
+            throw new IllegalArgumentException("Incorrect catalog segment size: " + segment);
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long size;
+        MappedByteBuffer[] segments;
+        try {
+            size = channel.size();
+            segments = new MappedByteBuffer[(int) Math.max(1L, (size + segment - 1) / segment)];
+            for (int index = 0; index < segments.length; index++) {
+                long start = (long) index * segment;
+                long length = Math.max(0L, Math.min(segment + OVERLAP, size - start));
+                segments[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                segments[index].order(ByteOrder.BIG_ENDIAN);
+            } // Map all segments.
+        } finally {
+            // The mapping remains valid after the channel is closed.
+            channel.close();
+        }
+        CatalogIndex index = new CatalogIndex(segments, segment);
+        try {
+            index._check(path, size);
+        } catch (IOException ioe) {
+            index.close();
+            throw ioe;
+        }
+        return index;
+    }
+
+    /**
+     * Check the fixed part at the start of a newly mapped index, and note the
+     * number of records.
+     * 
+     * @param path The index file.
+     * @param size The length of the file.
+     * @throws IOException The file is not an index.
+     */
+    private void _check(Path path, long size) throws IOException {
+        if (size < HEADER_LENGTH) {
+            throw new IOException("Not a catalog index: " + path);
+        }
+        for (int offset = 0; offset < MAGIC.length; offset++) {
+            if (_get(offset) != MAGIC[offset]) {
+                throw new IOException("Not a catalog index: " + path);
+            }
+        } // Check the magic string.
+        if (_getShort(MAGIC.length) != VERSION) {
+            throw new IOException("Unknown catalog index version " + _getShort(MAGIC.length)
+                    + ": " + path);
+        }
+        int count = _getInt(MAGIC.length + 4);
+        if (count < 0 || HEADER_LENGTH + (long) count * RECORD_LENGTH > size) {
+            throw new IOException("Damaged catalog index: " + path);
+        }
+        _count = count;
+    }
+
+    /**
+     * Unmap the index. Closing it again has no effect.
+     */
+    @Override
+    public synchronized void close() {
+        if (_closed) {
+            return;
+        }
+        _closed = true;
+        for (int index = 0; index < _segments.length; index++) {
+            _unmap(_segments[index]);
+            _segments[index] = null;
+        } // Unmap all segments.
+    }
+
+    /**
+     * Unmap a buffer now, if the platform allows it. Otherwise it is unmapped
+     * when it is garbage collected.
+     * 
+     * @param map The buffer, which must not be used after this.
+     */
+    private static void _unmap(MappedByteBuffer map) {
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            type.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), map);
+        } catch (ReflectiveOperationException roe) {
+            // Not available; leave it to the garbage collector.
+        } catch (RuntimeException re) {
+            // Not allowed; leave it to the garbage collector.
+        }
+    }
+
+    /**
+     * Write an index file. The index is written to a temporary file beside
+     * it, which then replaces it, so an index being read is never seen half
+     * written.
+     * 
+     * @param path The index file.
+     * @param entries The entries.
+     * @throws IOException The file cannot be written.
+     */
+    static void write(Path path, Collection<CatalogEntry> entries) throws IOException {
+        CatalogEntry[] sorted = entries.toArray(new CatalogEntry[entries.size()]);
+        Arrays.sort(sorted, ORDER);
+        byte[][] paths = new byte[sorted.length][];
+        for (int index = 0; index < sorted.length; index++) {
+            paths[index] = sorted[index].getPath().getBytes(StandardCharsets.UTF_8);
+        } // Encode all paths.
+
+        Path absolute = path.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(),
+                ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp), 64 * 1024));
+            try {
+                out.write(MAGIC);
+                out.writeShort(VERSION);
+                out.writeShort(0);
+                out.writeInt(sorted.length);
+                out.writeInt(0);
+                long here = HEADER_LENGTH + (long) sorted.length * RECORD_LENGTH;
+                byte[] slot = new byte[HASH_SLOT];
+                for (int index = 0; index < sorted.length; index++) {
+                    CatalogEntry entry = sorted[index];
+                    byte[] hash = entry.hash();
+                    Arrays.fill(slot, (byte) 0);
+                    System.arraycopy(hash, 0, slot, 0, hash.length);
+                    out.write(slot);
+                    out.writeByte(hash.length);
+                    HashAlgorithm algorithm = entry.getHashAlgorithm();
+                    out.writeByte((algorithm == null) ? -1 : algorithm.getId());
+                    out.writeShort(entry.getKeyLength());
+                    out.writeInt(paths[index].length);
+                    out.writeLong(entry.getModified());
+                    out.writeLong(entry.getFileLength());
+                    out.writeLong(entry.getDataLength());
+                    out.writeLong(here);
+                    here += paths[index].length;
+                } // Write all records.
+                for (byte[] bytes : paths) {
+                    out.write(bytes);
+                } // Write all paths.
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // ======================================================================
+    // Queries.
+    // ======================================================================
+
+    /**
+     * Get the number of entries, including those for files that are not Pico
+     * files.
+     * 
+     * @return The number of entries.
+     */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * Get an entry. Entries are in order by hash.
+     * 
+     * @param index The index of the entry.
+     * @return The entry.
+     * @throws IOException The entry is damaged.
+     */
+    public CatalogEntry get(int index) throws IOException {
+        if (index < 0 || index >= _count) {
+            throw new IndexOutOfBoundsException("No entry " + index + ".");
+        }
+        long at = _record(index);
+        int keylength = _getShort(at + KEYLEN_AT);
+        HashAlgorithm algorithm = null;
+        if (keylength >= 0) {
+            try {
+                algorithm = HashAlgorithm.forId(_get(at + ALGORITHM_AT));
+            } catch (PicoException pe) {
+                throw new IOException("Damaged catalog entry " + index + ".", pe);
+            }
+        }
+        byte[] hash = new byte[_get(at + HASHLEN_AT)];
+        _copy(at, hash);
+        return new CatalogEntry(_path(at), _getLong(at + MODIFIED_AT),
+                _getLong(at + FILELEN_AT), _getLong(at + DATALEN_AT), keylength, algorithm,
+                hash);
+    }
+
+    /**
+     * Find the Pico files with a given hash. This is a binary search of the
+     * index.
+     * 
+     * @param hash The hash.
+     * @return The entries, in order by path.
+     * @throws IOException An entry is damaged.
+     */
+    public List<CatalogEntry> findByHash(byte[] hash) throws IOException {
+        List<CatalogEntry> found = new ArrayList<CatalogEntry>();
+        if (hash.length > HASH_SLOT) {
+            return found;
+        }
+        // Find the first record not less than the hash.
+        int low = 0;
+        int high = _count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (_compare(middle, hash) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        } // Search for the first match.
+        for (int index = low; index < _count && _compare(index, hash) == 0; index++) {
+            if (_keylength(index) >= 0) {
+                found.add(get(index));
+            }
+        } // Collect all matches.
+        return found;
+    }
+
+    /**
+     * Find the Pico files whose key has a given length.
+     * 
+     * @param length The length of the key.
+     * @return The entries, in order by hash.
+     * @throws IOException An entry is damaged.
+     */
+    public List<CatalogEntry> findByKeyLength(int length) throws IOException {
+        List<CatalogEntry> found = new ArrayList<CatalogEntry>();
+        if (length < 0) {
+            return found;
+        }
+        for (int index = 0; index < _count; index++) {
+            if (_keylength(index) == length) {
+                found.add(get(index));
+            }
+        } // Check all records.
+        return found;
+    }
+
+    /**
+     * Find the groups of Pico files that have the same hash, and so hold the
+     * same data. Files whose hash is empty or all zero, because they keep no
+     * hash or it was never written, are not grouped.
+     * 
+     * @return The groups, each of at least two entries.
+     * @throws IOException An entry is damaged.
+     */
+    public List<List<CatalogEntry>> findDuplicates() throws IOException {
+        List<List<CatalogEntry>> groups = new ArrayList<List<CatalogEntry>>();
+        int index = 0;
+        while (index < _count) {
+            int end = index + 1;
+            while (end < _count && _sameHash(index, end)) {
+                end++;
+            } // Find the end of the run.
+            if (end - index > 1 && _keylength(index) >= 0 && !_zeroHash(index)) {
+                List<CatalogEntry> group = new ArrayList<CatalogEntry>(end - index);
+                for (int member = index; member < end; member++) {
+                    group.add(get(member));
+                } // Collect the group.
+                groups.add(group);
+            }
+            index = end;
+        } // Check all runs.
+        return groups;
+    }
+
+    /**
+     * Get the total length of the data in Pico files, which is the total
+     * length of the unwrapped files.
+     * 
+     * @param prefix Only count files whose path starts with this, or
+     *            {@code null} to count all files.
+     * @return The total length of the data.
+     */
+    public long totalDataLength(String prefix) {
+        byte[] bytes = (prefix == null) ? null : prefix.getBytes(StandardCharsets.UTF_8);
+        long total = 0L;
+        for (int index = 0; index < _count; index++) {
+            long at = _record(index);
+            if (_getShort(at + KEYLEN_AT) >= 0 && (bytes == null || _startsWith(at, bytes))) {
+                total += _getLong(at + DATALEN_AT);
+            }
+        } // Add all records.
+        return total;
+    }
+
+    // ======================================================================
+    // Internal methods.
+    // ======================================================================
+
+    /**
+     * Compare two hashes in index order.
+     * 
+     * @param first The first hash.
+     * @param second The second hash.
+     * @return Negative, zero, or positive as the first is before, the same
+     *         as, or after the second.
+     */
+    private static int _compareHash(byte[] first, byte[] second) {
+        for (int index = 0; index < HASH_SLOT; index++) {
+            int left = (index < first.length) ? first[index] & 0xff : 0;
+            int right = (index < second.length) ? second[index] & 0xff : 0;
+            if (left != right) {
+                return left - right;
+            }
+        } // Compare the padded hashes.
+        return first.length - second.length;
+    }
+
+    /**
+     * Compare the hash of a record with a hash, in index order.
+     * 
+     * @param index The index of the record.
+     * @param hash The hash, of at most {@value #HASH_SLOT} bytes.
+     * @return Negative, zero, or positive as the record is before, the same
+     *         as, or after the hash.
+     */
+    private int _compare(int index, byte[] hash) {
+        long at = _record(index);
+        for (int offset = 0; offset < HASH_SLOT; offset++) {
+            int left = _get(at + offset) & 0xff;
+            int right = (offset < hash.length) ? hash[offset] & 0xff : 0;
+            if (left != right) {
+                return left - right;
+            }
+        } // Compare the padded hashes.
+        return _get(at + HASHLEN_AT) - hash.length;
+    }
+
+    /**
+     * Determine whether two records have the same hash.
+     * 
+     * @param first The index of the first record.
+     * @param second The index of the second record.
+     * @return True if the hashes are the same.
+     */
+    private boolean _sameHash(int first, int second) {
+        long left = _record(first);
+        long right = _record(second);
+        for (int offset = 0; offset <= HASHLEN_AT; offset++) {
+            if (_get(left + offset) != _get(right + offset)) {
+                return false;
+            }
+        } // Compare the hashes and their lengths.
+        return true;
+    }
+
+    /**
+     * Determine whether the hash of a record is empty or all zero.
+     * 
+     * @param index The index of the record.
+     * @return True if the hash is empty or all zero.
+     */
+    private boolean _zeroHash(int index) {
+        long at = _record(index);
+        for (int offset = 0; offset < HASH_SLOT; offset++) {
+            if (_get(at + offset) != 0) {
+                return false;
+            }
+        } // Check the padded hash.
+        return true;
+    }
+
+    /**
+     * Get the key length of a record.
+     * 
+     * @param index The index of the record.
+     * @return The key length, or -1 if the file is not a Pico file.
+     */
+    private int _keylength(int index) {
+        return _getShort(_record(index) + KEYLEN_AT);
+    }
+
+    /**
+     * Decode the path of a record.
+     * 
+     * @param at The position of the record.
+     * @return The path.
+     */
+    private String _path(long at) {
+        byte[] bytes = new byte[_getInt(at + PATHLEN_AT)];
+        _copy(_getLong(at + PATH_AT), bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Determine whether the path of a record starts with the given bytes,
+     * without decoding it.
+     * 
+     * @param at The position of the record.
+     * @param prefix The prefix, in UTF-8.
+     * @return True if the path starts with the prefix.
+     */
+    private boolean _startsWith(long at, byte[] prefix) {
+        if (_getInt(at + PATHLEN_AT) < prefix.length) {
+            return false;
+        }
+        long start = _getLong(at + PATH_AT);
+        for (int offset = 0; offset < prefix.length; offset++) {
+            if (_get(start + offset) != prefix[offset]) {
+                return false;
+            }
+        } // Compare the prefix.
+        return true;
+    }
+
+    /**
+     * Get the position of a record.
+     * 
+     * @param index The index of the record.
+     * @return The position in the file.
+     */
+    private static long _record(int index) {
+        return HEADER_LENGTH + (long) index * RECORD_LENGTH;
+    }
+
+    /**
+     * Get the segment that holds a value, from the value's position in the
+     * file up to the overlap.
+     * 
+     * @param at The position in the file.
+     * @return The segment.
+     */
+    private MappedByteBuffer _segment(long at) {
+        if (_closed) {
+            throw new IllegalStateException("The catalog index is closed.");
+        }
+        return _segments[(int) (at / _segment)];
+    }
+
+    /**
+     * Get a byte.
+     * 
+     * @param at The position in the file.
+     * @return The byte.
+     */
+    private byte _get(long at) {
+        return _segment(at).get((int) (at % _segment));
+    }
+
+    /**
+     * Get a short.
+     * 
+     * @param at The position in the file.
+     * @return The short.
+     */
+    private short _getShort(long at) {
+        return _segment(at).getShort((int) (at % _segment));
+    }
+
+    /**
+     * Get an int.
+     * 
+     * @param at The position in the file.
+     * @return The int.
+     */
+    private int _getInt(long at) {
+        return _segment(at).getInt((int) (at % _segment));
+    }
+
+    /**
+     * Get a long.
+     * 
+     * @param at The position in the file.
+     * @return The long.
+     */
+    private long _getLong(long at) {
+        return _segment(at).getLong((int) (at % _segment));
+    }
+
+    /**
+     * Copy bytes out of the index, across segments if need be.
+     * 
+     * @param at The position of the first byte in the file.
+     * @param dst The array to fill.
+     */
+    private void _copy(long at, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            long here = at + done;
+            ByteBuffer view = _segment(here).duplicate();
+            view.position((int) (here % _segment));
+            int length = (int) Math.min(dst.length - done, _segment - view.position());
+            view.get(dst, done, length);
+            done += length;
+        } // Copy from each segment.
+    }
+}
@@ -0,0 +1,277 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.catalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import ornl.pico.PicoException;
+import ornl.pico.io.PicoHeader;
+import ornl.pico.io.PicoHeaderView;
+
+/**
+ * Keep a catalog index of the Pico files in one or more trees. Each update
+ * walks a tree and reads the header of each file that is new, or whose
+ * modification time or length has changed since the last update, using
+ * {@link PicoHeader#probe(Path)}. Files that have not changed are not opened.
+ * Files that are gone are dropped, and a new index replaces the old.
+ * <p>
+ * A file changed without changing its length or modification time is not
+ * noticed. The resolution of the modification time depends on the file
+ * system.
+ * <p>
+ * Use {@link #open()} to query the index, and close the index when done.
+ * 
+ * @author jcarter
+ */
+public class PicoCatalog {
+
+    /** The counts from an update. */
+    public static class Counts {
+        /** The number of files found. */
+        int scanned = 0;
+
+        /** The number of files new to the catalog. */
+        int added = 0;
+
+        /** The number of files that changed. */
+        int changed = 0;
+
+        /** The number of files no longer found. */
+        int removed = 0;
+
+        /** The number of files that could not be read. */
+        int failed = 0;
+
+        /**
+         * Get the number of files found.
+         * 
+         * @return The number of files found.
+         */
+        public int getScanned() {
+            return scanned;
+        }
+
+        /**
+         * Get the number of files new to the catalog.
+         * 
+         * @return The number of new files.
+         */
+        public int getAdded() {
+            return added;
+        }
+
+        /**
+         * Get the number of files whose modification time or length changed.
+         * 
+         * @return The number of changed files.
+         */
+        public int getChanged() {
+            return changed;
+        }
+
+        /**
+         * Get the number of files that were in the catalog, but were not
+         * found, or could no longer be read.
+         * 
+         * @return The number of removed files.
+         */
+        public int getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Get the number of files that could not be read.
+         * 
+         * @return The number of files that could not be read.
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d scanned, %d added, %d changed, %d removed, %d failed",
+                    scanned, added, changed, removed, failed);
+        }
+    }
+
+    /** The index file. */
+    private final Path _index;
+
+    /**
+     * Make a catalog kept in the given index file. The file is not read or
+     * written until the catalog is updated or opened.
+     * 
+     * @param index The index file.
+     */
+    public PicoCatalog(Path index) {
+        if (index == null) {
+            throw new NullPointerException("The index is null.");
+        }
+        _index = index.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Get the index file.
+     * 
+     * @return The index file.
+     */
+    public Path getIndex() {
+        return _index;
+    }
+
+    /**
+     * Map the index for queries. If the index has not been written yet, an
+     * empty one is written first. The caller must close the index, or a later
+     * update may not be able to replace it.
+     * 
+     * @return The index.
+     * @throws IOException The index cannot be read or written.
+     */
+    public CatalogIndex open() throws IOException {
+        if (!Files.exists(_index)) {
+            CatalogIndex.write(_index, new HashSet<CatalogEntry>());
+        }
+        return CatalogIndex.open(_index);
+    }
+
+    /**
+     * Bring the catalog up to date with a tree, and write the new index.
+     * Entries for files outside the tree are kept as they are. Symbolic links
+     * are not followed.
+     * 
+     * @param root The root of the tree, or a single file.
+     * @return The counts of what was done.
+     * @throws IOException The tree cannot be walked, or the index cannot be
+     *             read or written.
+     */
+    public Counts update(Path root) throws IOException {
+        final Map<String, CatalogEntry> entries = new HashMap<String, CatalogEntry>();
+        if (Files.exists(_index)) {
+            // Copy the entries out, and unmap the old index so it can be
+            // replaced.
+            CatalogIndex old = CatalogIndex.open(_index);
+            try {
+                for (int index = 0; index < old.size(); index++) {
+                    CatalogEntry entry = old.get(index);
+                    entries.put(entry.getPath(), entry);
+                } // Load all entries.
+            } finally {
+                old.close();
+            }
+        }
+
+        // Walk the tree, probing new and changed files.
+        final Counts counts = new Counts();
+        final Set<String> seen = new HashSet<String>();
+        Path top = root.toAbsolutePath().normalize();
+        Files.walkFileTree(top, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile() || _isIndex(file)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                counts.scanned++;
+                String path = file.toString();
+                long modified = attrs.lastModifiedTime().toMillis();
+                CatalogEntry old = entries.get(path);
+                if (old != null && old.getModified() == modified
+                        && old.getFileLength() == attrs.size()) {
+                    seen.add(path);
+                    return FileVisitResult.CONTINUE;
+                }
+                CatalogEntry entry = _probe(file, path, modified, attrs.size());
+                if (entry == null) {
+                    counts.failed++;
+                    return FileVisitResult.CONTINUE;
+                }
+                entries.put(path, entry);
+                seen.add(path);
+                if (old == null) {
+                    counts.added++;
+                } else {
+                    counts.changed++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException ioe) {
+                counts.failed++;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Drop the entries in the tree for files that were not found.
+        String prefix = top.toString();
+        String dirprefix = prefix.endsWith(File.separator) ? prefix : prefix + File.separator;
+        Iterator<String> paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            String path = paths.next();
+            if ((path.equals(prefix) || path.startsWith(dirprefix)) && !seen.contains(path)) {
+                paths.remove();
+                counts.removed++;
+            }
+        } // Check all entries.
+
+        CatalogIndex.write(_index, entries.values());
+        return counts;
+    }
+
+    /**
+     * Determine whether a file is the index, or one of its temporary files.
+     * 
+     * @param file The file.
+     * @return True if the file belongs to the index.
+     */
+    private boolean _isIndex(Path file) {
+        return file.equals(_index)
+                || (file.getParent() != null && file.getParent().equals(_index.getParent())
+                        && file.getFileName().toString()
+                                .startsWith(_index.getFileName().toString())
+                        && file.getFileName().toString().endsWith(".tmp"));
+    }
+
+    /**
+     * Read the header of a file, and make its entry.
+     * 
+     * @param file The file.
+     * @param path The absolute, normalized path of the file.
+     * @param modified The modification time of the file.
+     * @param length The length of the file.
+     * @return The entry, or {@code null} if the file cannot be read.
+     */
+    private static CatalogEntry _probe(Path file, String path, long modified, long length) {
+        try {
+            PicoHeaderView view = PicoHeader.probe(file);
+            return new CatalogEntry(path, modified, length,
+                    Math.max(0L, length - view.getOffset()), view.getKeyLength(),
+                    view.getHashAlgorithm(), view.getHash());
+        } catch (PicoException pe) {
+            // Not a Pico file. Record it anyway, so it is not read again.
+            return new CatalogEntry(path, modified, length, 0L, -1, null, new byte[0]);
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+}
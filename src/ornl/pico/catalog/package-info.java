@@ -0,0 +1,24 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+/**
+ * A persistent catalog of the headers of a tree of Pico files.  The catalog
+ * records the path, modification time, length, hash, and key length of each
+ * file in a compact index file, so questions such as "which files have this
+ * hash" or "how much data is under this directory" can be answered without
+ * opening every file.
+ * <p>
+ * Use {@link ornl.pico.catalog.PicoCatalog} to bring the index up to date
+ * with a tree; only files whose modification time or length have changed are
+ * read again.  Use {@link ornl.pico.catalog.CatalogIndex} to query the index,
+ * which is memory mapped and sorted by hash.
+ */
+package ornl.pico.catalog;
@@ -0,0 +1,229 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.catalog.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.catalog.CatalogEntry;
+import ornl.pico.catalog.CatalogIndex;
+import ornl.pico.catalog.PicoCatalog;
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Catalog a tree of Pico files, change the tree, and check that updates only
+ * read what changed and that the queries see the changes.
+ * 
+ * @author jcarter
+ */
+public class CatalogTest {
+
+	/** Source of random data. */
+	private Random rand = new Random(83L);
+
+	private Path tmpdir;
+
+	@Before
+	public void setup() throws Exception {
+		tmpdir = Files.createTempDirectory("catalog");
+	}
+
+	@After
+	public void teardown() {
+		delete(tmpdir.toFile());
+	}
+
+	@Test
+	public void updateTest() throws Exception {
+		Path tree = Files.createDirectories(tmpdir.resolve("tree/sub"));
+		byte[] shared = new byte[5000];
+		rand.nextBytes(shared);
+		wrap(tree.resolve("a.pico"), shared, 4);
+		wrap(tree.resolve("b.pico"), shared, 8);
+		byte[] other = new byte[700];
+		rand.nextBytes(other);
+		wrap(tree.getParent().resolve("c.pico"), other, 8);
+		Files.write(tree.resolve("plain.txt"), "Not wrapped.".getBytes("UTF-8"));
+
+		// The index lives in the tree, and must not catalogue itself.
+		PicoCatalog catalog = new PicoCatalog(tmpdir.resolve("tree/catalog.idx"));
+		PicoCatalog.Counts counts = catalog.update(tmpdir);
+		assertEquals(4, counts.getScanned());
+		assertEquals(4, counts.getAdded());
+		CatalogIndex index = catalog.open();
+		assertEquals(4, index.size());
+
+		byte[] hash = MessageDigest.getInstance(PicoStructure.HASH).digest(shared);
+		List<CatalogEntry> found = index.findByHash(hash);
+		assertEquals(2, found.size());
+		assertTrue(found.get(0).getPath().endsWith("a.pico"));
+		assertTrue(found.get(1).getPath().endsWith("b.pico"));
+		assertArrayEquals(hash, found.get(0).getHash());
+		assertEquals(shared.length, found.get(0).getDataLength());
+		assertEquals(1, index.findDuplicates().size());
+		assertEquals(2, index.findByKeyLength(8).size());
+		assertEquals(0, index.findByHash(new byte[16]).size());
+		assertEquals(2 * shared.length + other.length, index.totalDataLength(null));
+		assertEquals(2 * shared.length, index.totalDataLength(tree.toString()));
+		index.close();
+
+		// Nothing has changed, so nothing is read.
+		counts = catalog.update(tmpdir);
+		assertEquals(4, counts.getScanned());
+		assertEquals(0, counts.getAdded() + counts.getChanged() + counts.getRemoved());
+
+		// Change one file, and remove another.
+		Path changed = tree.resolve("b.pico");
+		wrap(changed, other, 8);
+		Files.setLastModifiedTime(changed, FileTime.fromMillis(System.currentTimeMillis() + 5000L));
+		Files.delete(tree.getParent().resolve("c.pico"));
+		counts = catalog.update(tree);
+		assertEquals(1, counts.getChanged());
+		assertEquals(0, counts.getRemoved());
+		counts = catalog.update(tmpdir);
+		assertEquals(0, counts.getChanged());
+		assertEquals(1, counts.getRemoved());
+
+		index = catalog.open();
+		assertEquals(3, index.size());
+		assertEquals(1, index.findByHash(hash).size());
+		assertTrue(index.findDuplicates().isEmpty());
+		assertEquals(shared.length + other.length, index.totalDataLength(null));
+		assertFalse(index.findByHash(MessageDigest.getInstance(PicoStructure.HASH)
+				.digest(other)).isEmpty());
+		index.close();
+		index.close();
+		try {
+			index.get(0);
+			fail("A closed index was read.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void damagedTest() throws Exception {
+		// A Pico file whose offset to the data points inside the key.
+		Path damaged = tmpdir.resolve("damaged.pico");
+		wrap(damaged, new byte[500], 16);
+		RandomAccessFile raf = new RandomAccessFile(damaged.toFile(), "rw");
+		raf.seek(6L);
+		raf.writeInt(30);
+		raf.close();
+
+		// It is recorded as a file that is not a Pico file.
+		PicoCatalog catalog = new PicoCatalog(tmpdir.resolve("catalog.idx"));
+		PicoCatalog.Counts counts = catalog.update(damaged);
+		assertEquals(1, counts.getAdded());
+		assertEquals(0, counts.getFailed());
+		CatalogIndex index = catalog.open();
+		assertEquals(1, index.size());
+		assertEquals(-1, index.get(0).getKeyLength());
+		assertEquals(0L, index.totalDataLength(null));
+		index.close();
+	}
+
+	@Test
+	public void segmentTest() throws Exception {
+		Path tree = Files.createDirectories(tmpdir.resolve("tree"));
+		byte[] shared = new byte[300];
+		rand.nextBytes(shared);
+		for (int index = 0; index < 40; index++) {
+			// Long names make the paths cross segments.
+			StringBuilder name = new StringBuilder("file" + index);
+			for (int pad = 0; pad < index % 7 * 20; pad++) {
+				name.append('x');
+			}
+			byte[] data = shared;
+			if (index % 3 != 0) {
+				data = new byte[100 + index];
+				rand.nextBytes(data);
+			}
+			wrap(tree.resolve(name.append(".pico").toString()), data, 1 + index % 5);
+		} // Wrap the files.
+		PicoCatalog catalog = new PicoCatalog(tmpdir.resolve("catalog.idx"));
+		catalog.update(tree);
+		CatalogIndex whole = catalog.open();
+
+		// Small segments, which records and paths straddle, give the same answers.
+		for (int segment : new int[] { 1, 100, 4099 }) {
+			System.setProperty("ornl.pico.catalog.segment", Integer.toString(segment));
+			CatalogIndex index;
+			try {
+				index = catalog.open();
+			} finally {
+				System.clearProperty("ornl.pico.catalog.segment");
+			}
+			assertEquals(whole.size(), index.size());
+			for (int entry = 0; entry < whole.size(); entry++) {
+				CatalogEntry expected = whole.get(entry);
+				CatalogEntry actual = index.get(entry);
+				assertEquals(expected.getPath(), actual.getPath());
+				assertArrayEquals(expected.getHash(), actual.getHash());
+				assertEquals(expected.getKeyLength(), actual.getKeyLength());
+				assertEquals(expected.getDataLength(), actual.getDataLength());
+				assertEquals(whole.findByHash(expected.getHash()).size(),
+						index.findByHash(actual.getHash()).size());
+			} // Compare all entries.
+			assertEquals(1, index.findDuplicates().size());
+			assertEquals(14, index.findDuplicates().get(0).size());
+			assertEquals(whole.totalDataLength(null), index.totalDataLength(null));
+			String prefix = tree.resolve("file1").toString();
+			assertEquals(whole.totalDataLength(prefix), index.totalDataLength(prefix));
+			index.close();
+		} // Try each segment size.
+		whole.close();
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 */
+	static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Wrap data in a Pico file with a random key of the given length.
+	 */
+	private void wrap(Path path, byte[] data, int keylength) throws Exception {
+		byte[] key = new byte[keylength];
+		rand.nextBytes(key);
+		key[0] |= 1;
+		PicoFile pf = PicoFile.create(new File(path.toString()), key);
+		pf.write(ByteBuffer.wrap(data));
+		pf.close();
+	}
+}
@@ -0,0 +1,100 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+/**
+ * Combine CRC-32C values. Given the CRC of two runs of bytes, and the length
+ * of the second, this finds the CRC of both runs together without looking at
+ * the bytes. This is the method used by zlib: appending a byte is a linear
+ * operator on the CRC, so appending the second run's length of zeros is found
+ * by repeatedly squaring the operator for one zero bit.
+ * 
+ * @author jcarter
+ */
+final class CrcCombine {
+
+    /** The reversed CRC-32C polynomial. */
+    private static final int POLY = 0x82f63b78;
+
+    /** This class is not instantiated. */
+    private CrcCombine() {
+    }
+
+    /**
+     * Find the CRC of two runs of bytes from the CRC of each.
+     * 
+     * @param first The CRC of the first run.
+     * @param second The CRC of the second run.
+     * @param length The length of the second run.
+     * @return The CRC of both runs.
+     */
+    static int combine(int first, int second, long length) {
+        if (length <= 0) {
+            return first;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        odd[0] = POLY;
+        int row = 1;
+        for (int index = 1; index < 32; index++) {
+            odd[index] = row;
+            row <<= 1;
+        } // Make the operator for one zero bit.
+        _square(even, odd);
+        _square(odd, even);
+        do {
+            _square(even, odd);
+            if ((length & 1) != 0) {
+                first = _times(even, first);
+            }
+            length >>>= 1;
+            if (length == 0) {
+                break;
+            }
+            _square(odd, even);
+            if ((length & 1) != 0) {
+                first = _times(odd, first);
+            }
+            length >>>= 1;
+        } while (length != 0); // Apply the zeros.
+        return first ^ second;
+    }
+
+    /**
+     * Multiply a vector by a matrix over GF(2).
+     * 
+     * @param matrix The matrix, one column per bit.
+     * @param vector The vector.
+     * @return The product.
+     */
+    private static int _times(int[] matrix, int vector) {
+        int sum = 0;
+        for (int index = 0; vector != 0; index++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[index];
+            }
+        } // Add the columns for each set bit.
+        return sum;
+    }
+
+    /**
+     * Square a matrix over GF(2).
+     * 
+     * @param square The matrix to get the square.
+     * @param matrix The matrix.
+     */
+    private static void _square(int[] square, int[] matrix) {
+        for (int index = 0; index < 32; index++) {
+            square[index] = _times(matrix, matrix[index]);
+        } // Square each column.
+    }
+}
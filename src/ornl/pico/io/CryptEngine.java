@@ -0,0 +1,87 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+/**
+ * Apply a keystream tile to a range of bytes. This is the inner loop of the
+ * bulk crypt methods of {@link PicoHeader}, separated out so that the fastest
+ * implementation available on the running platform can be chosen at run time.
+ * <p>
+ * A tile holds the key repeated for some whole number of periods, followed by
+ * at least {@link #granularity()} bytes of slack. The period must be a
+ * multiple of both the key length and the granularity, so any step that
+ * starts before the period can read from the tile without wrapping.
+ * <p>
+ * Use {@link #INSTANCE} to get the engine for this platform. The vector
+ * engine is used if the {@code jdk.incubator.vector} module is present (for
+ * instance, by running with {@code --add-modules jdk.incubator.vector}), and
+ * otherwise the scalar engine is used. Set the system property
+ * {@code ornl.pico.io.vector} to {@code false} to force the scalar engine.
+ * 
+ * @author jcarter
+ */
+abstract class CryptEngine {
+
+    /** The name of the optional vector engine class. */
+    private static final String VECTOR_ENGINE = "ornl.pico.io.VectorCryptEngine";
+
+    /** The engine to use on this platform. */
+    static final CryptEngine INSTANCE = select();
+
+    /**
+     * Choose the engine for this platform.
+     * 
+     * @return The vector engine if it can be loaded, and the scalar engine
+     *         otherwise.
+     */
+    private static CryptEngine select() {
+        if (!"false".equalsIgnoreCase(System.getProperty("ornl.pico.io.vector"))) {
+            try {
+                return (CryptEngine) Class.forName(VECTOR_ENGINE).getDeclaredConstructor()
+                        .newInstance();
+            } catch (Exception e) {
+                // The engine was not built. Fall through.
+            } catch (LinkageError le) {
+                // The vector module is not present. Fall through.
+            }
+        }
+        return new ScalarCryptEngine();
+    }
+
+    /**
+     * Get the number of bytes processed in each step. The period of a tile
+     * must be a multiple of this, and the tile must have at least this many
+     * bytes of slack past the period.
+     * 
+     * @return The step size, in bytes.
+     */
+    abstract int granularity();
+
+    /**
+     * XOR a range of bytes with the keystream in the tile, storing the result
+     * in the destination. The source and destination may be the same array,
+     * but then the ranges must either be identical or not overlap. The caller
+     * is responsible for all bounds checking.
+     * 
+     * @param src The source bytes.
+     * @param srcoff The offset of the first byte in the source.
+     * @param dst The array to get the result.
+     * @param dstoff The offset of the first byte in the destination.
+     * @param len The number of bytes to process.
+     * @param tile The keystream tile.
+     * @param period The period of the keystream in the tile.
+     * @param index The index in the tile of the keystream byte for the first
+     *            byte of the range. This must be less than the period.
+     */
+    abstract void xor(byte[] src, int srcoff, byte[] dst, int dstoff, int len, byte[] tile,
+            int period, int index);
+}
@@ -0,0 +1,129 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keep copies of a message digest taken at regular positions in the data, so
+ * that the digest can be rebuilt from the nearest copy instead of from the
+ * start of the data. Copies are taken every {@link #interval()} bytes. To
+ * keep the number of copies bounded, once the limit is reached the interval
+ * doubles and every other copy is dropped.
+ * <p>
+ * The initial interval defaults to {@value #DEFAULT_INTERVAL} bytes, and can
+ * be set with the system property {@code ornl.pico.io.checkpoint}.
+ * 
+ * @author jcarter
+ */
+class DigestCheckpoints {
+
+    /** The default initial interval between copies. */
+    static final int DEFAULT_INTERVAL = 1024 * 1024;
+
+    /** The most copies to keep. */
+    static final int LIMIT = 256;
+
+    /** The copies, keyed by the position the digest is valid up to. */
+    private final TreeMap<Long, MessageDigest> _copies = new TreeMap<Long, MessageDigest>();
+
+    /** The interval between copies. */
+    private long _interval;
+
+    /**
+     * Make a new, empty set of copies.
+     */
+    DigestCheckpoints() {
+        int interval = Integer.getInteger("ornl.pico.io.checkpoint", DEFAULT_INTERVAL);
+        if (interval < 1) {
+            throw new IllegalArgumentException("The checkpoint interval must be positive.");
+        }
+        _interval = interval;
+    }
+
+    /**
+     * Get the interval between copies.
+     * 
+     * @return The interval, in bytes.
+     */
+    long interval() {
+        return _interval;
+    }
+
+    /**
+     * Get the first position after the given one at which a copy should be
+     * taken.
+     * 
+     * @param position The position.
+     * @return The next copy position.
+     */
+    long next(long position) {
+        return (position / _interval + 1) * _interval;
+    }
+
+    /**
+     * Save a copy of the digest. If the digest cannot be copied, nothing is
+     * saved.
+     * 
+     * @param position The position the digest is valid up to. This should be
+     *            a value returned by {@link #next(long)}.
+     * @param digest The digest, which is not changed.
+     */
+    void save(long position, MessageDigest digest) {
+        if (position % _interval != 0) {
+            return;
+        }
+        try {
+            _copies.put(position, (MessageDigest) digest.clone());
+        } catch (CloneNotSupportedException cnse) {
+            // This digest cannot be copied, so keep no copies.
+            return;
+        }
+        while (_copies.size() > LIMIT) {
+            _interval *= 2;
+            _copies.keySet().removeIf(key -> key % _interval != 0);
+        } // Thin the copies.
+    }
+
+    /**
+     * Get a digest valid up to the latest copy at or before the given
+     * position, and discard all later copies, since the data after the
+     * position is about to change.
+     * 
+     * @param position The position.
+     * @return The position of the copy and a fresh digest to continue from,
+     *         or {@code null} if there is no copy.
+     */
+    Map.Entry<Long, MessageDigest> rewind(long position) {
+        _copies.tailMap(position, false).clear();
+        Map.Entry<Long, MessageDigest> entry = _copies.floorEntry(position);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return new AbstractMap.SimpleEntry<Long, MessageDigest>(entry.getKey(),
+                    (MessageDigest) entry.getValue().clone());
+        } catch (CloneNotSupportedException cnse) {
+            return null;
+        }
+    }
+
+    /**
+     * Discard all copies.
+     */
+    void clear() {
+        _copies.clear();
+    }
+}
@@ -0,0 +1,69 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Track the ranges of a file written since some point, merging ranges that
+ * touch or overlap. Ranges can be added from any number of threads at once.
+ * 
+ * @author jcarter
+ */
+class DirtyRanges {
+
+    /** The end of each range, keyed by its start. Ranges never touch. */
+    private final TreeMap<Long, Long> _ranges = new TreeMap<Long, Long>();
+
+    /**
+     * Mark a range as dirty.
+     * 
+     * @param start The offset of the first byte.
+     * @param end The offset just past the last byte.
+     */
+    synchronized void add(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        // Absorb a range that starts before this one and reaches it.
+        Map.Entry<Long, Long> below = _ranges.floorEntry(start);
+        if (below != null && below.getValue() >= start) {
+            start = below.getKey();
+            end = Math.max(end, below.getValue());
+            _ranges.remove(below.getKey());
+        }
+        // Absorb ranges that start within this one.
+        Map.Entry<Long, Long> next;
+        while ((next = _ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            _ranges.remove(next.getKey());
+        } // Merge all overlapping ranges.
+        _ranges.put(start, end);
+    }
+
+    /**
+     * Get the offset of the first dirty byte.
+     * 
+     * @return The offset, or -1 if nothing is dirty.
+     */
+    synchronized long lowest() {
+        return _ranges.isEmpty() ? -1L : _ranges.firstKey();
+    }
+
+    /**
+     * Mark everything clean.
+     */
+    synchronized void clear() {
+        _ranges.clear();
+    }
+}
@@ -0,0 +1,382 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+import ornl.pico.PicoException;
+
+/**
+ * The algorithms that can hash the unencrypted data of a Pico file. Files
+ * written before version 0.2 always use {@link #MD5}, and that remains the
+ * default. Other algorithms are recorded in the header (see
+ * {@link PicoStructure#META_HASH}), so each file carries the identity and
+ * length of its own hash.
+ * <p>
+ * Every algorithm except {@link #NONE} supplies a {@link MessageDigest}, so
+ * the same code computes, checkpoints, and clones the hash whatever the
+ * algorithm.
+ * 
+ * @author jcarter
+ */
+public enum HashAlgorithm {
+
+    /** No hash. The hash in the header is empty, and nothing is computed. */
+    NONE(0, 0),
+
+    /** MD5, the original algorithm. */
+    MD5(1, 16),
+
+    /** SHA-256, which recent JDKs accelerate with processor instructions. */
+    SHA256(2, 32),
+
+    /**
+     * CRC-32C, which detects accidental damage only. The JDK computes it
+     * with processor instructions.
+     */
+    CRC32C(3, 4),
+
+    /** XXH64, a fast 64-bit hash which detects accidental damage only. */
+    XXH64(4, 8);
+
+    /** The identifier stored in the header. */
+    private final short _id;
+
+    /** The length of the hash, in bytes. */
+    private final int _length;
+
+    /**
+     * Make a new algorithm.
+     * 
+     * @param id The identifier stored in the header.
+     * @param length The length of the hash, in bytes.
+     */
+    private HashAlgorithm(int id, int length) {
+        _id = (short) id;
+        _length = length;
+    }
+
+    /**
+     * Get the identifier stored in the header.
+     * 
+     * @return The identifier.
+     */
+    public short getId() {
+        return _id;
+    }
+
+    /**
+     * Get the length of the hash.
+     * 
+     * @return The length, in bytes.
+     */
+    public int getLength() {
+        return _length;
+    }
+
+    /**
+     * Make a new digest to compute the hash.
+     * 
+     * @return The digest, or {@code null} for {@link #NONE}.
+     */
+    public MessageDigest newDigest() {
+        switch (this) {
+        case NONE:
+            return null;
+        case CRC32C:
+            return new Crc32cDigest();
+        case XXH64:
+            return new Xxh64Digest();
+        default:
+            try {
+                return MessageDigest.getInstance(this == MD5 ? PicoStructure.HASH : "SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new RuntimeException("Failed to create hash.", nsae);
+            }
+        }
+    }
+
+    /**
+     * Find the algorithm with the given identifier.
+     * 
+     * @param id The identifier stored in the header.
+     * @return The algorithm.
+     * @throws PicoException The identifier is not known.
+     */
+    public static HashAlgorithm forId(short id) throws PicoException {
+        for (HashAlgorithm algorithm : values()) {
+            if (algorithm._id == id) {
+                return algorithm;
+            }
+        } // Search all algorithms.
+        throw new PicoException("Unknown hash algorithm: " + id + ".");
+    }
+
+    // ======================================================================
+    // Digests not provided by the JDK.
+    // ======================================================================
+
+    /**
+     * Compute CRC-32C with the JDK's accelerated implementation. That class
+     * cannot be copied, so a copy starts a new CRC and remembers the CRC of
+     * everything before it; the two are combined (see {@link CrcCombine})
+     * when the digest completes.
+     */
+    private static final class Crc32cDigest extends MessageDigest implements Cloneable {
+
+        /** The CRC of the bytes before those in {@link #_crc}. */
+        private int _prior = 0;
+
+        /** The CRC of the bytes since the last copy. */
+        private CRC32C _crc = new CRC32C();
+
+        /** The number of bytes in {@link #_crc}. */
+        private long _count = 0L;
+
+        /** Make a new digest. */
+        Crc32cDigest() {
+            super("CRC32C");
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 4;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            _crc.update(input);
+            _count++;
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            _crc.update(input, offset, len);
+            _count += len;
+        }
+
+        @Override
+        protected void engineUpdate(ByteBuffer input) {
+            _count += input.remaining();
+            _crc.update(input);
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            int value = _value();
+            engineReset();
+            return ByteBuffer.allocate(4).order(PicoStructure.ORDER).putInt(value).array();
+        }
+
+        @Override
+        protected void engineReset() {
+            _prior = 0;
+            _crc = new CRC32C();
+            _count = 0L;
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            // Fold the live CRC into the prior value, so both copies can
+            // carry on with a new one.
+            _prior = _value();
+            _crc = new CRC32C();
+            _count = 0L;
+            Crc32cDigest copy = (Crc32cDigest) super.clone();
+            copy._crc = new CRC32C();
+            return copy;
+        }
+
+        /**
+         * Get the CRC of all the bytes so far.
+         * 
+         * @return The CRC.
+         */
+        private int _value() {
+            return CrcCombine.combine(_prior, (int) _crc.getValue(), _count);
+        }
+    }
+
+    /**
+     * Compute XXH64 with a seed of zero. The hash is stored most significant
+     * byte first, which is its usual printed form.
+     */
+    private static final class Xxh64Digest extends MessageDigest implements Cloneable {
+
+        /** Read little-endian longs from byte arrays. */
+        private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(
+                long[].class, ByteOrder.LITTLE_ENDIAN);
+
+        /** Read little-endian ints from byte arrays. */
+        private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(
+                int[].class, ByteOrder.LITTLE_ENDIAN);
+
+        /** The primes used by the algorithm. */
+        private static final long P1 = 0x9e3779b185ebca87L, P2 = 0xc2b2ae3d27d4eb4fL,
+                P3 = 0x165667b19e3779f9L, P4 = 0x85ebca77c2b2ae63L, P5 = 0x27d4eb2f165667c5L;
+
+        /** The four accumulators. */
+        private long _v1, _v2, _v3, _v4;
+
+        /** Bytes waiting to fill a 32-byte stripe. */
+        private byte[] _stripe = new byte[32];
+
+        /** The number of bytes in {@link #_stripe}. */
+        private int _fill = 0;
+
+        /** The number of bytes so far. */
+        private long _count = 0L;
+
+        /** Make a new digest. */
+        Xxh64Digest() {
+            super("XXH64");
+            engineReset();
+        }
+
+        @Override
+        protected int engineGetDigestLength() {
+            return 8;
+        }
+
+        @Override
+        protected void engineUpdate(byte input) {
+            _stripe[_fill++] = input;
+            _count++;
+            if (_fill == 32) {
+                _consume(_stripe, 0);
+                _fill = 0;
+            }
+        }
+
+        @Override
+        protected void engineUpdate(byte[] input, int offset, int len) {
+            _count += len;
+            if (_fill > 0) {
+                int length = Math.min(len, 32 - _fill);
+                System.arraycopy(input, offset, _stripe, _fill, length);
+                _fill += length;
+                offset += length;
+                len -= length;
+                if (_fill < 32) {
+                    return;
+                }
+                _consume(_stripe, 0);
+                _fill = 0;
+            }
+            while (len >= 32) {
+                _consume(input, offset);
+                offset += 32;
+                len -= 32;
+            } // Process whole stripes in place.
+            System.arraycopy(input, offset, _stripe, 0, len);
+            _fill = len;
+        }
+
+        @Override
+        protected byte[] engineDigest() {
+            long hash;
+            if (_count >= 32) {
+                hash = Long.rotateLeft(_v1, 1) + Long.rotateLeft(_v2, 7)
+                        + Long.rotateLeft(_v3, 12) + Long.rotateLeft(_v4, 18);
+                hash = _merge(hash, _v1);
+                hash = _merge(hash, _v2);
+                hash = _merge(hash, _v3);
+                hash = _merge(hash, _v4);
+            } else {
+                hash = P5;
+            }
+            hash += _count;
+            int here = 0;
+            for (; here + 8 <= _fill; here += 8) {
+                hash ^= _round(0L, (long) LONGS.get(_stripe, here));
+                hash = Long.rotateLeft(hash, 27) * P1 + P4;
+            } // Mix in the remaining longs.
+            if (here + 4 <= _fill) {
+                hash ^= ((int) INTS.get(_stripe, here) & 0xffffffffL) * P1;
+                hash = Long.rotateLeft(hash, 23) * P2 + P3;
+                here += 4;
+            }
+            for (; here < _fill; here++) {
+                hash ^= (_stripe[here] & 0xffL) * P5;
+                hash = Long.rotateLeft(hash, 11) * P1;
+            } // Mix in the remaining bytes.
+            hash ^= hash >>> 33;
+            hash *= P2;
+            hash ^= hash >>> 29;
+            hash *= P3;
+            hash ^= hash >>> 32;
+            engineReset();
+            return ByteBuffer.allocate(8).order(PicoStructure.ORDER).putLong(hash).array();
+        }
+
+        @Override
+        protected void engineReset() {
+            _v1 = P1 + P2;
+            _v2 = P2;
+            _v3 = 0L;
+            _v4 = -P1;
+            _fill = 0;
+            _count = 0L;
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            Xxh64Digest copy = (Xxh64Digest) super.clone();
+            copy._stripe = _stripe.clone();
+            return copy;
+        }
+
+        /**
+         * Process a 32-byte stripe.
+         * 
+         * @param data The array holding the stripe.
+         * @param offset The offset of the stripe.
+         */
+        private void _consume(byte[] data, int offset) {
+            _v1 = _round(_v1, (long) LONGS.get(data, offset));
+            _v2 = _round(_v2, (long) LONGS.get(data, offset + 8));
+            _v3 = _round(_v3, (long) LONGS.get(data, offset + 16));
+            _v4 = _round(_v4, (long) LONGS.get(data, offset + 24));
+        }
+
+        /**
+         * Mix a long into an accumulator.
+         * 
+         * @param acc The accumulator.
+         * @param input The long.
+         * @return The new accumulator.
+         */
+        private static long _round(long acc, long input) {
+            acc += input * P2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * P1;
+        }
+
+        /**
+         * Merge an accumulator into the hash.
+         * 
+         * @param hash The hash.
+         * @param acc The accumulator.
+         * @return The new hash.
+         */
+        private static long _merge(long hash, long acc) {
+            hash ^= _round(0L, acc);
+            return hash * P1 + P4;
+        }
+    }
+}
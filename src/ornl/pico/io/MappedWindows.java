@@ -0,0 +1,106 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Map a file into memory in fixed-size windows. A single mapped buffer can
+ * cover at most 2 GB, so larger files are covered by several windows, each
+ * mapped the first time it is used. A window is never mapped past the end of
+ * the file, since mapping for writing would then grow the file; if the file
+ * later grows, the last window is mapped again to cover the new bytes.
+ * <p>
+ * The window size defaults to {@value #DEFAULT_WINDOW} bytes, and can be set
+ * with the system property {@code ornl.pico.io.window}.
+ * <p>
+ * Windows can be obtained from any number of threads at once.
+ * 
+ * @author jcarter
+ */
+class MappedWindows {
+
+    /** The default size of a window. */
+    static final int DEFAULT_WINDOW = 64 * 1024 * 1024;
+
+    /** The channel of the mapped file. */
+    private final FileChannel _channel;
+
+    /** How to map the file. */
+    private final FileChannel.MapMode _mode;
+
+    /** The size of a window. */
+    private final long _window;
+
+    /** The windows mapped so far, indexed by window number. */
+    private final ArrayList<MappedByteBuffer> _windows = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * Prepare to map a file. Nothing is mapped until it is needed.
+     * 
+     * @param channel The channel of the file.
+     * @param writable If true, map the file for writing as well as reading.
+     */
+    MappedWindows(FileChannel channel, boolean writable) {
+        _channel = channel;
+        _mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        int window = Integer.getInteger("ornl.pico.io.window", DEFAULT_WINDOW);
+        if (window < 1) {
+            throw new IllegalArgumentException("The window size must be positive.");
+        }
+        _window = window;
+    }
+
+    /**
+     * Get a view of the mapping starting at the given offset in the file. The
+     * view runs to the end of the window holding the offset, or to the end of
+     * the file, whichever comes first. The view is independent, so its
+     * position and limit can be changed freely.
+     * 
+     * @param offset The offset in the file, which must be less than the
+     *            length.
+     * @param length The current length of the file.
+     * @return The view.
+     * @throws IOException The file cannot be mapped.
+     */
+    synchronized ByteBuffer window(long offset, long length) throws IOException {
+        int index = (int) (offset / _window);
+        long start = index * _window;
+        long end = Math.min(start + _window, length);
+        while (_windows.size() <= index) {
+            _windows.add(null);
+        } // Make room for the window.
+        MappedByteBuffer map = _windows.get(index);
+        if (map == null || start + map.capacity() < end) {
+            // Not mapped yet, or the file has grown past the old mapping.
+            map = _channel.map(_mode, start, end - start);
+            _windows.set(index, map);
+        }
+        ByteBuffer view = map.duplicate();
+        view.limit((int) (end - start));
+        view.position((int) (offset - start));
+        return view;
+    }
+
+    /**
+     * Forget all windows. This must be done before the file is truncated, so
+     * no window reaches past the end of the file. Windows are unmapped when
+     * they are garbage collected.
+     */
+    synchronized void invalidate() {
+        _windows.clear();
+    }
+}
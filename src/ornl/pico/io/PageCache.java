@@ -0,0 +1,436 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hold decoded pages of Pico files in memory, so that hot ranges need not be
+ * read and decoded again. Pages are {@value #PAGE_SIZE} bytes, and are keyed
+ * by the identity of the file (not by the {@link PicoFile} instance), so all
+ * instances opened on the same file share them. The pages live off the heap,
+ * and the least recently used pages are evicted to stay within the budget.
+ * <p>
+ * The cache is off unless a shared cache is installed with
+ * {@link #setShared(PageCache)}. Writes and truncation through any
+ * {@link PicoFile} drop the pages they affect. Each file's pages also carry a
+ * stamp of the file (its modification time, length, offset to the data, and
+ * hash) taken when it was opened, and opening a file whose stamp differs,
+ * because it was replaced or changed by other means, drops all its pages.
+ * Changes made by other means while a file is open are not seen.
+ * <p>
+ * Instances are safe for use by any number of threads.
+ * 
+ * @author jcarter
+ */
+public class PageCache {
+
+    /** The size of a page. */
+    public static final int PAGE_SIZE = 64 * 1024;
+
+    /** The shared cache, or {@code null} if caching is off. */
+    private static volatile PageCache _shared = null;
+
+    /**
+     * Get the shared cache used by all {@link PicoFile} instances.
+     * 
+     * @return The cache, or {@code null} if caching is off.
+     */
+    public static PageCache getShared() {
+        return _shared;
+    }
+
+    /**
+     * Set the shared cache used by all {@link PicoFile} instances.
+     * 
+     * @param cache The cache, or {@code null} to turn caching off.
+     */
+    public static void setShared(PageCache cache) {
+        _shared = cache;
+    }
+
+    /** The key of a page. */
+    private static final class Key {
+        /** The identity of the file. */
+        final Object file;
+
+        /** The index of the page. */
+        final long index;
+
+        /**
+         * Make a new key.
+         * 
+         * @param file The identity of the file.
+         * @param index The index of the page.
+         */
+        Key(Object file, long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + Long.hashCode(index);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return index == key.index && file.equals(key.file);
+        }
+    }
+
+    /**
+     * What identifies the content of a file, apart from its identity: if any
+     * of this changes, the file was changed by other means than a
+     * {@link PicoFile}, and its pages are stale.
+     */
+    static final class Stamp {
+        /** The modification time of the file, in nanoseconds. */
+        private final long _modified;
+
+        /** The length of the file. */
+        private final long _length;
+
+        /** The offset to the data. */
+        private final long _offset;
+
+        /** The hash in the header, or {@code null}. */
+        private final byte[] _hash;
+
+        /**
+         * Make a new stamp.
+         * 
+         * @param modified The modification time of the file, in nanoseconds.
+         * @param length The length of the file.
+         * @param offset The offset to the data.
+         * @param hash The hash in the header, or {@code null}. This is kept.
+         */
+        Stamp(long modified, long length, long offset, byte[] hash) {
+            _modified = modified;
+            _length = length;
+            _offset = offset;
+            _hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(_modified) * 31 + Long.hashCode(_length);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Stamp)) {
+                return false;
+            }
+            Stamp stamp = (Stamp) other;
+            return _modified == stamp._modified && _length == stamp._length
+                    && _offset == stamp._offset && Arrays.equals(_hash, stamp._hash);
+        }
+    }
+
+    /** What is known about a file that has pages held. */
+    private static final class FileState {
+        /** The stamp of the file when its pages were read, or {@code null}. */
+        Stamp stamp;
+
+        /** The clock when pages of the file were last dropped. */
+        long changed;
+
+        /** The number of pages held. */
+        int pages = 0;
+
+        /**
+         * Make a new state.
+         * 
+         * @param stamp The stamp of the file.
+         * @param changed The clock when pages were last dropped.
+         */
+        FileState(Stamp stamp, long changed) {
+            this.stamp = stamp;
+            this.changed = changed;
+        }
+    }
+
+    /** The most bytes of pages to hold. */
+    private final long _budget;
+
+    /** The pages, from least to most recently used. */
+    private final LinkedHashMap<Key, ByteBuffer> _pages = new LinkedHashMap<Key, ByteBuffer>(
+            16, 0.75f, true);
+
+    /**
+     * The files with pages held. A file is dropped from here along with its
+     * last page, so this never holds more files than pages.
+     */
+    private final HashMap<Object, FileState> _files = new HashMap<Object, FileState>();
+
+    /** A clock that ticks whenever pages are dropped. */
+    private long _clock = 0L;
+
+    /**
+     * The latest time pages were dropped for any file not in {@link #_files}.
+     * A page read before this is not kept for such a file, since it may have
+     * been read before the drop.
+     */
+    private long _forgotten = 0L;
+
+    /** The bytes of pages held. */
+    private long _size = 0L;
+
+    /** The number of lookups that found a page. */
+    private final AtomicLong _hits = new AtomicLong();
+
+    /** The number of lookups that did not find a page. */
+    private final AtomicLong _misses = new AtomicLong();
+
+    /** The number of pages evicted to stay within the budget. */
+    private final AtomicLong _evictions = new AtomicLong();
+
+    /**
+     * Make a new, empty cache.
+     * 
+     * @param budget The most bytes of pages to hold.
+     */
+    public PageCache(long budget) {
+        if (budget < PAGE_SIZE) {
+            throw new IllegalArgumentException("The budget must hold at least one page.");
+        }
+        _budget = budget;
+    }
+
+    /**
+     * Get the most bytes of pages this cache holds.
+     * 
+     * @return The budget, in bytes.
+     */
+    public long getBudget() {
+        return _budget;
+    }
+
+    /**
+     * Get the bytes of pages held now.
+     * 
+     * @return The size, in bytes.
+     */
+    public synchronized long getSize() {
+        return _size;
+    }
+
+    /**
+     * Get the number of lookups that found a page.
+     * 
+     * @return The number of hits.
+     */
+    public long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * Get the number of lookups that did not find a page.
+     * 
+     * @return The number of misses.
+     */
+    public long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * Get the number of pages evicted to stay within the budget.
+     * 
+     * @return The number of evictions.
+     */
+    public long getEvictions() {
+        return _evictions.get();
+    }
+
+    /**
+     * Drop all pages.
+     */
+    public synchronized void clear() {
+        _forgotten = ++_clock;
+        _files.clear();
+        _pages.clear();
+        _size = 0L;
+    }
+
+    /**
+     * Get the number of files that have pages held.
+     * 
+     * @return The number of files.
+     */
+    public synchronized int getFileCount() {
+        return _files.size();
+    }
+
+    /**
+     * Look up a page.
+     * 
+     * @param file The identity of the file.
+     * @param index The index of the page.
+     * @return A view of the page, from zero to the number of valid bytes, or
+     *         {@code null} if the page is not held.
+     */
+    synchronized ByteBuffer get(Object file, long index) {
+        ByteBuffer page = _pages.get(new Key(file, index));
+        if (page == null) {
+            _misses.incrementAndGet();
+            return null;
+        }
+        _hits.incrementAndGet();
+        return page.duplicate();
+    }
+
+    /**
+     * Get the generation to use when reading a page. Get this before reading
+     * a page, and pass it to {@link #put(Object, long, long, Stamp, ByteBuffer)},
+     * so a page read while a write drops pages is not kept.
+     * 
+     * @param file The identity of the file.
+     * @return The generation.
+     */
+    synchronized long generation(Object file) {
+        return _clock;
+    }
+
+    /**
+     * Check the stamp of a file being opened, and drop all its pages if they
+     * were read from different content.
+     * 
+     * @param file The identity of the file.
+     * @param stamp The stamp of the file now.
+     */
+    synchronized void check(Object file, Stamp stamp) {
+        FileState state = _files.get(file);
+        if (state != null && !stamp.equals(state.stamp)) {
+            invalidate(file, 0L, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Replace the stamp of a file without dropping its pages. This is done
+     * when a {@link PicoFile} has changed the file, since all the pages its
+     * writes affected have been dropped already.
+     * 
+     * @param file The identity of the file.
+     * @param stamp The stamp of the file now.
+     */
+    synchronized void restamp(Object file, Stamp stamp) {
+        FileState state = _files.get(file);
+        if (state != null) {
+            state.stamp = stamp;
+        }
+    }
+
+    /**
+     * Hold a page, evicting the least recently used pages if needed. The
+     * page must not be changed after this.
+     * 
+     * @param file The identity of the file.
+     * @param index The index of the page.
+     * @param generation The generation before the page was read.
+     * @param stamp The stamp of the file when it was opened, or {@code null}
+     *            if it is not known, in which case the page is dropped when
+     *            the file is next opened.
+     * @param page The page, from zero to the number of valid bytes.
+     */
+    synchronized void put(Object file, long index, long generation, Stamp stamp,
+            ByteBuffer page) {
+        FileState state = _files.get(file);
+        if (generation < ((state == null) ? _forgotten : state.changed)) {
+            // Pages of the file were dropped while the page was read.
+            return;
+        }
+        if (state == null) {
+            state = new FileState(stamp, _forgotten);
+            _files.put(file, state);
+        }
+        ByteBuffer old = _pages.put(new Key(file, index), page);
+        if (old != null) {
+            _size -= old.limit();
+        } else {
+            state.pages++;
+        }
+        _size += page.limit();
+        Iterator<Map.Entry<Key, ByteBuffer>> entries = _pages.entrySet().iterator();
+        while (_size > _budget && entries.hasNext()) {
+            Map.Entry<Key, ByteBuffer> entry = entries.next();
+            entries.remove();
+            _dropped(entry.getKey().file, entry.getValue());
+            _evictions.incrementAndGet();
+        } // Evict the least recently used pages.
+    }
+
+    /**
+     * Drop the pages of a file that hold any of a range of bytes.
+     * 
+     * @param file The identity of the file.
+     * @param start The position of the first byte, excluding the header.
+     * @param end The position just past the last byte, or
+     *            {@link Long#MAX_VALUE} for the rest of the file.
+     */
+    synchronized void invalidate(Object file, long start, long end) {
+        _clock++;
+        FileState state = _files.get(file);
+        if (state == null) {
+            // No pages are held, but a page being read must not be kept.
+            _forgotten = _clock;
+            return;
+        }
+        state.changed = _clock;
+        long first = start / PAGE_SIZE;
+        long last = (end == Long.MAX_VALUE) ? Long.MAX_VALUE : (end - 1) / PAGE_SIZE;
+        if (last - first < state.pages) {
+            for (long index = first; index <= last; index++) {
+                ByteBuffer old = _pages.remove(new Key(file, index));
+                if (old != null) {
+                    _dropped(file, old);
+                }
+            } // Drop each page in the range.
+            return;
+        }
+        Iterator<Map.Entry<Key, ByteBuffer>> entries = _pages.entrySet().iterator();
+        while (entries.hasNext() && _files.containsKey(file)) {
+            Map.Entry<Key, ByteBuffer> entry = entries.next();
+            Key key = entry.getKey();
+            if (key.file.equals(file) && key.index >= first && key.index <= last) {
+                entries.remove();
+                _dropped(file, entry.getValue());
+            }
+        } // Drop all pages in the range.
+    }
+
+    /**
+     * Account for a page that has been removed, and forget the file along
+     * with its last page.
+     * 
+     * @param file The identity of the file.
+     * @param page The page.
+     */
+    private void _dropped(Object file, ByteBuffer page) {
+        _size -= page.limit();
+        FileState state = _files.get(file);
+        if (state != null && --state.pages == 0) {
+            _files.remove(file);
+            _forgotten = Math.max(_forgotten, state.changed);
+        }
+    }
+}
@@ -16,15 +16,20 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import ornl.pico.PicoException;
 
@@ -37,6 +42,8 @@ import ornl.pico.PicoException;
  * or replace an existing file.</li>
  * <li>Use {@link #open(File)} or {@link #open(String)} to open an existing
  * file.</li>
+ * <li>Use {@link #openMapped(File, String)} to open an existing file for
+ * reading (and optionally writing) through a memory mapping.</li>
  * </ol>
  * <p>
  * <b>Note</b>: Because the data can be written arbitrarily, but the hash must
@@ -46,6 +53,26 @@ import ornl.pico.PicoException;
  * <b>Caution</b>: If you write data, you must invoke {@link #finish()} or
  * {@link #close()} when done to be sure the header is written, since the hash
  * must be computed and written last.
+ * <p>
+ * Every read and write is positional, so it does not move the position of
+ * the underlying file channel. Use {@link #read(ByteBuffer, long)} and
+ * {@link #write(ByteBuffer, long)} to access a given position without moving
+ * the position of this channel, either.
+ * <p>
+ * Single bytes and small buffers written at the current position are
+ * collected, and adjacent ones are encrypted and written together. They are
+ * written when the position moves elsewhere, when they are read, and on
+ * {@link #flush()}, {@link #finish()} and {@link #close()}. Until then other
+ * instances open on the same file do not see them.
+ * <p>
+ * Sequential reads at the current position are read ahead in a window that
+ * grows as long as the reads stay sequential, so parsers can read a byte at a
+ * time without a system call for each. Positional reads are not read ahead.
+ * <p>
+ * A single instance is not safe for use by more than one thread, with one
+ * exception: any number of threads may read the file at the same time
+ * through streams obtained from {@link #openRange(long, long)}, provided
+ * nothing is writing it.
  * 
  * @author Stacy Prowell (prowellsj@ornl.gov)
  */
@@ -77,8 +104,8 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      * @throws PicoException
      */
     public static byte[] decode(byte[] picobytes) throws IOException, PicoException {
-        // 10k buffer;
-        byte[] buffer = new byte[10 * 2 ^ 10];
+        // 64k buffer.
+        byte[] buffer = new byte[64 * 1024];
         PicoInputStream pis = new PicoInputStream(new ByteArrayInputStream(picobytes));
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -147,7 +174,8 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         if (key.length == 0) {
             throw new IllegalArgumentException("Encryption key is empty.");
         }
-        return new PicoFile(new RandomAccessFile(filename, "rw"), key);
+        return _identify(new PicoFile(new RandomAccessFile(filename, "rw"), key),
+                new File(filename), true);
     }
 
     /**
@@ -172,7 +200,7 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
             throw new IllegalArgumentException("Encryption key is empty.");
         }
 
-        return new PicoFile(new RandomAccessFile(file, "rw"), key);
+        return _identify(new PicoFile(new RandomAccessFile(file, "rw"), key), file, true);
     }
 
     /**
@@ -190,7 +218,8 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         if (filename == null) {
             throw new NullPointerException("The filename is null.");
         }
-        return new PicoFile(new RandomAccessFile(filename, "rw"));
+        return _identify(new PicoFile(new RandomAccessFile(filename, "rw")),
+                new File(filename), false);
     }
 
     /**
@@ -208,9 +237,86 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         if (file == null) {
             throw new NullPointerException("The file is null.");
         }
-        return new PicoFile(new RandomAccessFile(file, "rw"));
+        return _identify(new PicoFile(new RandomAccessFile(file, "rw")), file, false);
     }
     
+    /**
+     * Create or replace a Pico file whose hash is computed with the given
+     * algorithm. The algorithm is recorded in the header, and honored by
+     * everything that reads the file. Files using any algorithm but
+     * {@link HashAlgorithm#MD5} need version 0.2 to read.
+     * 
+     * @param file The file.
+     * @param key The key to use to encrypt the file.
+     * @param algorithm The hash algorithm.
+     * @return The Pico file instance.
+     * @throws IOException The file cannot be created.
+     */
+    public static PicoFile create(File file, byte[] key, HashAlgorithm algorithm)
+            throws IOException {
+        if (algorithm == null) {
+            throw new NullPointerException("The hash algorithm is null.");
+        }
+        PicoFile pf = create(file, key);
+        pf._head.setHashAlgorithm(algorithm);
+        pf._resetDigest();
+        return pf;
+    }
+
+    /**
+     * Create or replace a Pico file that keeps a chunked tree hash in its
+     * header. After a write only the chunks changed must be hashed again on
+     * {@link #finish()}, instead of all the data, and the tree can be checked
+     * in parallel with {@link #verifyTree()}.
+     * <p>
+     * The header has room for the given number of hashes, and is sized for
+     * that at once. Files with more chunks than that store one hash for each
+     * group of chunks, so a change rehashes a whole group.
+     * 
+     * @param file The file.
+     * @param key The key to use to encrypt the file.
+     * @param chunksize The size of a chunk, in bytes.
+     * @param capacity The number of hashes to make room for.
+     * @param legacy If true, also keep the hash of all the data in the
+     *            header, for readers that do not know the tree hash. This
+     *            costs a full pass over the data when earlier data changes.
+     *            If false, that hash is left zero.
+     * @return The Pico file instance.
+     * @throws IOException The file cannot be created.
+     */
+    public static PicoFile createTree(File file, byte[] key, int chunksize, int capacity,
+            boolean legacy) throws IOException {
+        PicoFile pf = create(file, key);
+        pf._tree = new TreeHash(chunksize, capacity, legacy);
+        pf._head.putMetadata(pf._tree.encode());
+        return pf;
+    }
+
+    /**
+     * Create or replace a Pico file that keeps a CRC-32C of each block of
+     * the encrypted data, as stored, in its header. The stored bytes can then
+     * be checked for damage with {@link #verifyStorage()} at disk speed,
+     * without decoding. After a write only the blocks changed must be read
+     * again on {@link #finish()}.
+     * <p>
+     * The header has room for the given number of CRCs, and is sized for
+     * that at once. As the file grows past that the block size doubles.
+     * 
+     * @param file The file.
+     * @param key The key to use to encrypt the file.
+     * @param blocksize The size of a block, in bytes.
+     * @param capacity The number of CRCs to make room for.
+     * @return The Pico file instance.
+     * @throws IOException The file cannot be created.
+     */
+    public static PicoFile createChecked(File file, byte[] key, int blocksize, int capacity)
+            throws IOException {
+        PicoFile pf = create(file, key);
+        pf._storage = new StorageCrc(blocksize, capacity);
+        pf._head.putMetadata(pf._storage.encode());
+        return pf;
+    }
+
     public static PicoFile open(File file, String method) throws PicoException, IOException {
         if (file == null) {
             throw new NullPointerException("The file is null.");
@@ -220,34 +326,244 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
             throw new PicoException("The method: " + method + " of working with a file cannot be used.");
         }
         
-        return new PicoFile(new RandomAccessFile(file, method), method);
+        return _identify(new PicoFile(new RandomAccessFile(file, method), method), file,
+                false);
+    }
+
+    /**
+     * Open an existing Pico file and access its bytes through a memory
+     * mapping. Random reads then decode straight from the mapping without a
+     * system call each. The file is mapped in windows as it is used, so files
+     * larger than 2 GB work. Writes within the existing data are encoded
+     * straight into the mapping; writes that extend the file go to the file
+     * as usual. Position and size behave exactly as for {@link #open(File)}.
+     * 
+     * @param file The file.
+     * @param method The access mode, {@code "r"} or {@code "rw"}.
+     * @return The Pico file instance.
+     * @throws PicoException The file format is incorrect.
+     * @throws IOException The file cannot be opened.
+     */
+    public static PicoFile openMapped(File file, String method) throws PicoException,
+            IOException {
+        if (file == null) {
+            throw new NullPointerException("The file is null.");
+        }
+        if (!(method.equals("rw") || method.equals("r"))) {
+            throw new PicoException("The method: " + method + " cannot be used with a mapping.");
+        }
+        PicoFile pf = new PicoFile(new RandomAccessFile(file, method), method);
+        pf._mapped = new MappedWindows(pf._channel, method.contains("w"));
+        return _identify(pf, file, false);
+    }
+
+    /**
+     * Note the identity of the physical file behind an instance, so decoded
+     * pages in the shared {@link PageCache} are shared with every other
+     * instance open on the same file, whatever path was used to open it.
+     * Pages held for a file that has since been replaced or changed by other
+     * means are dropped. The instance is also registered so its writes are
+     * seen by the bytes other instances read ahead. None of this is needed
+     * for a mapping that is only read while there is no cache, so it is
+     * skipped. If this fails the file is closed.
+     * 
+     * @param pf The Pico file instance.
+     * @param file The physical file.
+     * @param created If true the file was just created or replaced, so any
+     *            pages held for it are stale.
+     * @return The Pico file instance.
+     * @throws IOException The file attributes cannot be read.
+     */
+    private static PicoFile _identify(PicoFile pf, File file, boolean created)
+            throws IOException {
+        PageCache cache = PageCache.getShared();
+        if (cache == null && pf._mapped != null && !pf.mode.contains("w")) {
+            // Reads come straight from the mapping, and nothing is written.
+            return pf;
+        }
+        boolean done = false;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+            Object identity = attrs.fileKey();
+            if (identity == null) {
+                // Not all platforms have file keys.
+                identity = file.getCanonicalPath();
+            }
+            pf._identity = identity;
+            pf._path = file.toPath();
+            if (cache != null) {
+                pf._stamp = pf._stamp(attrs);
+            }
+            if (created) {
+                pf._invalidate(0L, Long.MAX_VALUE);
+            } else if (cache != null) {
+                cache.check(identity, pf._stamp);
+            }
+            pf._writecount = WriteCount.acquire(identity);
+            done = true;
+            return pf;
+        } finally {
+            if (!done) {
+                pf._backing.close();
+            }
+        }
+    }
+
+    /**
+     * Take a stamp of the file, to tell whether it has been changed by other
+     * means.
+     * 
+     * @param attrs The attributes of the file as it is now.
+     * @return The stamp.
+     */
+    private PageCache.Stamp _stamp(BasicFileAttributes attrs) {
+        return new PageCache.Stamp(attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                attrs.size(), _head.offset, (_head.hash == null) ? null : _head.hash.clone());
     }
 
     // ======================================================================
     // Instance data.
     // ======================================================================
 
+    /** The number of locks used to guard ranges of the file. */
+    private static final int LOCK_STRIPES = 64;
+
+    /** The size of the block guarded by each lock. */
+    private static final long LOCK_BLOCK = 64 * 1024;
+
+    /** The size of the buffer that collects small writes. */
+    private static final int PENDING_SIZE = 64 * 1024;
+
+    /** The size of the buffers that hold encrypted data being written. */
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    /**
+     * The buffer each thread encrypts heap data into for writing. The
+     * caller's buffer is never changed, so other threads may read it, or
+     * write it to other places, at the same time.
+     */
+    private static final ThreadLocal<ByteBuffer> _heapscratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(SCRATCH_SIZE);
+        }
+    };
+
+    /** The buffer each thread encrypts direct data into for writing. */
+    private static final ThreadLocal<ByteBuffer> _directscratch = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(SCRATCH_SIZE);
+        }
+    };
+
     /** The physical file for this logical Pico file. */
     private final RandomAccessFile _backing;
 
+    /**
+     * The channel of the physical file. All reads and writes are positional,
+     * so the channel position is never used.
+     */
+    private final FileChannel _channel;
+
+    /** The current position in the data, excluding the header. */
+    private long _position = 0L;
+
+    /** A one-byte buffer for the single-byte read method. */
+    private final ByteBuffer _single = ByteBuffer.allocate(1);
+
+    /** Reads ahead of sequential reads at the current position. */
+    private final Prefetch _prefetch = new Prefetch(this);
+
     /** Whether the file is open. */
-    private boolean _open = false;
+    private volatile boolean _open = false;
 
     /** The Pico header that will be written to the file. */
     private PicoHeader _head;
 
     /** If true then the hash stored in the header is valid. */
-    private boolean _hashvalid = false;
+    private volatile boolean _hashvalid = false;
 
-    /** The digest is valid up to, but not including, this position. */
-    private long _digestvalidto = 0L;
+    /**
+     * The digest is valid up to, but not including, this position. This is
+     * only changed while holding {@link #_digestlock}.
+     */
+    private volatile long _digestvalidto = 0L;
 
-    /** The message digest to use to compute the hash. */
+    /**
+     * The message digest to use to compute the hash, or {@code null} if the
+     * file has no hash.
+     */
     private MessageDigest _digest;
+
+    /** The chunked tree hash, or {@code null} if the file does not keep one. */
+    private TreeHash _tree = null;
+
+    /**
+     * The CRCs of the stored data, or {@code null} if the file does not keep
+     * them.
+     */
+    private StorageCrc _storage = null;
+
+    /** Copies of the digest to rebuild from after earlier data changes. */
+    private final DigestCheckpoints _checkpoints = new DigestCheckpoints();
+
+    /** Guards the digest while writers extend it. */
+    private final Object _digestlock = new Object();
+
+    /**
+     * Ranges written but not yet digested. Any that fall before
+     * {@link #_digestvalidto} force the digest to be rebuilt on finish.
+     */
+    private final DirtyRanges _dirty = new DirtyRanges();
+
+    /** Locks that keep overlapping writes from interleaving. */
+    private final RangeLocks _locks = new RangeLocks(LOCK_STRIPES, LOCK_BLOCK);
     
     /** The access mode for the file. */
     private String mode;
 
+    /** The memory mapping of the file, or {@code null} if not mapped. */
+    private MappedWindows _mapped = null;
+
+    /**
+     * The identity of the physical file in the shared {@link PageCache}, or
+     * {@code null} if the instance does not use the cache.
+     */
+    private Object _identity = null;
+
+    /** The path to the physical file, or {@code null} if not known. */
+    private Path _path = null;
+
+    /**
+     * The stamp of the physical file when it was opened or last finished, or
+     * {@code null} if the instance does not use the cache.
+     */
+    private volatile PageCache.Stamp _stamp = null;
+
+    /**
+     * The count of writes to the physical file through every open instance,
+     * or {@code null} if the file is not known or the instance is closed.
+     */
+    private volatile WriteCount _writecount = null;
+
+    /**
+     * Bytes written at the current position but not yet encrypted and
+     * written to the file. Adjacent small writes collect here, and are
+     * written as one. This is only used while holding {@link #_pendinglock}.
+     */
+    private final byte[] _pending = new byte[PENDING_SIZE];
+
+    /** The position of the first byte in {@link #_pending}. */
+    private long _pendingstart = 0L;
+
+    /** The number of bytes in {@link #_pending}. */
+    private int _pendinglength = 0;
+
+    /** Guards the pending bytes. */
+    private final Object _pendinglock = new Object();
+
     // ======================================================================
     // Constructors.
     // The constructors are protected since the static methods should be used
@@ -264,9 +580,10 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
     protected PicoFile(RandomAccessFile backing) throws PicoException, IOException {
         assert backing != null : "Backing is null.";
         _backing = backing;
+        _channel = backing.getChannel();
         _open = true;
-        _resetDigest();
         _readHeader();
+        _resetDigest();
         mode = "r";
         position(0L);
     }
@@ -281,9 +598,10 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
     protected PicoFile(RandomAccessFile backing, String mode) throws PicoException, IOException {
         assert backing != null : "Backing is null.";
         _backing = backing;
+        _channel = backing.getChannel();
         _open = true;
-        _resetDigest();
         _readHeader();
+        _resetDigest();
         this.mode = mode;
         position(0L);
     }
@@ -302,13 +620,15 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         assert key != null : "Key is null.";
         assert key.length > 0 : "Key is missing.";
         _backing = backing;
+        _channel = backing.getChannel();
         _open = true;
-        _resetDigest();
         // We are creating a new file, so truncate any existing file and
         // generate a new header.
         _backing.setLength(0L);
         _head = new PicoHeader();
         _head.setKey(key);
+        _resetDigest();
+        mode = "rw";
 
         // Now the Header size is fixed since we have the key and know the size
         // of the hash
@@ -327,39 +647,147 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      * obtain the hash.
      */
     private void _resetDigest() {
-        try {
-            _digest = MessageDigest.getInstance(PicoStructure.HASH);
-            _digestvalidto = 0L;
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new RuntimeException("Failed to create hash.", nsae);
+        _dirty.clear();
+        _checkpoints.clear();
+        _digest = _head.getHashAlgorithm().newDigest();
+        _digestvalidto = 0L;
+    }
+
+    /**
+     * Rewind the digest so it is valid up to the latest checkpoint at or
+     * before the given position. Only the bytes after that checkpoint must be
+     * re-processed. If there is no such checkpoint, the digest is reset.
+     * 
+     * @param pos The position, excluding the header.
+     */
+    private void _rewindDigest(long pos) {
+        Map.Entry<Long, MessageDigest> checkpoint = _checkpoints.rewind(pos);
+        if (checkpoint == null) {
+            _resetDigest();
+            return;
         }
+        _digest = checkpoint.getValue();
+        _digestvalidto = checkpoint.getKey();
     }
 
     /**
-     * Update the digest so it is valid up to the current file position. After
-     * invoking this the digest is valid up to the current file position given
-     * by {@link #position()}.
+     * Add bytes to the digest, advancing the position it is valid to, and
+     * take a checkpoint at each checkpoint position passed.
+     * 
+     * @param buf The bytes, from position to limit. These are consumed.
      */
-    private void _updateDigest() throws IOException {
-        long pos = position();
+    private void _digestUpdate(ByteBuffer buf) {
+        while (buf.hasRemaining()) {
+            long next = _checkpoints.next(_digestvalidto);
+            int length = (int) Math.min(buf.remaining(), next - _digestvalidto);
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + length);
+            _digest.update(part);
+            buf.position(buf.position() + length);
+            _digestvalidto += length;
+            if (_digestvalidto == next) {
+                _checkpoints.save(next, _digest);
+            }
+        } // Digest up to each checkpoint in turn.
+    }
+
+    /**
+     * Update the digest so it is valid up to the given position. If the file
+     * ends before the position, the digest is valid up to the end of the
+     * file.
+     * 
+     * @param pos The position, excluding the header.
+     */
+    private void _updateDigest(long pos) throws IOException {
         if (_digestvalidto == pos)
             return;
 
-        // If I move to an earlier position, write, and move back, the digest
-        // will
-        // remain the same.
+        // If the digest runs past the position, go back to a checkpoint.
         if (_digestvalidto > pos)
-            _resetDigest();
+            _rewindDigest(pos);
         int blocksize = 16384;
         ByteBuffer buf = ByteBuffer.allocate(blocksize);
-        position(_digestvalidto);
         while (_digestvalidto < pos) {
-            _digestvalidto += read(buf);
-            _digest.update(buf);
+            buf.limit((int) Math.min(blocksize, pos - _digestvalidto));
+            int length = read(buf, _digestvalidto);
+            if (length <= 0)
+                break;
+            buf.flip();
+            _digestUpdate(buf);
             buf.clear();
         } // Compute the digest through the rest of the file.
     }
 
+    /**
+     * Account for a write in the digest. If the write continues exactly where
+     * the digest ends, the unencrypted bytes are digested now; otherwise the
+     * range is marked dirty and the digest is brought up to date on finish.
+     * Safe to call from concurrent writers.
+     * 
+     * @param position The position of the first byte written.
+     * @param src The unencrypted bytes, from position to limit. These are
+     *            not consumed.
+     */
+    private void _digestWrite(long position, ByteBuffer src) {
+        _hashvalid = false;
+        if (_storage != null) {
+            _storage.mark(position, position + src.remaining());
+        }
+        if (_tree != null) {
+            _tree.mark(position, position + src.remaining());
+            if (!_tree.legacy()) {
+                // The hash of all the data is not kept.
+                return;
+            }
+        }
+        if (_digest == null) {
+            // The file has no hash.
+            return;
+        }
+        if (position == _digestvalidto) {
+            synchronized (_digestlock) {
+                if (position == _digestvalidto) {
+                    _digestUpdate(src.duplicate());
+                    return;
+                }
+            }
+        }
+        _dirty.add(position, position + src.remaining());
+    }
+
+    /**
+     * Read from the physical file at the given offset until the buffer is
+     * full or the end of the file is reached.
+     * 
+     * @param dst The buffer to get the bytes.
+     * @param at The offset in the physical file.
+     * @return The number of bytes read.
+     * @throws IOException The file cannot be read.
+     */
+    private int _readFully(ByteBuffer dst, long at) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            int length = _channel.read(dst, at + total);
+            if (length < 0)
+                break;
+            total += length;
+        } // Read until full.
+        return total;
+    }
+
+    /**
+     * Write the entire buffer to the physical file at the given offset.
+     * 
+     * @param src The buffer holding the bytes.
+     * @param at The offset in the physical file.
+     * @throws IOException The file cannot be written.
+     */
+    private void _writeFully(ByteBuffer src, long at) throws IOException {
+        while (src.hasRemaining()) {
+            at += _channel.write(src, at);
+        } // Write everything.
+    }
+
     /**
      * Read the header. This reads the header from an existing file. After this
      * method completes the header reflects what it stored in the file,
@@ -372,14 +800,10 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         if (!_open)
             return;
 
-        // Save the current position and move to the start of the header.
-        long pos = _backing.getFilePointer();
-        _backing.seek(PicoStructure.HEAD_START);
-
         // Read the header from the file. We read the fixed length portion
         // here, up through the start of the key.
         byte[] _fixedhdr = new byte[(int) PicoStructure.FIXED_HEADER_LENGTH];
-        int length = _backing.read(_fixedhdr);
+        int length = _readFully(ByteBuffer.wrap(_fixedhdr), PicoStructure.HEAD_START);
 
         // Make sure we have enough bytes for the magic string.
         if (length < PicoStructure.MAGIC_LENGTH - PicoStructure.MAGIC_OFFSET) {
@@ -398,7 +822,8 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
 
         // Go and read the key, now that we know its length. Note that we read
         // it directly into the array returned by getKey.
-        length = _backing.read(_head.getKey());
+        length = _readFully(ByteBuffer.wrap(_head.getKey()),
+                PicoStructure.HEAD_START + PicoStructure.FIXED_HEADER_LENGTH);
 
         // Make sure we have the complete key. The only bad case is that the
         // file ends before the key is complete.
@@ -406,8 +831,28 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
             throw new PicoException("File too short; incomplete key.");
         }
 
-        // Move to the original position in the file.
-        _backing.seek(pos);
+        // Read any metadata, which runs from the key to the data.
+        long metastart = PicoStructure.KEY_OFFSET + length;
+        if (_head.offset < metastart || _head.offset - metastart > Integer.MAX_VALUE) {
+            throw new PicoException("Incorrect offset to the data.");
+        }
+        byte[] metadata = new byte[(int) (_head.offset - metastart)];
+        if (_readFully(ByteBuffer.wrap(metadata), metastart) != metadata.length) {
+            throw new PicoException("File too short; incomplete metadata.");
+        }
+        _head.readMetadata(metadata);
+        byte[] tree = _head.findMetadata(PicoStructure.META_TREE);
+        if (tree != null) {
+            _tree = TreeHash.parse(tree);
+            if (!_tree.legacy()) {
+                // The hash in the header was never computed.
+                _hashvalid = false;
+            }
+        }
+        byte[] storage = _head.findMetadata(PicoStructure.META_STORAGE);
+        if (storage != null) {
+            _storage = StorageCrc.parse(storage);
+        }
 
         // Ka-presto! The header has been read. Life is good.
     }
@@ -435,6 +880,83 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         return head;
     }
 
+    /**
+     * Get the typed values kept in the header. These are the values of this
+     * file, not a copy, so any change to them is written by the next
+     * {@link #finish()} or {@link #close()}. Once the file holds data the
+     * values must fit in the space the header already has for them, since
+     * the data cannot move; use {@link #reserveMetadata(int)} when the file is
+     * created to leave room for them to grow.
+     * 
+     * @return The values.
+     * @throws PicoException The values in the file are damaged.
+     */
+    public PicoMetadata getMetadata() throws PicoException {
+        return _head.getMetadata();
+    }
+
+    /**
+     * Leave room in the header for the typed values to grow, so they can be
+     * changed after data is written. This moves the data, so it must be done
+     * before any data is written.
+     * 
+     * @param bytes The number of bytes to leave.
+     * @return This file, for chaining.
+     * @throws IOException The file length cannot be read.
+     * @throws IllegalStateException Data has already been written.
+     */
+    public PicoFile reserveMetadata(int bytes) throws IOException {
+        if (size() > 0) {
+            throw new IllegalStateException("Space for metadata must be reserved before "
+                    + "any data is written.");
+        }
+        _head.setMetadataReserve(bytes);
+        return this;
+    }
+
+    /**
+     * Get the root of the chunked tree hash, as of the last {@link #finish()}
+     * or as read from the file.
+     * 
+     * @return The root hash, or {@code null} if the file does not keep a
+     *         tree hash.
+     */
+    public byte[] getTreeRoot() {
+        return (_tree == null) ? null : _tree.root();
+    }
+
+    /**
+     * Check the chunked tree hash against the data, hashing the chunks in
+     * parallel. Call {@link #finish()} first if the file has been written.
+     * 
+     * @return True if the data matches the tree hash.
+     * @throws IOException The data cannot be read.
+     * @throws IllegalStateException The file does not keep a tree hash.
+     */
+    public boolean verifyTree() throws IOException {
+        if (_tree == null) {
+            throw new IllegalStateException("The file does not keep a tree hash.");
+        }
+        return _tree.verify(this, size());
+    }
+
+    /**
+     * Check the encrypted data, as stored, against the CRCs in the header.
+     * Nothing is decoded, so this runs at the speed of the disk, and finds
+     * any change to the stored bytes since the last {@link #finish()}. Call
+     * {@link #finish()} first if the file has been written.
+     * 
+     * @return True if the stored data matches the CRCs.
+     * @throws IOException The data cannot be read.
+     * @throws IllegalStateException The file does not keep storage CRCs.
+     */
+    public boolean verifyStorage() throws IOException {
+        if (_storage == null) {
+            throw new IllegalStateException("The file does not keep storage CRCs.");
+        }
+        return _storage.verify(_channel, _head.offset, size());
+    }
+
     /**
      * Predicates that indicates the original magic number of this pico file
      * matches the magic (byte array) provided. The magic number is used as a
@@ -446,17 +968,13 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      */
     public byte[] getMagic() {
         byte[] magic = null;
-        long pos = 0;
         try {
-            // cache the current position in the file so we can return to it.
-            pos = _backing.getFilePointer();
-            // Position to the 0 byte of the actual file.
-            position(0L);
+            // Read the first two bytes of the actual file. This does not
+            // move the position.
             ByteBuffer magic_buffer = ByteBuffer.allocate(2);
-            int num = read(magic_buffer);
+            int num = read(magic_buffer, 0L);
             if (num == 2) {
                 // successful read of the 2 bytes.
-                _backing.seek(pos);
                 magic = magic_buffer.array();
             }
         } catch (IOException e1) {
@@ -486,41 +1004,74 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      * {@link #close()} instead, which invokes this method.
      * <p>
      * <b>Warning</b>: Because of the hash computation this method can be
-     * costly! After calling this the internal hash computation must be
-     * completely reset, so a subsequent write will cause the hash to be updated
-     * from scratch. Use caution with this method. In fact, this is the reason
-     * this method is not named {@code flush}.
+     * costly! Any data not yet digested must be read back, and if earlier
+     * data has been overwritten the digest must be rebuilt from the nearest
+     * checkpoint before it. Use caution with this method. In fact, this is the
+     * reason this method is not named {@code flush}.
      * 
      * @throws IOException An error occurred writing the file.
      */
     public void finish() throws IOException {
         if (!_open)
             return;
+        flush();
 
-        // Save the current position so we can restore it later.
-        long pos = _backing.getFilePointer();
+        // Bring the typed values up to date. Once there is data they must
+        // fit where they are, since moving them would move the data.
+        if (!_head.updateMetadata(size() == 0)) {
+            throw new IOException("The metadata has outgrown the space reserved for it.");
+        }
+
+        // Bring the tree hash up to date. Its size never changes, so it can
+        // be rewritten in place.
+        if (_tree != null) {
+            _tree.update(this, size());
+            _head.putMetadata(_tree.encode());
+        }
 
         // If the hash is not valid, compute it now.
-        if (!_hashvalid) {
-            // The hash is not valid. Complete the computation now and store
-            // the resulting hash.
-            _backing.seek(_backing.length());
-            _updateDigest();
-            _head.hash = _digest.digest();
+        if ((_tree != null && !_tree.legacy()) || _digest == null) {
+            // The hash of all the data is not kept.
+            _head.hash = new byte[_head.getHashAlgorithm().getLength()];
+        } else if (!_hashvalid) {
+            // The hash is not valid. If anything before the end of the digest
+            // was overwritten, go back to a checkpoint before it. Then
+            // complete the computation and store the resulting hash.
+            long dirty = _dirty.lowest();
+            if (dirty >= 0 && dirty < _digestvalidto) {
+                _rewindDigest(dirty);
+            }
+            _dirty.clear();
+            _updateDigest(size());
+            try {
+                // Finish a copy, so the digest can carry on if more is
+                // written.
+                _head.hash = ((MessageDigest) _digest.clone()).digest();
+            } catch (CloneNotSupportedException cnse) {
+                // Use up the digest, and force it to be re-computed next time.
+                _head.hash = _digest.digest();
+                _resetDigest();
+            }
             _hashvalid = true;
+        }
 
-            // Reset the digest now to force it to be re-computed next time.
-            // This must be done since we just "used up" the existing digest
-            // instance.
-            _resetDigest();
+        // Bring the storage CRCs up to date. Like the tree hash, their size
+        // never changes.
+        if (_storage != null) {
+            _storage.update(_channel, _head.offset, size());
+            _head.putMetadata(_storage.encode());
         }
 
         // Write the header to the backing store.
-        _backing.seek(PicoStructure.HEAD_START);
-        _backing.write(_head.putHeader());
-
-        // Restore the file position.
-        _backing.seek(pos);
+        _writeFully(ByteBuffer.wrap(_head.putHeader()), PicoStructure.HEAD_START);
+
+        // The pages this instance changed have been dropped already, so the
+        // pages held are still good for the file as it is now.
+        PageCache cache = PageCache.getShared();
+        if (cache != null && _identity != null) {
+            _stamp = _stamp(Files.readAttributes(_path, BasicFileAttributes.class));
+            cache.restamp(_identity, _stamp);
+        }
     }
 
     /*
@@ -532,6 +1083,7 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
     public void close() throws IOException {
         if (!_open)
             return;
+        flush();
 
         // We only need to execute the finish method if we are writing.
         if (mode.contains("w")) {
@@ -539,6 +1091,14 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         }
 
         _open = false;
+        if (_mapped != null) {
+            _mapped.invalidate();
+        }
+        WriteCount count = _writecount;
+        if (count != null) {
+            _writecount = null;
+            count.release();
+        }
         _backing.close();
     }
 
@@ -557,7 +1117,7 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      */
     @Override
     public long position() throws IOException {
-        return _backing.getFilePointer() - _head.offset;
+        return _position;
     }
 
     /*
@@ -570,7 +1130,16 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      */
     @Override
     public SeekableByteChannel position(long newPosition) throws IOException {
-        _backing.seek(newPosition + _head.offset);
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("The position is negative.");
+        }
+        synchronized (_pendinglock) {
+            if (_pendinglength > 0 && newPosition != _pendingstart + _pendinglength) {
+                // Moving away from the pending bytes, so write them.
+                flush();
+            }
+        }
+        _position = newPosition;
         return this;
     }
 
@@ -588,7 +1157,12 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         // _backing does not "recognize" the first jump past the header until
         // that happens.
         // This just ensures we don't return negative lengths.
-        long size = _backing.length() - _head.offset;
+        long size = _channel.size() - _head.offset;
+        synchronized (_pendinglock) {
+            if (_pendinglength > 0) {
+                size = Math.max(size, _pendingstart + _pendinglength);
+            }
+        }
         return (size >= 0) ? size : 0;
     }
 
@@ -599,7 +1173,7 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      * @throws IOException
      */
     public long picoSize() throws IOException {
-        return _backing.length();
+        return _channel.size();
     }
 
     // ======================================================================
@@ -621,27 +1195,56 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         }
         if (!_open)
             return -1;
+        int length = (_mapped == null) ? _prefetch.read(dst, _position) : read(dst, _position);
+        if (length > 0) {
+            _position += length;
+        }
+        return length;
+    }
 
-        // Make an attempt to read up to r bytes from the channel, where
-        // r is the number of bytes remaining in the buffer, that is,
-        // dst.remaining(), at the moment this method is invoked.
-        long _here = position();
+    /**
+     * Read bytes starting at the given position into the buffer. This is
+     * like {@link #read(ByteBuffer)}, except that the position of this
+     * channel is neither used nor changed.
+     * 
+     * @param dst The buffer to get the bytes.
+     * @param position The position of the first byte, excluding the header.
+     * @return The number of bytes read, or -1 if the position is at or past
+     *         the end of the file.
+     * @throws IOException The file cannot be read.
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (dst == null) {
+            throw new NullPointerException("The destination buffer is null.");
+        }
+        if (dst.limit() == 0) {
+            throw new IllegalArgumentException("The destination buffer has zero length.");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("The position is negative.");
+        }
+        if (!_open)
+            return -1;
+        _flushOverlap(position, dst.remaining());
 
-        // Build temporary storage.
-        int remain = dst.remaining();
-        byte[] data = new byte[remain];
+        if (_mapped != null) {
+            return _readMapped(dst, position);
+        }
+        PageCache cache = PageCache.getShared();
+        if (cache != null && _identity != null) {
+            return _readCached(cache, dst, position);
+        }
 
-        int length = _backing.read(data, 0, remain);
+        // Read straight into the buffer and decrypt the bytes in place. This
+        // keeps direct buffers off the heap.
+        int start = dst.position();
+        int length = _channel.read(dst, position + _head.offset);
 
         if (length > 0) {
-
-            // Iterate thru each byte of temporary storage and decrypt those
-            // bytes back
-            // into the buffer
-            for (int index = 0; index < length; index++) {
-                data[index] = _head.crypt(data[index], index + _here);
-            } // Decrypt all bytes.
-            dst.put(data, 0, length);
+            ByteBuffer data = dst.duplicate();
+            data.position(start);
+            data.limit(start + length);
+            _head.crypt(data, position);
         }
         return length;
     }
@@ -656,37 +1259,296 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
     public int read() throws IOException {
         if (!_open)
             return -1;
-        long _here = position();
-        int val = _backing.read();
-        if (val >= 0) {
-            val = _head.crypt((byte) val, _here);
+        int datum;
+        if (_mapped == null) {
+            datum = _prefetch.read(_position);
+        } else {
+            _single.clear();
+            datum = (read(_single, _position) <= 0) ? -1 : _single.get(0) & 0xff;
         }
-        return val;
+        if (datum >= 0) {
+            _position++;
+        }
+        return datum;
     }
 
-    public ByteBuffer readBacking() throws IOException {
-        if (!_open) {
-            return null;
+    /**
+     * Read decoded pages from the cache into the buffer, reading and decoding
+     * any pages the cache does not hold.
+     * 
+     * @param cache The cache.
+     * @param dst The buffer to get the bytes.
+     * @param here The position of the first byte.
+     * @return The number of bytes read, or -1 at the end of the file.
+     * @throws IOException The file cannot be read.
+     */
+    private int _readCached(PageCache cache, ByteBuffer dst, long here) throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            long index = (here + total) / PageCache.PAGE_SIZE;
+            ByteBuffer page = cache.get(_identity, index);
+            if (page == null) {
+                long generation = cache.generation(_identity);
+                long start = index * PageCache.PAGE_SIZE;
+                page = ByteBuffer.allocateDirect(PageCache.PAGE_SIZE);
+                _readFully(page, start + _head.offset);
+                page.flip();
+                _head.crypt(page.duplicate(), start);
+                if (page.limit() == 0) {
+                    break;
+                }
+                if (page.limit() == PageCache.PAGE_SIZE) {
+                    // Only keep full pages, since the file may grow.
+                    cache.put(_identity, index, generation, _stamp, page);
+                    page = page.duplicate();
+                }
+            }
+            int skip = (int) (here + total - index * PageCache.PAGE_SIZE);
+            if (skip >= page.limit()) {
+                // The page ends before the position, at the end of the file.
+                break;
+            }
+            page.position(skip);
+            int length = Math.min(dst.remaining(), page.remaining());
+            page.limit(skip + length);
+            dst.put(page);
+            total += length;
+            if (skip + length < PageCache.PAGE_SIZE && dst.hasRemaining()) {
+                // A short page is the last page of the file.
+                break;
+            }
+        } // Read across pages.
+        return (total == 0) ? -1 : total;
+    }
+
+    /**
+     * Get the number of writes made to the physical file through every open
+     * instance, including this one. Bytes decoded before the number changed
+     * may be stale.
+     * 
+     * @return The number of writes, or zero if the file is not known.
+     */
+    long writes() {
+        WriteCount count = _writecount;
+        return (count == null) ? 0L : count.get();
+    }
+
+    /**
+     * Drop the bytes read ahead and the pages held in the shared cache for a
+     * range of the file, and tell other instances open on it. This is done after the bytes are written, so a page
+     * read before the write completes is not kept.
+     * 
+     * @param start The position of the first byte.
+     * @param end The position just past the last byte, or
+     *            {@link Long#MAX_VALUE} for the rest of the file.
+     */
+    private void _invalidate(long start, long end) {
+        _prefetch.written(start, end, _writecount);
+        PageCache cache = PageCache.getShared();
+        if (cache != null && _identity != null) {
+            cache.invalidate(_identity, start, end);
         }
+    }
 
-        ByteBuffer dst = ByteBuffer.allocate((int) _backing.length());
+    /**
+     * Read from the mapping into the buffer, decrypting the bytes in place.
+     * 
+     * @param dst The buffer to get the bytes.
+     * @param here The position of the first byte.
+     * @return The number of bytes read, or -1 at the end of the file.
+     * @throws IOException The file cannot be mapped.
+     */
+    private int _readMapped(ByteBuffer dst, long here) throws IOException {
+        long at = here + _head.offset;
+        long end = _channel.size();
+        if (at >= end)
+            return -1;
+        int total = 0;
+        while (dst.hasRemaining() && at < end) {
+            ByteBuffer window = _mapped.window(at, end);
+            int length = Math.min(dst.remaining(), window.remaining());
+            window.limit(window.position() + length);
+            int start = dst.position();
+            dst.put(window);
+            ByteBuffer data = dst.duplicate();
+            data.position(start);
+            data.limit(start + length);
+            _head.crypt(data, here + total);
+            at += length;
+            total += length;
+        } // Read across windows.
+        return total;
+    }
 
-        int length;
+    /**
+     * Encrypt the buffer into the mapping, a piece at a time through a buffer
+     * of this thread, so the mapping only ever holds encrypted bytes. The
+     * bytes must lie within the file.
+     * 
+     * @param src The buffer holding the bytes.
+     * @param here The position of the first byte.
+     * @throws IOException The file cannot be mapped.
+     */
+    private void _writeMapped(ByteBuffer src, long here) throws IOException {
+        long at = here + _head.offset;
+        long end = _channel.size();
+        ByteBuffer scratch = src.isDirect() ? _directscratch.get() : _heapscratch.get();
+        while (src.hasRemaining()) {
+            ByteBuffer window = _mapped.window(at, end);
+            int length = Math.min(Math.min(src.remaining(), window.remaining()),
+                    scratch.capacity());
+            _encrypt(src, scratch, length, here);
+            window.put(scratch);
+            at += length;
+            here += length;
+        } // Write across windows.
+    }
 
-        // 4K buffer.
-        byte[] buf = new byte[4 * (2 ^ 10)];
+    /**
+     * Encrypt the next bytes of a buffer into a scratch buffer. The source is
+     * only read, though its position moves past the bytes.
+     * 
+     * @param src The buffer holding the bytes.
+     * @param scratch The buffer to get the encrypted bytes, from zero to the
+     *            limit.
+     * @param length The number of bytes, at most the capacity of the scratch
+     *            buffer.
+     * @param position The position of the first byte, excluding the header.
+     */
+    private void _encrypt(ByteBuffer src, ByteBuffer scratch, int length, long position) {
+        scratch.clear();
+        if (src.hasArray() && scratch.hasArray()) {
+            _head.crypt(src.array(), src.arrayOffset() + src.position(), scratch.array(), 0,
+                    length, position);
+            src.position(src.position() + length);
+            scratch.limit(length);
+        } else {
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            scratch.put(part);
+            src.position(src.position() + length);
+            scratch.flip();
+            _head.crypt(scratch, position);
+        }
+    }
 
-        _backing.seek(0);
-        
-        // Read up to 4K blocks from the backing file
-        while ((length = _backing.read(buf)) > 0) {
-            try {
-                // store the block of the correct size into the ByteBuffer.
-                dst.put(buf, 0, length);
-            } catch (BufferOverflowException e) {
-                return null;
+    /**
+     * Get a stream that reads a range of the decoded data. Each stream keeps
+     * its own position and reads with positional reads, so it neither uses
+     * nor changes the position of this file. Any number of streams can be
+     * used at once from different threads, provided nothing writes the file
+     * meanwhile. Closing a stream does not close the file.
+     * 
+     * @param start The position of the first byte, excluding the header.
+     * @param length The most bytes to read. The stream ends sooner if the
+     *            file does.
+     * @return The stream.
+     */
+    public InputStream openRange(long start, long length) {
+        if (start < 0 || length < 0) {
+            throw new IllegalArgumentException("The range is negative.");
+        }
+        return new RangeInputStream(start, length);
+    }
+
+    /**
+     * A stream over a range of the decoded data, read with positional reads.
+     */
+    private class RangeInputStream extends InputStream {
+
+        /** The position of the next byte. */
+        private long _next;
+
+        /** The position just past the range. */
+        private final long _end;
+
+        /** A one-byte buffer for the single-byte read. */
+        private final ByteBuffer _byte = ByteBuffer.allocate(1);
+
+        /**
+         * Make a new stream over the given range.
+         * 
+         * @param start The position of the first byte.
+         * @param length The length of the range.
+         */
+        RangeInputStream(long start, long length) {
+            _next = start;
+            _end = (Long.MAX_VALUE - start < length) ? Long.MAX_VALUE : start + length;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.io.InputStream#read()
+         */
+        @Override
+        public int read() throws IOException {
+            if (_next >= _end)
+                return -1;
+            _byte.clear();
+            if (PicoFile.this.read(_byte, _next) <= 0)
+                return -1;
+            _next++;
+            return _byte.get(0) & 0xff;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.io.InputStream#read(byte[], int, int)
+         */
+        @Override
+        public int read(byte[] data, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > data.length - off) {
+                throw new IndexOutOfBoundsException("The range is outside the array.");
+            }
+            if (len == 0)
+                return 0;
+            if (_next >= _end)
+                return -1;
+            len = (int) Math.min(len, _end - _next);
+            int length = PicoFile.this.read(ByteBuffer.wrap(data, off, len), _next);
+            if (length > 0) {
+                _next += length;
             }
+            return length;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.io.InputStream#skip(long)
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= 0)
+                return 0L;
+            long skipped = Math.min(n, Math.max(0L, Math.min(_end, size()) - _next));
+            _next += skipped;
+            return skipped;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.io.InputStream#available()
+         */
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE,
+                    Math.max(0L, Math.min(_end, size()) - _next));
+        }
+    }
+
+    public ByteBuffer readBacking() throws IOException {
+        if (!_open) {
+            return null;
         }
+
+        // Read the whole backing file, header and all.
+        flush();
+        ByteBuffer dst = ByteBuffer.allocate((int) _channel.size());
+        _readFully(dst, 0L);
         return dst;
     }
 
@@ -701,10 +1563,26 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
      */
     @Override
     public PicoFile truncate(long size) throws IOException {
+        flush();
+        if (_mapped != null) {
+            _mapped.invalidate();
+        }
         if (_open)
             _backing.setLength(size + _head.offset);
         _hashvalid = false;
-        _resetDigest();
+        if (_storage != null) {
+            _storage.truncate(size);
+        }
+        if (_tree != null) {
+            _tree.truncate(size);
+        }
+        synchronized (_digestlock) {
+            // Keep the digest, or at least its checkpoints, below the cut.
+            if (_digestvalidto > size) {
+                _rewindDigest(size);
+            }
+        }
+        _invalidate(size, Long.MAX_VALUE);
         return this;
     }
 
@@ -721,45 +1599,189 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
         if (src == null) {
             throw new NullPointerException("The source buffer is null.");
         }
+        int count = src.remaining();
+        if (_open && count > 0 && count < PENDING_SIZE) {
+            // Collect small writes, and write them together later.
+            synchronized (_pendinglock) {
+                _pend(_position, count);
+                src.get(_pending, _pendinglength, count);
+                _pendinglength += count;
+            }
+            _position += count;
+            return count;
+        }
+        count = write(src, _position);
+        if (count > 0) {
+            _position += count;
+        }
+        return count;
+    }
+
+    /**
+     * Make room for bytes at the end of the pending bytes. If the bytes do
+     * not follow the pending bytes, or do not fit, the pending bytes are
+     * written first. This must be called while holding
+     * {@link #_pendinglock}.
+     * 
+     * @param position The position of the first byte.
+     * @param count The number of bytes, which must be less than
+     *            {@link #PENDING_SIZE}.
+     * @throws IOException The pending bytes cannot be written.
+     */
+    private void _pend(long position, int count) throws IOException {
+        if (_pendinglength > 0
+                && (position != _pendingstart + _pendinglength || _pendinglength + count > PENDING_SIZE)) {
+            flush();
+        }
+        if (_pendinglength == 0) {
+            _pendingstart = position;
+        }
+        // The bytes are digested when they are written, but the hash is out
+        // of date from now on.
+        _hashvalid = false;
+        _prefetch.invalidate(position, position + count);
+    }
+
+    /**
+     * Encrypt and write any bytes collected from small writes. This happens
+     * anyway when the position moves elsewhere, when the bytes are read, and
+     * on {@link #finish()} and {@link #close()}, so there is seldom a need to
+     * call it. Unlike {@link #finish()}, this does not compute the hash or
+     * write the header.
+     * 
+     * @throws IOException The bytes cannot be written.
+     */
+    public void flush() throws IOException {
+        synchronized (_pendinglock) {
+            if (_pendinglength == 0 || !_open) {
+                return;
+            }
+            int count = _pendinglength;
+            _pendinglength = 0;
+            _writeAt(ByteBuffer.wrap(_pending, 0, count), _pendingstart);
+        }
+    }
+
+    /**
+     * Write the pending bytes if any of them lie in a range, so the range
+     * can be read or written directly.
+     * 
+     * @param position The position of the first byte of the range.
+     * @param count The number of bytes in the range.
+     * @throws IOException The bytes cannot be written.
+     */
+    private void _flushOverlap(long position, long count) throws IOException {
+        synchronized (_pendinglock) {
+            if (_pendinglength > 0 && position < _pendingstart + _pendinglength
+                    && _pendingstart < position + count) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write bytes from the buffer starting at the given position. This is
+     * like {@link #write(ByteBuffer)}, except that the position of this
+     * channel is neither used nor changed. If the position is past the end
+     * of the file, the file grows to hold the bytes.
+     * <p>
+     * Any number of threads may write at once with this method. Writes to
+     * ranges that overlap are serialized, but writes to separate ranges
+     * usually proceed in parallel. The hash is brought up to date by
+     * {@link #finish()}, which must only be called once all writers are done.
+     * 
+     * @param src The buffer holding the bytes.
+     * @param position The position of the first byte, excluding the header.
+     * @return The number of bytes written.
+     * @throws IOException The file cannot be written.
+     */
+    public int write(ByteBuffer src, long position) throws IOException {
+        if (src == null) {
+            throw new NullPointerException("The source buffer is null.");
+        }
 
         // Is there something to actually write in source.
         if (src.limit() == 0 || src.remaining() == 0) {
             throw new IllegalArgumentException(
                     "The source buffer has zero length or zero remaining bytes.");
         }
+        if (position < 0) {
+            throw new IllegalArgumentException("The position is negative.");
+        }
 
         if (!_open)
             return -1;
+        _flushOverlap(position, src.remaining());
+        return _writeAt(src, position);
+    }
 
-        // based on the specification _hear is p.
-        long _here = position();
-
+    /**
+     * Write bytes from the buffer starting at the given position, without
+     * regard to any pending bytes.
+     * 
+     * @param src The buffer holding the bytes.
+     * @param position The position of the first byte, excluding the header.
+     * @return The number of bytes written.
+     * @throws IOException The file cannot be written.
+     */
+    private int _writeAt(ByteBuffer src, long position) throws IOException {
         // Make an attempt to write up to r bytes to the channel, where
         // r is the number of bytes remaining in the buffer, that is,
         // src.remaining(), at the moment this method is invoked.
-        // NOTE: not good to use the src.array() since that is the backing array
-        // which
-        // reflects the entire buffer and not from p to remaining.
-        byte[] encr = new byte[src.remaining()];
+        int count = src.remaining();
+
+        // Typed values changed before any data is written can still move the
+        // data, so put them in place before the data lands.
+        if (_head.isMetadataChanged()) {
+            synchronized (_head) {
+                if (_channel.size() <= _head.offset) {
+                    _head.updateMetadata(true);
+                }
+            }
+        }
 
-        // Update the digest to the start of the write.
-        _updateDigest();
+        _locks.lock(position, position + count);
+        try {
+            _digestWrite(position, src);
+            _writeLocked(src, position, count);
+        } finally {
+            _locks.unlock(position, position + count);
+            _invalidate(position, position + count);
+        }
+        return count;
+    }
 
-        // Have we reached source's limit?
-        for (int index = 0; src.hasRemaining(); index++) {
-            // The unencrypted data.
-            byte b = src.get();
-            _digest.update(b);
-            _digestvalidto++;
-            // encrypt it into the buffer.
-            encr[index] = _head.crypt(b, index + _here);
+    /**
+     * Encrypt and write bytes, while holding the lock for their range.
+     * 
+     * @param src The buffer holding the bytes.
+     * @param position The position of the first byte, excluding the header.
+     * @param count The number of bytes.
+     * @throws IOException The file cannot be written.
+     */
+    private void _writeLocked(ByteBuffer src, long position, int count) throws IOException {
+        long at = position + _head.offset;
+        if (_mapped != null && at + count <= _channel.size()) {
+            // The bytes lie within the file, so encode them into the mapping.
+            _writeMapped(src, position);
+            return;
         }
-        _backing.write(encr);
-        return encr.length;
+
+        // Encrypt a piece at a time into a buffer of this thread, and write
+        // that. The caller's buffer is only read.
+        ByteBuffer scratch = src.isDirect() ? _directscratch.get() : _heapscratch.get();
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), scratch.capacity());
+            _encrypt(src, scratch, length, position);
+            _writeFully(scratch, at);
+            at += length;
+            position += length;
+        } // Write all pieces.
     }
 
     /**
-     * Write a byte at the current position.
+     * Write a byte at the current position. The byte is collected with any
+     * adjacent bytes, and written with them later.
      * 
      * @param datum The byte.
      * @throws IOException The byte cannot be written.
@@ -767,19 +1789,10 @@ public class PicoFile implements WritableByteChannel, ReadableByteChannel, Seeka
     public void write(int datum) throws IOException {
         if (!_open)
             return;
-        datum &= 0xff;
-        long _here = position();
-
-        // Are we synced up?
-        if (_here == _digestvalidto) {
-
-            // Yes, digest the byte and move the valid to pointer.
-            _digest.update((byte) datum);
-            _digestvalidto++;  // JMC: Was missing.
-
-        }  // Otherwise, advancing of the position will destroy the digest sync.
-
-        datum = _head.crypt((byte) datum, _here);
-        _backing.write(datum);
+        synchronized (_pendinglock) {
+            _pend(_position, 1);
+            _pending[_pendinglength++] = (byte) datum;
+        }
+        _position++;
     }
 }
@@ -11,8 +11,14 @@
 
 package ornl.pico.io;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 import ornl.pico.PicoException;
@@ -40,6 +46,69 @@ public class PicoHeader implements PicoStructure {
     /** The key used to encrypt the data. The key size is inferred. */
     private byte[] _key = null;
 
+    /**
+     * The metadata stored between the key and the data, apart from the hash
+     * algorithm entry.
+     */
+    private byte[] _metadata = new byte[0];
+
+    /** The algorithm that computes the hash. */
+    private HashAlgorithm _algorithm = HashAlgorithm.MD5;
+
+    /**
+     * The typed values, or {@code null} if they have not been parsed from the
+     * metadata yet.
+     */
+    private PicoMetadata _values = null;
+
+    /** The padding to leave after the metadata entries when they grow. */
+    private int _reserve = 0;
+
+    /**
+     * The keystream tile used by the bulk crypt methods. This is built on
+     * first use from the key, and discarded whenever the key changes.
+     */
+    private Tile _tile = null;
+
+    /** The minimum period of a keystream tile, in bytes. */
+    private static final int TILE_MINIMUM = 1024;
+
+    /**
+     * The key repeated to fill a buffer whose period is a multiple of both the
+     * key length and the granularity of the {@link CryptEngine}. Because the
+     * period is a multiple of the key length, the keystream byte for data
+     * position {@code p} is found at tile index {@code p % period}. The tile
+     * carries one extra step past the period so that a step starting anywhere
+     * before the period never has to wrap.
+     */
+    private static final class Tile {
+        /** The keystream bytes. */
+        final byte[] bytes;
+
+        /** The period of the keystream in the tile. */
+        final int period;
+
+        /**
+         * Build the tile for the given key.
+         * 
+         * @param key The key.
+         * @param step The granularity of the engine that will use the tile.
+         */
+        Tile(byte[] key, int step) {
+            int keylen = key.length;
+            int unit = keylen;
+            while (unit % step != 0) {
+                unit += keylen;
+            } // Find the least common multiple of the key length and step.
+            int count = (TILE_MINIMUM + unit - 1) / unit;
+            period = unit * count;
+            bytes = new byte[period + step];
+            for (int index = 0; index < bytes.length; index++) {
+                bytes[index] = key[index % keylen];
+            } // Lay down the keystream.
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -49,8 +118,13 @@ public class PicoHeader implements PicoStructure {
     public PicoHeader clone() {
         // Make a new header instance and then populate it.
         PicoHeader newheader = new PicoHeader();
-        newheader.hash = hash.clone();
+        newheader.hash = (hash == null) ? null : hash.clone();
         newheader._key = _key.clone();
+        newheader._metadata = _metadata.clone();
+        newheader._algorithm = _algorithm;
+        newheader._values = (_values == null) ? null : _values.copy();
+        newheader._reserve = _reserve;
+        newheader._tile = _tile;
         newheader.offset = offset;
         return newheader;
     }
@@ -86,12 +160,327 @@ public class PicoHeader implements PicoStructure {
             throw new IllegalArgumentException("The key is empty.");
         }
         this._key = key.clone();
+        this._tile = null;
 
         // This computes where the first byte of the pico encoded file resides.
-        this.offset = KEY_OFFSET + key.length;
+        this.offset = KEY_OFFSET + key.length + _metadataLength();
+        return this;
+    }
+
+    /**
+     * Get the algorithm that computes the hash.
+     * 
+     * @return The algorithm.
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return _algorithm;
+    }
+
+    /**
+     * Set the algorithm that computes the hash, and correct the offset to
+     * match. Algorithms other than {@link HashAlgorithm#MD5} store the hash
+     * in a metadata entry, which makes the header longer.
+     * 
+     * @param algorithm The algorithm.
+     * @return This header, for chaining.
+     */
+    public PicoHeader setHashAlgorithm(HashAlgorithm algorithm) {
+        if (algorithm == null) {
+            throw new NullPointerException("The hash algorithm is null.");
+        }
+        _algorithm = algorithm;
+        if (_key != null) {
+            offset = KEY_OFFSET + _key.length + _metadataLength();
+        }
+        return this;
+    }
+
+    /**
+     * Get the length of all the metadata, including the hash algorithm
+     * entry.
+     * 
+     * @return The length, in bytes.
+     */
+    private int _metadataLength() {
+        return _hashEntryLength() + _metadata.length;
+    }
+
+    /**
+     * Get the length of the hash algorithm entry.
+     * 
+     * @return The length, or zero if the entry is not needed.
+     */
+    private int _hashEntryLength() {
+        if (_algorithm == HashAlgorithm.MD5) {
+            return 0;
+        }
+        return (int) (META_TAG_LENGTH * 3 + META_SIZE_LENGTH) + _algorithm.getLength();
+    }
+
+    /**
+     * Get the typed values kept in the metadata. They are parsed the first
+     * time this is called, and the values returned are those of this header,
+     * so any change to them is written with the header.
+     * 
+     * @return The values, which are empty if there are none.
+     * @throws PicoException The values are damaged.
+     */
+    public PicoMetadata getMetadata() throws PicoException {
+        if (_values == null) {
+            byte[] value = findMetadata(META_VALUES);
+            _values = (value == null) ? new PicoMetadata() : PicoMetadata.parse(value);
+        }
+        return _values;
+    }
+
+    /**
+     * Set the padding to leave after the metadata entries. The padding is
+     * added now, and again whenever the entries outgrow it, so that later
+     * changes to the metadata can be written over the old without moving the
+     * data. This changes the offset to the data, so it must be done before
+     * any data is written.
+     * 
+     * @param bytes The number of bytes of padding.
+     * @return This header, for chaining.
+     */
+    public PicoHeader setMetadataReserve(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("The reserve cannot be negative.");
+        }
+        _reserve = bytes;
+        byte[] entries = _entries(META_END, null);
+        if (_metadata.length < entries.length + bytes) {
+            setMetadataBytes(Arrays.copyOf(entries, entries.length + bytes));
+        }
+        return this;
+    }
+
+    /**
+     * Get the padding left after the metadata entries when they grow.
+     * 
+     * @return The number of bytes of padding.
+     */
+    public int getMetadataReserve() {
+        return _reserve;
+    }
+
+    /**
+     * Get the metadata stored between the key and the data, apart from the
+     * hash algorithm entry. This is a sequence of entries, as described in
+     * {@link PicoStructure}, possibly followed by padding.
+     * <p>
+     * <b>Caution</b>: The metadata itself is returned, and not a copy.
+     * 
+     * @return The metadata, which is empty if there is none.
+     */
+    byte[] getMetadataBytes() {
+        return _metadata;
+    }
+
+    /**
+     * Set the metadata stored between the key and the data, apart from the
+     * hash algorithm entry, and correct the offset to match. The array is not
+     * copied.
+     * 
+     * @param metadata The metadata.
+     * @return This header, for chaining.
+     */
+    PicoHeader setMetadataBytes(byte[] metadata) {
+        if (metadata == null) {
+            throw new NullPointerException("The metadata is null.");
+        }
+        _metadata = metadata;
+        if (_key != null) {
+            offset = KEY_OFFSET + _key.length + _metadataLength();
+        }
         return this;
     }
 
+    /**
+     * Take the metadata read from a file. If it starts with a hash algorithm
+     * entry, the algorithm and the hash are taken from that, and the rest is
+     * kept as the metadata.
+     * 
+     * @param metadata All the metadata between the key and the data.
+     * @return This header, for chaining.
+     * @throws PicoException The hash algorithm entry is damaged.
+     */
+    PicoHeader readMetadata(byte[] metadata) throws PicoException {
+        ByteBuffer buf = ByteBuffer.wrap(metadata).order(ORDER);
+        if (buf.remaining() >= META_TAG_LENGTH + META_SIZE_LENGTH
+                && buf.getShort(0) == META_HASH) {
+            buf.position((int) META_TAG_LENGTH);
+            int length = buf.getInt();
+            if (length < META_TAG_LENGTH * 2 || length > buf.remaining()) {
+                throw new PicoException("Damaged hash algorithm entry.");
+            }
+            HashAlgorithm algorithm = HashAlgorithm.forId(buf.getShort());
+            int hashlen = buf.getShort();
+            if (hashlen != algorithm.getLength() || hashlen != length - META_TAG_LENGTH * 2) {
+                throw new PicoException("Incorrect hash length for " + algorithm + ".");
+            }
+            hash = new byte[hashlen];
+            buf.get(hash);
+            _algorithm = algorithm;
+            metadata = Arrays.copyOfRange(metadata, buf.position(), metadata.length);
+        }
+        _values = null;
+        return setMetadataBytes(metadata);
+    }
+
+    /**
+     * Find the value of a metadata entry.
+     * 
+     * @param tag The tag of the entry.
+     * @return The value, or {@code null} if there is no such entry.
+     */
+    byte[] findMetadata(short tag) {
+        ByteBuffer buf = ByteBuffer.wrap(_metadata).order(ORDER);
+        while (buf.remaining() >= META_TAG_LENGTH + META_SIZE_LENGTH) {
+            short here = buf.getShort();
+            if (here == META_END) {
+                break;
+            }
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                // The entry is damaged. Ignore the rest.
+                break;
+            }
+            if (here == tag) {
+                byte[] value = new byte[length];
+                buf.get(value);
+                return value;
+            }
+            buf.position(buf.position() + length);
+        } // Search all entries.
+        return null;
+    }
+
+    /**
+     * Store a metadata entry, replacing any entry with the same tag. A new
+     * entry goes after the others. If the entries still fit in the space the
+     * metadata already takes, they are written over it and the rest is
+     * cleared, so the offset does not change and the header can be rewritten
+     * in place. Otherwise the metadata grows, with the reserve as padding.
+     * 
+     * @param entry The entry, including its tag and length, as made by
+     *            {@link #makeMetadata(short, byte[])}.
+     * @return This header, for chaining.
+     */
+    PicoHeader putMetadata(byte[] entry) {
+        short tag = ByteBuffer.wrap(entry).order(ORDER).getShort();
+        return _store(_entries(tag, entry));
+    }
+
+    /**
+     * Remove a metadata entry, if there is one. The offset does not change.
+     * 
+     * @param tag The tag of the entry.
+     * @return This header, for chaining.
+     */
+    PicoHeader removeMetadata(short tag) {
+        return _store(_entries(tag, null));
+    }
+
+    /**
+     * Write any change to the typed values into the metadata.
+     * 
+     * @param grow If true, the metadata may grow to hold the values, which
+     *            changes the offset. If false and the values do not fit,
+     *            nothing is changed.
+     * @return True if the values are now in the metadata.
+     */
+    boolean updateMetadata(boolean grow) {
+        if (_values == null || !_values.isChanged()) {
+            return true;
+        }
+        byte[] entries = _entries(META_VALUES, _values.isEmpty() ? null : _values.encode());
+        if (!grow && entries.length > _metadata.length) {
+            return false;
+        }
+        _store(entries);
+        _values.setChanged(false);
+        return true;
+    }
+
+    /**
+     * Determine whether the typed values have changed since they were last
+     * written into the metadata.
+     * 
+     * @return True if the values have changed.
+     */
+    boolean isMetadataChanged() {
+        return _values != null && _values.isChanged();
+    }
+
+    /**
+     * Get the metadata entries, without any end tag or padding, with one
+     * entry replaced.
+     * 
+     * @param tag The tag of the entry to replace.
+     * @param entry The new entry, which goes in place of the old one or else
+     *            after the others, or {@code null} to remove the entry.
+     * @return The entries.
+     */
+    private byte[] _entries(short tag, byte[] entry) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(_metadata.length);
+        ByteBuffer buf = ByteBuffer.wrap(_metadata).order(ORDER);
+        while (buf.remaining() >= META_TAG_LENGTH + META_SIZE_LENGTH) {
+            int start = buf.position();
+            short here = buf.getShort();
+            if (here == META_END) {
+                break;
+            }
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                // The entry is damaged. Drop it and the rest.
+                break;
+            }
+            int end = buf.position() + length;
+            if (here != tag) {
+                out.write(_metadata, start, end - start);
+            } else if (entry != null) {
+                out.write(entry, 0, entry.length);
+                entry = null;
+            }
+            buf.position(end);
+        } // Copy all entries.
+        if (entry != null) {
+            out.write(entry, 0, entry.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Make the given entries the metadata, over the old metadata if they fit
+     * and in new space, with the reserve as padding, if not.
+     * 
+     * @param entries The entries.
+     * @return This header, for chaining.
+     */
+    private PicoHeader _store(byte[] entries) {
+        if (entries.length <= _metadata.length) {
+            System.arraycopy(entries, 0, _metadata, 0, entries.length);
+            Arrays.fill(_metadata, entries.length, _metadata.length, (byte) 0);
+            return this;
+        }
+        return setMetadataBytes(Arrays.copyOf(entries, entries.length + _reserve));
+    }
+
+    /**
+     * Make a metadata entry.
+     * 
+     * @param tag The tag.
+     * @param value The value.
+     * @return The entry, including its tag and length.
+     */
+    static byte[] makeMetadata(short tag, byte[] value) {
+        ByteBuffer buf = ByteBuffer.allocate(
+                (int) (META_TAG_LENGTH + META_SIZE_LENGTH) + value.length).order(ORDER);
+        buf.putShort(tag).putInt(value.length).put(value);
+        return buf.array();
+    }
+
     /**
      * Perform the encryption or decryption of the specified byte given the
      * (zero-based) position within the data section of the file.
@@ -107,6 +496,128 @@ public class PicoHeader implements PicoStructure {
         return (byte) (datum ^ _key[(int) (position % _key.length)]);
     }
 
+    /**
+     * Perform the encryption or decryption of a range of bytes in place. The
+     * first byte of the range is at the given (zero-based) position within the
+     * data section of the file, and the rest follow consecutively.
+     * <p>
+     * This produces exactly the same result as invoking
+     * {@link #crypt(byte, long)} on each byte, but works a word or a vector at
+     * a time against a precomputed keystream tile (see {@link CryptEngine}).
+     * 
+     * @param data The bytes to encrypt or decrypt.
+     * @param off The offset of the first byte in the array.
+     * @param len The number of bytes to process.
+     * @param position The position of the first byte.
+     */
+    public final void crypt(byte[] data, int off, int len, long position) {
+        crypt(data, off, data, off, len, position);
+    }
+
+    /**
+     * Perform the encryption or decryption of a range of bytes, storing the
+     * result in another array. The first byte of the range is at the given
+     * (zero-based) position within the data section of the file, and the rest
+     * follow consecutively.
+     * <p>
+     * The source and destination may be the same array, but then the ranges
+     * must either be identical or not overlap.
+     * 
+     * @param src The bytes to encrypt or decrypt.
+     * @param srcoff The offset of the first byte in the source.
+     * @param dst The array to get the result.
+     * @param dstoff The offset of the first byte in the destination.
+     * @param len The number of bytes to process.
+     * @param position The position of the first byte.
+     */
+    public final void crypt(byte[] src, int srcoff, byte[] dst, int dstoff, int len,
+            long position) {
+        if (src == null) {
+            throw new NullPointerException("The source array is null.");
+        }
+        if (dst == null) {
+            throw new NullPointerException("The destination array is null.");
+        }
+        if (len < 0 || srcoff < 0 || dstoff < 0 || srcoff > src.length - len
+                || dstoff > dst.length - len) {
+            throw new IndexOutOfBoundsException("The range is outside the array.");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("The position is negative.");
+        }
+        Tile tile = _getTile();
+        CryptEngine.INSTANCE.xor(src, srcoff, dst, dstoff, len, tile.bytes, tile.period,
+                (int) (position % tile.period));
+    }
+
+    /**
+     * Perform the encryption or decryption of the bytes in a buffer, in place.
+     * The bytes from the buffer's position up to its limit are processed, and
+     * the first of these is at the given (zero-based) position within the data
+     * section of the file. The buffer's position, limit, and mark are not
+     * changed.
+     * <p>
+     * Buffers backed by an accessible array use the same path as
+     * {@link #crypt(byte[], int, int, long)}. Other buffers, including direct
+     * buffers, are processed a {@code long} at a time using the buffer's own
+     * byte order, so the data never has to be copied onto the heap.
+     * 
+     * @param data The buffer to encrypt or decrypt.
+     * @param position The position of the byte at the buffer's position.
+     * @throws java.nio.ReadOnlyBufferException The buffer is read-only.
+     */
+    public final void crypt(ByteBuffer data, long position) {
+        if (data == null) {
+            throw new NullPointerException("The buffer is null.");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("The position is negative.");
+        }
+        int here = data.position();
+        int len = data.remaining();
+        if (data.hasArray()) {
+            crypt(data.array(), data.arrayOffset() + here, len, position);
+            return;
+        }
+        Tile tile = _getTile();
+        int index = (int) (position % tile.period);
+
+        // Read the tile in the same byte order as the buffer, so that the
+        // bytes line up. The tile has at least a word of slack.
+        ByteBuffer keys = ByteBuffer.wrap(tile.bytes).order(data.order());
+        int word = ScalarCryptEngine.WORD;
+        int stop = here + (len & ~(word - 1));
+        while (here < stop) {
+            data.putLong(here, data.getLong(here) ^ keys.getLong(index));
+            here += word;
+            index += word;
+            if (index >= tile.period) {
+                index -= tile.period;
+            }
+        } // Process all whole words.
+        stop += len & (word - 1);
+        while (here < stop) {
+            data.put(here, (byte) (data.get(here) ^ tile.bytes[index++]));
+            here++;
+        } // Process the tail.
+    }
+
+    /**
+     * Get the keystream tile, building it if necessary. The tile is built from
+     * the key as it stands, so this must not be called until the key has been
+     * populated.
+     * 
+     * @return The tile.
+     */
+    private Tile _getTile() {
+        Tile tile = _tile;
+        if (tile == null) {
+            tile = new Tile(_key, CryptEngine.INSTANCE.granularity());
+            _tile = tile;
+        }
+        return tile;
+    }
+
     /**
      * Extract the pico header information from the provided data chunk.
      * Currently this includes a hashcode of the original bytes, the byte offset
@@ -134,34 +645,87 @@ public class PicoHeader implements PicoStructure {
         if (data.length < FIXED_HEADER_LENGTH) {
             throw new PicoException("Header too short.");
         }
+        return _getFixed(ByteBuffer.wrap(data).order(ORDER), 0);
+    }
 
+    /**
+     * Read a whole header, including the key and the metadata, from a buffer.
+     * The header is read from the position of the buffer, which is left at
+     * the start of the data. The byte order of the buffer does not matter,
+     * and is not changed. Nothing is allocated apart from the header itself.
+     * 
+     * @param src The buffer, which must hold the whole header.
+     * @return The header.
+     * @throws PicoException The header format is invalid, or the buffer does
+     *             not hold all of it.
+     */
+    public static PicoHeader decode(ByteBuffer src) throws PicoException {
+        if (src == null) {
+            throw new NullPointerException("The buffer is null.");
+        }
+        int start = src.position();
+        if (src.remaining() < FIXED_HEADER_LENGTH) {
+            throw new PicoException("Header too short.");
+        }
+        ByteOrder order = src.order();
+        try {
+            src.order(ORDER);
+            PicoHeader head = _getFixed(src, start);
+            long metastart = KEY_OFFSET + head._key.length;
+            if (head.offset < metastart || head.offset > src.remaining()) {
+                throw new PicoException("Header too short, or incorrect offset to the data.");
+            }
+            src.position(start + (int) KEY_OFFSET);
+            src.get(head._key);
+            byte[] metadata = new byte[(int) (head.offset - metastart)];
+            src.get(metadata);
+            head.readMetadata(metadata);
+            return head;
+        } finally {
+            src.order(order);
+        }
+    }
+
+    /**
+     * Check the magic string and the version at the start of a header.
+     * 
+     * @param buf The buffer, in {@link PicoStructure#ORDER}, holding at least
+     *            the fixed header.
+     * @param start The index of the start of the header in the buffer.
+     * @throws PicoException The magic string or the version is wrong.
+     */
+    private static void _checkFixed(ByteBuffer buf, int start) throws PicoException {
         // Check the magic string.
-        if (!Arrays.equals(
-                MAGIC,
-                Arrays.copyOfRange(data, (int) MAGIC_OFFSET, (int) MAGIC_LENGTH
-                        + (int) MAGIC_OFFSET))) {
-            throw new PicoException("Incorrect magic string found; not a " + "Pico file?");
-        }
-
-        // The magic string checks out. Next we need to get the version.
-        // The version consists of a specific number of bytes, stored in
-        // network byte order. This is a little over-built, but it allows
-        // the maximum flexibility to re-order fields in crazy, perhaps
-        // insane, ways.
-        short major = ByteBuffer.wrap(data, (int) MAJOR_OFFSET, (int) MAJOR_LENGTH).order(ORDER)
-                .getShort();
-        short minor = ByteBuffer.wrap(data, (int) MINOR_OFFSET, (int) MINOR_LENGTH).order(ORDER)
-                .getShort();
+        for (int index = 0; index < MAGIC_LENGTH; index++) {
+            if (buf.get(start + (int) MAGIC_OFFSET + index) != MAGIC[index]) {
+                throw new PicoException("Incorrect magic string found; not a " + "Pico file?");
+            }
+        } // Check all of the magic string.
 
         // Verify the version. Pico is intended to be forward compatible, so
         // new versions can read old versions... but not necessarily the
         // reverse. So we should be able to read any prior version.
-        if (major > MAJOR && (major == MAJOR && minor > MINOR)) {
+        short major = buf.getShort(start + (int) MAJOR_OFFSET);
+        short minor = buf.getShort(start + (int) MINOR_OFFSET);
+        if (major > MAJOR || (major == MAJOR && minor > MINOR)) {
             // The version of the file is past the version of this library.
             // Don't read it.
             throw new PicoException("File version (" + major + "." + minor
                     + ") cannot be read by this software (" + MAJOR + "." + MINOR + ").");
         }
+    }
+
+    /**
+     * Read the fixed header. The key array is made, but not populated.
+     * 
+     * @param buf The buffer, in {@link PicoStructure#ORDER}, holding at least
+     *            the fixed header.
+     * @param start The index of the start of the header in the buffer.
+     * @return The header.
+     * @throws PicoException The header format is invalid.
+     */
+    private static PicoHeader _getFixed(ByteBuffer buf, int start) throws PicoException {
+        _checkFixed(buf, start);
         // We don't store the version; the version written would be the version
         // of this library, not the one read.
 
@@ -170,16 +734,19 @@ public class PicoHeader implements PicoStructure {
 
         // Now that the magic string and the version have checked out, get the
         // offset.
-        head.offset = ByteBuffer.wrap(data, (int) OFFSET_OFFSET, (int) OFFSET_LENGTH).order(ORDER)
-                .getInt();
+        head.offset = buf.getInt(start + (int) OFFSET_OFFSET);
 
         // Read the hash.
         head.hash = new byte[(int) HASH_LENGTH];
-        System.arraycopy(data, (int) HASH_OFFSET, head.hash, 0, (int) HASH_LENGTH);
+        for (int index = 0; index < HASH_LENGTH; index++) {
+            head.hash[index] = buf.get(start + (int) HASH_OFFSET + index);
+        } // Copy the hash.
 
         // Get the key size.
-        short keysize = ByteBuffer.wrap(data, (int) KEYSIZE_OFFSET, (int) KEYSIZE_LENGTH)
-                .order(ORDER).getShort();
+        short keysize = buf.getShort(start + (int) KEYSIZE_OFFSET);
+        if (keysize < 0) {
+            throw new PicoException("Incorrect key size.");
+        }
         head._key = new byte[keysize];
 
         // Ka-presto! Everything has been processed except the key. The caller
@@ -187,48 +754,291 @@ public class PicoHeader implements PicoStructure {
         return head;
     }
 
+    /**
+     * Get the length of this header, including the key and the metadata. This
+     * is the number of bytes {@link #encode(ByteBuffer)} writes.
+     * 
+     * @return The length of the header.
+     */
+    public int getLength() {
+        return (int) FIXED_HEADER_LENGTH + _key.length + _metadataLength();
+    }
+
     /**
      * Convert this header to a byte array, ready for writing.
      * 
      * @return The byte array to write.
      */
     byte[] putHeader() {
-        // Allocate the array.
-        byte[] data = new byte[(int) FIXED_HEADER_LENGTH + _key.length];
+        updateMetadata(true);
+        byte[] data = new byte[getLength()];
+        encode(ByteBuffer.wrap(data));
+        return data;
+    }
+
+    /**
+     * Write this header into a buffer, starting at its position, and leave the
+     * position just after the header. This allocates nothing, so one buffer
+     * can be used for many headers. The byte order of the buffer does not
+     * matter, and is not changed.
+     * 
+     * @param dst The buffer.
+     * @return The buffer, for chaining.
+     * @throws BufferOverflowException The buffer does not have room for
+     *             {@link #getLength()} bytes.
+     */
+    public ByteBuffer encode(ByteBuffer dst) {
+        if (dst == null) {
+            throw new NullPointerException("The buffer is null.");
+        }
 
-        // Store the magic string.
-        System.arraycopy(MAGIC, 0, data, (int) MAGIC_OFFSET, (int) MAGIC_LENGTH);
+        // Bring the typed values up to date, since they may change the size.
+        updateMetadata(true);
+        int length = getLength();
+        if (dst.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        int start = dst.position();
+        ByteOrder order = dst.order();
+        try {
+            dst.order(ORDER);
 
-        // Store the version.
-        ByteBuffer buf = ByteBuffer.allocate((int) MAJOR_LENGTH).order(ORDER);
-        buf.asShortBuffer().put(MAJOR);
-        System.arraycopy(buf.array(), 0, data, (int) MAJOR_OFFSET, (int) MAJOR_LENGTH);
-        buf = ByteBuffer.allocate((int) MINOR_LENGTH).order(ORDER);
-        buf.asShortBuffer().put(MINOR);
-        System.arraycopy(buf.array(), 0, data, (int) MINOR_OFFSET, (int) MINOR_LENGTH);
+            // Store the magic string and the version.
+            dst.position(start + (int) MAGIC_OFFSET);
+            dst.put(MAGIC);
+            dst.putShort(start + (int) MAJOR_OFFSET, MAJOR);
+            dst.putShort(start + (int) MINOR_OFFSET, MINOR);
 
-        // Store the key length.
-        buf = ByteBuffer.allocate((int) KEYSIZE_LENGTH).order(ORDER);
-        buf.asShortBuffer().put((short) _key.length);
-        System.arraycopy(buf.array(), 0, data, (int) KEYSIZE_OFFSET, (int) KEYSIZE_LENGTH);
+            // Store the key length.
+            dst.putShort(start + (int) KEYSIZE_OFFSET, (short) _key.length);
 
-        // If the offset is still zero, fix it. Assume no metadata for now.
-        if (offset <= 0)
-            offset = KEY_OFFSET + _key.length;
+            // If the offset is still zero, fix it.
+            if (offset <= 0)
+                offset = KEY_OFFSET + _key.length + _metadataLength();
 
-        // Store the offset.
-        buf = ByteBuffer.allocate((int) OFFSET_LENGTH).order(ORDER);
-        buf.asIntBuffer().put((int) offset);
-        System.arraycopy(buf.array(), 0, data, (int) OFFSET_OFFSET, (int) OFFSET_LENGTH);
+            // Store the offset.
+            dst.putInt(start + (int) OFFSET_OFFSET, (int) offset);
 
-        // Store the hash.
-        System.arraycopy(hash, 0, data, (int) HASH_OFFSET, (int) HASH_LENGTH);
+            // Store the hash. Only MD5 goes in the hash field; any other hash
+            // goes in the first metadata entry, and the field stays zero.
+            dst.position(start + (int) HASH_OFFSET);
+            if (_algorithm == HashAlgorithm.MD5 && hash != null) {
+                dst.put(hash, 0, (int) HASH_LENGTH);
+            } else {
+                for (int index = 0; index < HASH_LENGTH; index++) {
+                    dst.put((byte) 0);
+                } // Clear the hash field.
+            }
 
-        // Store the key.
-        System.arraycopy(_key, 0, data, (int) KEY_OFFSET, _key.length);
+            // Store the key.
+            dst.position(start + (int) KEY_OFFSET);
+            dst.put(_key);
 
-        // Done. Return the array.
-        return data;
+            // Store the hash algorithm entry, if there is one.
+            if (_algorithm != HashAlgorithm.MD5) {
+                dst.putShort(META_HASH).putInt(
+                        _hashEntryLength() - (int) (META_TAG_LENGTH + META_SIZE_LENGTH));
+                dst.putShort(_algorithm.getId()).putShort((short) _algorithm.getLength());
+                if (hash != null) {
+                    dst.put(hash, 0, _algorithm.getLength());
+                } else {
+                    for (int index = 0; index < _algorithm.getLength(); index++) {
+                        dst.put((byte) 0);
+                    } // The hash is not known yet, so store zeros.
+                }
+            }
+
+            // Store the metadata.
+            dst.put(_metadata);
+        } finally {
+            dst.order(order);
+        }
+        return dst;
+    }
+
+    /** The length of the start of a file read by {@link #probe(Path)}. */
+    static final int PROBE_LENGTH = 512;
+
+    /**
+     * The smallest buffer {@link #probe(Path, ByteBuffer)} can use: room for
+     * the fixed header, or for the longest hash algorithm entry.
+     */
+    static final int PROBE_MINIMUM = _probeMinimum();
+
+    /**
+     * Find the smallest buffer {@link #probe(Path, ByteBuffer)} can use.
+     * 
+     * @return The length of the buffer.
+     */
+    private static int _probeMinimum() {
+        int longest = 0;
+        for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+            longest = Math.max(longest, algorithm.getLength());
+        } // Find the longest hash.
+        return (int) Math.max(FIXED_HEADER_LENGTH, META_TAG_LENGTH + META_SIZE_LENGTH
+                + META_TAG_LENGTH * 2 + longest);
+    }
+
+    /** The buffer used by {@link #probe(Path)}, one per thread. */
+    private static final ThreadLocal<ByteBuffer> _probebuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(PROBE_LENGTH);
+        }
+    };
+
+    /**
+     * Find out about a Pico file without opening it for writing or reading
+     * the key. The start of the file is read once, into a buffer kept for the
+     * thread, and the result is all that is allocated. A second read is
+     * needed only when the key is too long for the first to reach past the
+     * hash algorithm entry after it.
+     * 
+     * @param path The file.
+     * @return What the header says about the file.
+     * @throws PicoException The file is not a Pico file that can be read.
+     * @throws IOException The file cannot be read.
+     */
+    public static PicoHeaderView probe(Path path) throws PicoException, IOException {
+        return probe(path, _probebuffer.get());
+    }
+
+    /**
+     * Find out about a Pico file without opening it for writing or reading
+     * the key, using the given buffer. See {@link #probe(Path)}. The content,
+     * position, limit, and byte order of the buffer are all changed.
+     * 
+     * @param path The file.
+     * @param scratch The buffer, which must hold at least the fixed header
+     *            and the longest hash algorithm entry. Room for the key and
+     *            the hash algorithm entry together saves a read.
+     * @return What the header says about the file.
+     * @throws PicoException The file is not a Pico file that can be read.
+     * @throws IOException The file cannot be read.
+     */
+    public static PicoHeaderView probe(Path path, ByteBuffer scratch) throws PicoException,
+            IOException {
+        if (path == null) {
+            throw new NullPointerException("The path is null.");
+        }
+        if (scratch.capacity() < PROBE_MINIMUM) {
+            throw new IllegalArgumentException("The buffer is too small to probe a header.");
+        }
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            scratch.order(ORDER);
+            int count = _probeRead(channel, scratch, HEAD_START);
+            if (count < FIXED_HEADER_LENGTH) {
+                throw new PicoException("File too short; incomplete header.");
+            }
+            _checkFixed(scratch, 0);
+            short major = scratch.getShort((int) MAJOR_OFFSET);
+            short minor = scratch.getShort((int) MINOR_OFFSET);
+            long offset = scratch.getInt((int) OFFSET_OFFSET);
+            int keysize = scratch.getShort((int) KEYSIZE_OFFSET);
+            if (keysize < 0) {
+                throw new PicoException("Incorrect key size.");
+            }
+            long metastart = KEY_OFFSET + keysize;
+            if (offset < metastart || offset > length) {
+                throw new PicoException("Incorrect offset to the data.");
+            }
+
+            // Look for a hash algorithm entry just past the key. Read again
+            // from the entry if the first read did not reach all of it. The
+            // buffer then always holds an entry that is not damaged.
+            long base = HEAD_START;
+            byte[] fixedhash = null;
+            boolean hasentry = offset >= metastart + META_TAG_LENGTH + META_SIZE_LENGTH;
+            if (hasentry && !_probeHolds(scratch, (int) metastart, count)) {
+                fixedhash = _copy(scratch, (int) HASH_OFFSET, (int) HASH_LENGTH);
+                base = metastart;
+                count = _probeRead(channel, scratch, base);
+            }
+            int here = (int) (metastart - base);
+            if (hasentry && here + META_TAG_LENGTH + META_SIZE_LENGTH <= count
+                    && scratch.getShort(here) == META_HASH) {
+                int entrylen = scratch.getInt(here + (int) META_TAG_LENGTH);
+                int at = here + (int) (META_TAG_LENGTH + META_SIZE_LENGTH);
+                if (entrylen < META_TAG_LENGTH * 2 || (long) at + entrylen > count
+                        || base + at + entrylen > offset) {
+                    throw new PicoException("Damaged hash algorithm entry.");
+                }
+                HashAlgorithm algorithm = HashAlgorithm.forId(scratch.getShort(at));
+                int hashlen = scratch.getShort(at + (int) META_TAG_LENGTH);
+                if (hashlen != algorithm.getLength() || hashlen != entrylen - META_TAG_LENGTH * 2) {
+                    throw new PicoException("Incorrect hash length for " + algorithm + ".");
+                }
+                return new PicoHeaderView(major, minor, offset, length, keysize, algorithm,
+                        _copy(scratch, at + (int) META_TAG_LENGTH * 2, hashlen));
+            }
+            if (fixedhash == null) {
+                fixedhash = _copy(scratch, (int) HASH_OFFSET, (int) HASH_LENGTH);
+            }
+            return new PicoHeaderView(major, minor, offset, length, keysize,
+                    HashAlgorithm.MD5, fixedhash);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Fill a buffer from a file, stopping early only at the end of the file.
+     * 
+     * @param channel The file.
+     * @param buf The buffer, which is cleared first.
+     * @param at The position in the file to read from.
+     * @return The number of bytes read.
+     * @throws IOException The file cannot be read.
+     */
+    private static int _probeRead(FileChannel channel, ByteBuffer buf, long at)
+            throws IOException {
+        buf.clear();
+        while (buf.hasRemaining()) {
+            int count = channel.read(buf, at + buf.position());
+            if (count < 0) {
+                break;
+            }
+        } // Read until the buffer is full or the file ends.
+        return buf.position();
+    }
+
+    /**
+     * Tell whether a buffer read by {@link #probe(Path, ByteBuffer)} holds
+     * all of the metadata entry that may start at the given index: the tag
+     * and size, and the body too if it is the hash algorithm entry.
+     * 
+     * @param buf The buffer.
+     * @param here The index where the entry would start.
+     * @param count The number of bytes read into the buffer.
+     * @return True if the whole entry, or all that is needed of it, is held.
+     */
+    private static boolean _probeHolds(ByteBuffer buf, int here, int count) {
+        if (here + META_TAG_LENGTH + META_SIZE_LENGTH > count) {
+            return false;
+        }
+        if (buf.getShort(here) != META_HASH) {
+            return true;
+        }
+        long entrylen = buf.getInt(here + (int) META_TAG_LENGTH);
+        return here + META_TAG_LENGTH + META_SIZE_LENGTH + entrylen <= count;
+    }
+
+    /**
+     * Copy bytes out of a buffer without moving its position.
+     * 
+     * @param buf The buffer.
+     * @param at The index of the first byte.
+     * @param length The number of bytes.
+     * @return The bytes.
+     */
+    private static byte[] _copy(ByteBuffer buf, int at, int length) {
+        byte[] bytes = new byte[length];
+        for (int index = 0; index < length; index++) {
+            bytes[index] = buf.get(at + index);
+        } // Copy all bytes.
+        return bytes;
     }
 
     @Override
@@ -278,7 +1088,16 @@ public class PicoHeader implements PicoStructure {
             for (byte byt : _key) {
                 app.append(String.format("0x%02x, ", byt));
             } // Add the key.
-            app.append("]\n");
+            app.append("],\n");
+        }
+        app.append("hash-algorithm: ");
+        app.append(String.format("\"%s\",\n", _algorithm));
+        app.append("      metadata: ");
+        app.append(String.format("%d,\n", _metadata.length));
+        if (_values != null && !_values.isEmpty()) {
+            app.append("        values: ");
+            app.append(_values.toString());
+            app.append(",\n");
         }
         app.append("}");
         return app;
@@ -0,0 +1,169 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.security.MessageDigest;
+
+/**
+ * What can be learned about a Pico file from the start of its header without
+ * the key or the data: the version, the offset to the data, the length of
+ * the key, and the hash. This is returned by
+ * {@link PicoHeader#probe(java.nio.file.Path)}, which is meant for scanning
+ * many files quickly, so it holds only these few values and cannot be
+ * changed.
+ * 
+ * @author jcarter
+ */
+public final class PicoHeaderView {
+
+    /** The major version of the file. */
+    private final short _major;
+
+    /** The minor version of the file. */
+    private final short _minor;
+
+    /** The offset to the data. */
+    private final long _offset;
+
+    /** The length of the whole file, including the header. */
+    private final long _length;
+
+    /** The length of the key. */
+    private final int _keylength;
+
+    /** The algorithm that computed the hash. */
+    private final HashAlgorithm _algorithm;
+
+    /** The hash of the unencrypted data. This is never handed out. */
+    private final byte[] _hash;
+
+    /**
+     * Make a new view.
+     * 
+     * @param major The major version of the file.
+     * @param minor The minor version of the file.
+     * @param offset The offset to the data.
+     * @param length The length of the whole file.
+     * @param keylength The length of the key.
+     * @param algorithm The algorithm that computed the hash.
+     * @param hash The hash, which is kept and not copied.
+     */
+    PicoHeaderView(short major, short minor, long offset, long length, int keylength,
+            HashAlgorithm algorithm, byte[] hash) {
+        _major = major;
+        _minor = minor;
+        _offset = offset;
+        _length = length;
+        _keylength = keylength;
+        _algorithm = algorithm;
+        _hash = hash;
+    }
+
+    /**
+     * Get the major version of the file format.
+     * 
+     * @return The major version.
+     */
+    public short getMajor() {
+        return _major;
+    }
+
+    /**
+     * Get the minor version of the file format.
+     * 
+     * @return The minor version.
+     */
+    public short getMinor() {
+        return _minor;
+    }
+
+    /**
+     * Get the offset to the data, which is the length of the whole header.
+     * 
+     * @return The offset to the data.
+     */
+    public long getOffset() {
+        return _offset;
+    }
+
+    /**
+     * Get the length of the whole file, including the header, when it was
+     * probed.
+     * 
+     * @return The length of the file.
+     */
+    public long getFileLength() {
+        return _length;
+    }
+
+    /**
+     * Get the length of the data, which is also the length of the unencrypted
+     * data.
+     * 
+     * @return The length of the data.
+     */
+    public long getDataLength() {
+        return Math.max(0L, _length - _offset);
+    }
+
+    /**
+     * Get the length of the key.
+     * 
+     * @return The length of the key.
+     */
+    public int getKeyLength() {
+        return _keylength;
+    }
+
+    /**
+     * Get the algorithm that computed the hash.
+     * 
+     * @return The algorithm.
+     */
+    public HashAlgorithm getHashAlgorithm() {
+        return _algorithm;
+    }
+
+    /**
+     * Get the hash of the unencrypted data. This is all zero if the hash has
+     * not been written, and empty if the file keeps no hash.
+     * 
+     * @return A copy of the hash.
+     */
+    public byte[] getHash() {
+        return _hash.clone();
+    }
+
+    /**
+     * Determine whether the hash is the given one, without copying it.
+     * 
+     * @param hash The hash to compare.
+     * @return True if the hashes are the same.
+     */
+    public boolean hashEquals(byte[] hash) {
+        return MessageDigest.isEqual(_hash, hash);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{ version: \"").append(_major).append('.').append(_minor);
+        builder.append("\", offset: ").append(_offset);
+        builder.append(", data-length: ").append(getDataLength());
+        builder.append(", key-size: ").append(_keylength);
+        builder.append(", hash-algorithm: \"").append(_algorithm).append("\", hash: 0x");
+        for (byte byt : _hash) {
+            builder.append(String.format("%02x", byt));
+        } // Add the hash code.
+        return builder.append(" }").toString();
+    }
+}
@@ -23,6 +23,11 @@ import ornl.pico.PicoException;
  * To use this pass a source input stream.  The source stream must be at the
  * first byte of the Pico file.  It is also the case that you should not
  * manipulate the underlying stream after passing it to the constructor.
+ * <p>
+ * When reading from slow storage, use
+ * {@link #PicoInputStream(InputStream, int, int)} to read and decode ahead on
+ * a background thread, so that I/O and decoding overlap with the consumer.
+ * Be sure to {@code close()} such a stream to stop the background thread.
  * 
  * @author Stacy Prowell (prowellsj@ornl.gov)
  */
@@ -37,6 +42,9 @@ public class PicoInputStream extends InputStream {
 	/** Position in the encrypted data. */
 	private long _position = 0L;
 	
+	/** The background reader, or {@code null} to read on the caller thread. */
+	private final ReadAhead _ahead;
+	
 	/**
 	 * Create a new Pico file instance from the given input stream.
 	 * @param is				The input stream.
@@ -49,6 +57,28 @@ public class PicoInputStream extends InputStream {
 		}
 		_backing = is;
 		readHeader();
+		_ahead = null;
+	}
+	
+	/**
+	 * Create a new Pico file instance from the given input stream, reading
+	 * and decoding ahead of the consumer on a background thread.  The header
+	 * is read on the caller thread before this returns.
+	 * @param is				The input stream.
+	 * @param buffers			The number of buffers; two for double
+	 * 							buffering, three for triple buffering, etc.
+	 * @param buffersize		The size of each buffer, in bytes.
+	 * @throws PicoException	The file format is incorrect.
+	 * @throws IOException		The file cannot be read.
+	 */
+	public PicoInputStream(InputStream is, int buffers, int buffersize)
+			throws PicoException, IOException {
+		if (is == null) {
+			throw new NullPointerException("The input stream is null.");
+		}
+		_backing = is;
+		readHeader();
+		_ahead = new ReadAhead(_backing, _head, buffers, buffersize);
 	}
 
 	private void readHeader() throws PicoException, IOException {
@@ -77,6 +107,22 @@ public class PicoInputStream extends InputStream {
 			throw new PicoException("File too short; incomplete key.");
 		}
 		
+		// Read any metadata, which runs from the key to the data.
+		long metalength = _head.offset - PicoStructure.KEY_OFFSET - _head.getKey().length;
+		if (metalength < 0 || metalength > Integer.MAX_VALUE) {
+			throw new PicoException("Incorrect offset to the data.");
+		}
+		byte[] metadata = new byte[(int) metalength];
+		length = 0;
+		while (length < metadata.length) {
+			int count = _backing.read(metadata, length, metadata.length - length);
+			if (count < 0) {
+				throw new PicoException("File too short; incomplete metadata.");
+			}
+			length += count;
+		} // Read all the metadata.
+		_head.readMetadata(metadata);
+		
 		// Ka-presto!  The header has been read.  Life is good.
 	}
 	
@@ -97,6 +143,9 @@ public class PicoInputStream extends InputStream {
 	 */
 	@Override
 	public int read() throws IOException {
+		if (_ahead != null) {
+			return _ahead.read();
+		}
 		// Read the next byte from the underlying input stream.
 		int result = _backing.read();
 		if (result >= 0) {
@@ -106,4 +155,76 @@ public class PicoInputStream extends InputStream {
 		}
 		return result;
 	}
+
+	/**
+	 * @see java.io.InputStream#read(byte[], int, int)
+	 */
+	@Override
+	public int read(byte[] data, int off, int len) throws IOException {
+		if (data == null) {
+			throw new NullPointerException("The data array is null.");
+		}
+		if (off < 0 || len < 0 || len > data.length - off) {
+			throw new IndexOutOfBoundsException("The range is outside the array.");
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (_ahead != null) {
+			return _ahead.read(data, off, len);
+		}
+		// Read a block from the underlying stream and decode it all at once.
+		int length = _backing.read(data, off, len);
+		if (length > 0) {
+			_head.crypt(data, off, length, _position);
+			_position += length;
+		}
+		return length;
+	}
+
+	/**
+	 * Skip bytes by skipping them in the backing stream.  Since the encoding
+	 * depends only on the position, the skipped bytes need not be decoded.
+	 * When reading ahead the bytes have already been read, and are discarded.
+	 * 
+	 * @see java.io.InputStream#skip(long)
+	 */
+	@Override
+	public long skip(long count) throws IOException {
+		if (count <= 0) {
+			return 0L;
+		}
+		if (_ahead != null) {
+			// The bytes have already been read, so just discard them.
+			return _ahead.skip(count);
+		}
+		long skipped = _backing.skip(count);
+		if (skipped > 0) {
+			_position += skipped;
+		}
+		return skipped;
+	}
+
+	/**
+	 * @see java.io.InputStream#available()
+	 */
+	@Override
+	public int available() throws IOException {
+		if (_ahead != null) {
+			return _ahead.available();
+		}
+		return _backing.available();
+	}
+
+	/**
+	 * @see java.io.InputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (_ahead != null) {
+			_ahead.close();
+			return;
+		}
+		_backing.close();
+	}
 }
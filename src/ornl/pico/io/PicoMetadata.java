@@ -0,0 +1,496 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import ornl.pico.PicoException;
+
+/**
+ * Typed key-value metadata kept in the header of a Pico file, such as a
+ * content type, the original size, or an index. Keys are strings, and each
+ * value is one of the {@link Type}s. The values are not parsed when the
+ * header is read, only when first asked for.
+ * <p>
+ * The values are stored in a {@link PicoStructure#META_VALUES} entry. Each
+ * value is encoded as the following, where a "varint" is an unsigned number
+ * stored seven bits per byte, least significant first, with the high bit set
+ * on all but the last byte.
+ * <table>
+ * <tr><th>Item</th><th>Length</th></tr>
+ * <tr><td>Length of the key in UTF-8</td><td>varint</td></tr>
+ * <tr><td>Key, in UTF-8</td><td>as given</td></tr>
+ * <tr><td>Type, the ordinal of the {@link Type}</td><td>1</td></tr>
+ * <tr><td>Value</td><td>depends on the type</td></tr>
+ * </table>
+ * A {@link Type#LONG} is a varint of the zigzag encoding of the number, so
+ * small numbers of either sign are short. A {@link Type#DOUBLE} is eight
+ * bytes in {@link PicoStructure#ORDER}, and a {@link Type#BOOLEAN} is one
+ * byte. A {@link Type#STRING} or {@link Type#BYTES} is a varint length
+ * followed by the bytes, in UTF-8 for a string.
+ * <p>
+ * To change the values of an existing file without moving its data, the
+ * header must have room for them. See {@link PicoFile#reserveMetadata(int)}.
+ * 
+ * @author jcarter
+ */
+public class PicoMetadata {
+
+    /** The types of value. */
+    public enum Type {
+        /** A signed 64-bit integer. */
+        LONG,
+        /** A 64-bit floating point number. */
+        DOUBLE,
+        /** True or false. */
+        BOOLEAN,
+        /** A string. */
+        STRING,
+        /** An array of bytes. */
+        BYTES
+    }
+
+    /** The values, in the order they were added. */
+    private final LinkedHashMap<String, Object> _values = new LinkedHashMap<String, Object>();
+
+    /** Whether the values have changed since they were read or encoded. */
+    private boolean _changed = false;
+
+    /**
+     * Make new, empty metadata.
+     */
+    public PicoMetadata() {
+        // Nothing to do.
+    }
+
+    /**
+     * Read metadata from the value of its metadata entry.
+     * 
+     * @param value The value.
+     * @return The metadata.
+     * @throws PicoException The value is damaged.
+     */
+    static PicoMetadata parse(byte[] value) throws PicoException {
+        PicoMetadata metadata = new PicoMetadata();
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(value).order(PicoStructure.ORDER);
+            while (buf.hasRemaining()) {
+                String key = new String(_bytes(buf), StandardCharsets.UTF_8);
+                int type = buf.get();
+                if (type < 0 || type >= Type.values().length) {
+                    throw new PicoException("Unknown metadata type: " + type + ".");
+                }
+                switch (Type.values()[type]) {
+                case LONG:
+                    long zigzag = _varint(buf);
+                    metadata._values.put(key, (zigzag >>> 1) ^ -(zigzag & 1));
+                    break;
+                case DOUBLE:
+                    metadata._values.put(key, buf.getDouble());
+                    break;
+                case BOOLEAN:
+                    metadata._values.put(key, buf.get() != 0);
+                    break;
+                case STRING:
+                    metadata._values.put(key, new String(_bytes(buf), StandardCharsets.UTF_8));
+                    break;
+                default:
+                    metadata._values.put(key, _bytes(buf));
+                    break;
+                }
+            } // Read all values.
+        } catch (RuntimeException re) {
+            throw new PicoException("The metadata values are damaged.");
+        }
+        return metadata;
+    }
+
+    /**
+     * Make the metadata entry for these values.
+     * 
+     * @return The entry, including its tag and length.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Map.Entry<String, Object> entry : _values.entrySet()) {
+            _putBytes(out, entry.getKey().getBytes(StandardCharsets.UTF_8));
+            Object value = entry.getValue();
+            Type type = _typeOf(value);
+            out.write(type.ordinal());
+            switch (type) {
+            case LONG:
+                long number = (Long) value;
+                _putVarint(out, (number << 1) ^ (number >> 63));
+                break;
+            case DOUBLE:
+                byte[] bits = new byte[8];
+                ByteBuffer.wrap(bits).order(PicoStructure.ORDER).putDouble((Double) value);
+                out.write(bits, 0, bits.length);
+                break;
+            case BOOLEAN:
+                out.write(((Boolean) value) ? 1 : 0);
+                break;
+            case STRING:
+                _putBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                _putBytes(out, (byte[]) value);
+                break;
+            }
+        } // Write all values.
+        return PicoHeader.makeMetadata(PicoStructure.META_VALUES, out.toByteArray());
+    }
+
+    /**
+     * Make a copy of these values.
+     * 
+     * @return The copy.
+     */
+    PicoMetadata copy() {
+        PicoMetadata copy = new PicoMetadata();
+        for (Map.Entry<String, Object> entry : _values.entrySet()) {
+            Object value = entry.getValue();
+            copy._values.put(entry.getKey(),
+                    (value instanceof byte[]) ? ((byte[]) value).clone() : value);
+        } // Copy all values.
+        copy._changed = _changed;
+        return copy;
+    }
+
+    /**
+     * Determine whether the values have changed since they were read or last
+     * written.
+     * 
+     * @return True if the values have changed.
+     */
+    boolean isChanged() {
+        return _changed;
+    }
+
+    /**
+     * Note whether the values have changed since they were read or last
+     * written.
+     * 
+     * @param changed True if the values have changed.
+     */
+    void setChanged(boolean changed) {
+        _changed = changed;
+    }
+
+    // ======================================================================
+    // Access to the values.
+    // ======================================================================
+
+    /**
+     * Get the keys, in the order they were added.
+     * 
+     * @return The keys. This cannot be modified.
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(_values.keySet());
+    }
+
+    /**
+     * Determine whether there are no values.
+     * 
+     * @return True if there are no values.
+     */
+    public boolean isEmpty() {
+        return _values.isEmpty();
+    }
+
+    /**
+     * Get the type of a value.
+     * 
+     * @param key The key.
+     * @return The type, or {@code null} if there is no such value.
+     */
+    public Type getType(String key) {
+        Object value = _values.get(key);
+        return (value == null) ? null : _typeOf(value);
+    }
+
+    /**
+     * Get a {@link Type#LONG} value.
+     * 
+     * @param key The key.
+     * @return The value, or {@code null} if there is no such value.
+     * @throws IllegalArgumentException The value has another type.
+     */
+    public Long getLong(String key) {
+        return (Long) _get(key, Type.LONG);
+    }
+
+    /**
+     * Get a {@link Type#DOUBLE} value.
+     * 
+     * @param key The key.
+     * @return The value, or {@code null} if there is no such value.
+     * @throws IllegalArgumentException The value has another type.
+     */
+    public Double getDouble(String key) {
+        return (Double) _get(key, Type.DOUBLE);
+    }
+
+    /**
+     * Get a {@link Type#BOOLEAN} value.
+     * 
+     * @param key The key.
+     * @return The value, or {@code null} if there is no such value.
+     * @throws IllegalArgumentException The value has another type.
+     */
+    public Boolean getBoolean(String key) {
+        return (Boolean) _get(key, Type.BOOLEAN);
+    }
+
+    /**
+     * Get a {@link Type#STRING} value.
+     * 
+     * @param key The key.
+     * @return The value, or {@code null} if there is no such value.
+     * @throws IllegalArgumentException The value has another type.
+     */
+    public String getString(String key) {
+        return (String) _get(key, Type.STRING);
+    }
+
+    /**
+     * Get a {@link Type#BYTES} value.
+     * 
+     * @param key The key.
+     * @return A copy of the value, or {@code null} if there is no such value.
+     * @throws IllegalArgumentException The value has another type.
+     */
+    public byte[] getBytes(String key) {
+        byte[] value = (byte[]) _get(key, Type.BYTES);
+        return (value == null) ? null : value.clone();
+    }
+
+    /**
+     * Set a {@link Type#LONG} value, replacing any value with the same key.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return This metadata, for chaining.
+     */
+    public PicoMetadata putLong(String key, long value) {
+        return _put(key, value);
+    }
+
+    /**
+     * Set a {@link Type#DOUBLE} value, replacing any value with the same key.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return This metadata, for chaining.
+     */
+    public PicoMetadata putDouble(String key, double value) {
+        return _put(key, value);
+    }
+
+    /**
+     * Set a {@link Type#BOOLEAN} value, replacing any value with the same
+     * key.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return This metadata, for chaining.
+     */
+    public PicoMetadata putBoolean(String key, boolean value) {
+        return _put(key, value);
+    }
+
+    /**
+     * Set a {@link Type#STRING} value, replacing any value with the same key.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return This metadata, for chaining.
+     */
+    public PicoMetadata putString(String key, String value) {
+        if (value == null) {
+            throw new NullPointerException("The value is null.");
+        }
+        return _put(key, value);
+    }
+
+    /**
+     * Set a {@link Type#BYTES} value, replacing any value with the same key.
+     * The array is copied.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return This metadata, for chaining.
+     */
+    public PicoMetadata putBytes(String key, byte[] value) {
+        if (value == null) {
+            throw new NullPointerException("The value is null.");
+        }
+        return _put(key, value.clone());
+    }
+
+    /**
+     * Remove a value.
+     * 
+     * @param key The key.
+     * @return This metadata, for chaining.
+     */
+    public PicoMetadata remove(String key) {
+        if (_values.remove(key) != null) {
+            _changed = true;
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{ ");
+        for (Map.Entry<String, Object> entry : _values.entrySet()) {
+            Object value = entry.getValue();
+            builder.append(entry.getKey()).append(": ");
+            if (value instanceof byte[]) {
+                builder.append(Arrays.toString((byte[]) value));
+            } else if (value instanceof String) {
+                builder.append('"').append(value).append('"');
+            } else {
+                builder.append(value);
+            }
+            builder.append(", ");
+        } // Add all values.
+        return builder.append("}").toString();
+    }
+
+    // ======================================================================
+    // Internal methods.
+    // ======================================================================
+
+    /**
+     * Get a value of the given type.
+     * 
+     * @param key The key.
+     * @param type The type.
+     * @return The value, or {@code null} if there is none.
+     * @throws IllegalArgumentException The value has another type.
+     */
+    private Object _get(String key, Type type) {
+        if (key == null) {
+            throw new NullPointerException("The key is null.");
+        }
+        Object value = _values.get(key);
+        if (value != null && _typeOf(value) != type) {
+            throw new IllegalArgumentException("The value of " + key + " is a "
+                    + _typeOf(value) + ", not a " + type + ".");
+        }
+        return value;
+    }
+
+    /**
+     * Set a value.
+     * 
+     * @param key The key.
+     * @param value The value.
+     * @return This metadata, for chaining.
+     */
+    private PicoMetadata _put(String key, Object value) {
+        if (key == null) {
+            throw new NullPointerException("The key is null.");
+        }
+        _values.put(key, value);
+        _changed = true;
+        return this;
+    }
+
+    /**
+     * Get the type of a value.
+     * 
+     * @param value The value.
+     * @return The type.
+     */
+    private static Type _typeOf(Object value) {
+        if (value instanceof Long) {
+            return Type.LONG;
+        } else if (value instanceof Double) {
+            return Type.DOUBLE;
+        } else if (value instanceof Boolean) {
+            return Type.BOOLEAN;
+        } else if (value instanceof String) {
+            return Type.STRING;
+        }
+        return Type.BYTES;
+    }
+
+    /**
+     * Read a varint.
+     * 
+     * @param buf The buffer.
+     * @return The number.
+     */
+    private static long _varint(ByteBuffer buf) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte datum = buf.get();
+            value |= (long) (datum & 0x7f) << shift;
+            if (datum >= 0) {
+                return value;
+            }
+        } // Read all groups.
+        throw new IllegalArgumentException("The varint is too long.");
+    }
+
+    /**
+     * Read a varint length followed by that many bytes.
+     * 
+     * @param buf The buffer.
+     * @return The bytes.
+     */
+    private static byte[] _bytes(ByteBuffer buf) {
+        long length = _varint(buf);
+        if (length > buf.remaining()) {
+            throw new IllegalArgumentException("The length is too long.");
+        }
+        byte[] bytes = new byte[(int) length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Write a varint.
+     * 
+     * @param out The stream.
+     * @param value The number, treated as unsigned.
+     */
+    private static void _putVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        } // Write all but the last group.
+        out.write((int) value);
+    }
+
+    /**
+     * Write a varint length followed by the bytes.
+     * 
+     * @param out The stream.
+     * @param bytes The bytes.
+     */
+    private static void _putBytes(ByteArrayOutputStream out, byte[] bytes) {
+        _putVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -12,22 +12,42 @@
 package ornl.pico.io;
 
 import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * Create an output stream to write Pico-encrypted data.  To use this provide
  * a key and the output stream to get the data.  If you have the hash for the
  * unencrypted data, provide that, too.  If not, the hash will be computed as
  * the file is written.  Because the hash needs to go in the header at the
- * start of the stream, the encrypted data is first written to a temporary
- * file, and then copied to the stream on close.
+ * start of the stream, the encrypted data is first held in memory, and then
+ * copied to the stream on close.  Past a threshold (by default
+ * {@value #DEFAULT_THRESHOLD} bytes) the encrypted data spills to a temporary
+ * file instead, so large payloads need not fit in memory.
+ * <p>
+ * If the target is seekable, use
+ * {@link #PicoOutputStream(byte[], SeekableByteChannel)} instead.  This writes
+ * a placeholder header, streams the encrypted data straight to the target,
+ * and then seeks back to fill in the hash on close, so nothing is held back.
+ * <p>
+ * If you already know the hash of the unencrypted data, use
+ * {@link #PicoOutputStream(byte[], byte[], OutputStream, boolean)}.  The
+ * header is then written at once and the encrypted data follows it straight
+ * to the stream, with no temporary storage and (unless asked to verify the
+ * hash) no digest computation.
+ * <p>
+ * The data is hashed with MD5 unless another {@link HashAlgorithm} is
+ * passed to the constructor.  With {@link HashAlgorithm#NONE} nothing is
+ * hashed, and the data goes straight to the stream.
+ * <p>
+ * To hash and encrypt on separate threads, call
+ * {@link #setPipelined(int, int)} before writing any data.  Written data is
+ * then copied into a bounded ring of buffers, and two worker threads digest
+ * and encrypt it while the caller carries on.  The output is identical.
  * <p>
  * Be sure to use the {@code close()} method to ensure the file is completely
  * written!  The {@code flush()} method has no effect.
@@ -36,27 +56,66 @@ import java.security.NoSuchAlgorithmException;
  */
 public class PicoOutputStream extends BufferedOutputStream {
 
+    /**
+     * The default number of encrypted bytes held in memory before spilling to
+     * a temporary file.
+     */
+    public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+
+    /** The size of the scratch buffer used to encrypt data. */
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
     /** The physical output stream to get the data. */
     private final OutputStream _backing;
 
-    /** Make a temporary file. */
-    private File _tmpfile;
+    /** The stream to get the encrypted data. */
+    private final OutputStream _encrypted;
 
-    /** Temporary stream to get the encrypted data. */
-    private OutputStream _encrypted;
+    /**
+     * Temporary storage for the encrypted data, or {@code null} if the data
+     * is written straight to the target.
+     */
+    private final SpillBuffer _spill;
+
+    /**
+     * The seekable target, or {@code null} if the target is not seekable.
+     */
+    private final SeekableByteChannel _channel;
+
+    /** The position of the header in the seekable target. */
+    private long _headstart = 0L;
 
     /** The header information. */
     private PicoHeader _head;
 
-    /** The message digest (hash). */
+    /**
+     * The message digest (hash), or {@code null} if the hash was provided and
+     * is not being verified.
+     */
     private final MessageDigest _hash;
 
+    /** The hash provided by the caller, or {@code null} if none. */
+    private final byte[] _knownhash;
+
     /** Has this stream been closed. */
     private boolean _closed = false;
 
+    /**
+     * The workers that hash and encrypt the data, or {@code null} if this is
+     * done on the caller's thread.
+     */
+    private Pipeline _pipeline = null;
+
     /** Position within the encrypted data. */
     private long _position = 0L;
 
+    /**
+     * Scratch space to hold encrypted data on its way out.  This is reused
+     * by every write, so that writing does not allocate, and for the final
+     * copy from temporary storage.
+     */
+    private final byte[] _scratch = new byte[SCRATCH_SIZE];
+
     /**
      * Make a new Pico output stream, wrapping the provided stream.  Use the
      * given key to encrypt the data.
@@ -66,6 +125,159 @@ public class PicoOutputStream extends BufferedOutputStream {
      * @throws IOException		An error occurred creating the temporary file.
      */
     public PicoOutputStream(byte[] key, OutputStream os) throws IOException {
+        this(key, os, DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * Make a new Pico output stream, wrapping the provided stream.  Use the
+     * given key to encrypt the data.  Up to the given number of encrypted
+     * bytes are held in memory; past that they spill to a temporary file.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param os				The stream to get the output.
+     * @param threshold			The most bytes to hold in memory.  If this
+     * 							is zero, a temporary file is always used.
+     * @throws IOException		An error occurred creating the temporary file.
+     */
+    public PicoOutputStream(byte[] key, OutputStream os, int threshold)
+            throws IOException {
+        this(key, os, threshold, HashAlgorithm.MD5);
+    }
+
+    /**
+     * Make a new Pico output stream, wrapping the provided stream, that
+     * hashes the data with the given algorithm.  With
+     * {@link HashAlgorithm#NONE} there is no hash to wait for, so the header
+     * is written at once and the data follows it straight to the stream.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param os				The stream to get the output.
+     * @param threshold			The most bytes to hold in memory.  If this
+     * 							is zero, a temporary file is always used.
+     * @param algorithm			The hash algorithm.
+     * @throws IOException		An error occurred creating the temporary file.
+     */
+    public PicoOutputStream(byte[] key, OutputStream os, int threshold,
+            HashAlgorithm algorithm) throws IOException {
+        this(key, os, null, threshold, algorithm,
+                algorithm == HashAlgorithm.NONE ? new byte[0] : null, false);
+    }
+
+    /**
+     * Make a new Pico output stream, wrapping the provided stream, when the
+     * hash of the unencrypted data is already known.  The header is written
+     * at once, and the encrypted data is written straight to the stream.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param hash				The hash of the unencrypted data.
+     * @param os				The stream to get the output.
+     * @throws IOException		An error occurred writing the header.
+     */
+    public PicoOutputStream(byte[] key, byte[] hash, OutputStream os)
+            throws IOException {
+        this(key, hash, os, false);
+    }
+
+    /**
+     * Make a new Pico output stream, wrapping the provided stream, when the
+     * hash of the unencrypted data is already known.  The header is written
+     * at once, and the encrypted data is written straight to the stream.
+     * <p>
+     * If asked to verify, the hash of the data is computed as it is written,
+     * and {@link #finish()} (and so {@link #close()}) throws an exception if
+     * it does not match the hash provided.  Note that by then the data has
+     * already been written.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param hash				The hash of the unencrypted data.
+     * @param os				The stream to get the output.
+     * @param verify			If true, check the hash when finished.
+     * @throws IOException		An error occurred writing the header.
+     */
+    public PicoOutputStream(byte[] key, byte[] hash, OutputStream os,
+            boolean verify) throws IOException {
+        this(key, HashAlgorithm.MD5, hash, os, verify);
+    }
+
+    /**
+     * Make a new Pico output stream, wrapping the provided stream, when the
+     * hash of the unencrypted data under the given algorithm is already
+     * known.  This is otherwise the same as
+     * {@link #PicoOutputStream(byte[], byte[], OutputStream, boolean)}.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param algorithm			The hash algorithm.
+     * @param hash				The hash of the unencrypted data.
+     * @param os				The stream to get the output.
+     * @param verify			If true, check the hash when finished.
+     * @throws IOException		An error occurred writing the header.
+     */
+    public PicoOutputStream(byte[] key, HashAlgorithm algorithm, byte[] hash,
+            OutputStream os, boolean verify) throws IOException {
+        this(key, os, null, 0, algorithm, _checkHash(hash, algorithm), verify);
+    }
+
+    /**
+     * Make a new Pico output stream, writing to the provided seekable channel
+     * starting at its current position.  Use the given key to encrypt the
+     * data.  A placeholder header is written at once, the encrypted data
+     * follows it directly, and the header is rewritten with the hash when
+     * the stream is finished.
+     * <p>
+     * For a file, pass {@code FileOutputStream.getChannel()} or a channel
+     * from {@code Files.newByteChannel}.  The channel must not be in append
+     * mode, since the header could not then be rewritten.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param channel			The channel to get the output.
+     * @throws IOException		An error occurred writing the header.
+     */
+    public PicoOutputStream(byte[] key, SeekableByteChannel channel)
+            throws IOException {
+        this(key, channel, HashAlgorithm.MD5);
+    }
+
+    /**
+     * Make a new Pico output stream, writing to the provided seekable channel
+     * starting at its current position, that hashes the data with the given
+     * algorithm.  This is otherwise the same as
+     * {@link #PicoOutputStream(byte[], SeekableByteChannel)}.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param channel			The channel to get the output.
+     * @param algorithm			The hash algorithm.
+     * @throws IOException		An error occurred writing the header.
+     */
+    public PicoOutputStream(byte[] key, SeekableByteChannel channel,
+            HashAlgorithm algorithm) throws IOException {
+        this(key, _stream(channel), channel, 0, algorithm,
+                algorithm == HashAlgorithm.NONE ? new byte[0] : null, false);
+
+        // Write a placeholder header.  This reserves the space, since the
+        // header size does not depend on the hash.
+        _headstart = _channel.position();
+        _head.hash = (_knownhash != null) ? _knownhash
+                : new byte[_head.getHashAlgorithm().getLength()];
+        _writeFully(ByteBuffer.wrap(_head.putHeader()));
+    }
+
+    /**
+     * Common initialization for all constructors.
+     * 
+     * @param key				The key to use to encrypt.
+     * @param os				The stream to get the output.
+     * @param channel			The seekable target, or {@code null}.
+     * @param threshold			The most bytes to hold in memory.
+     * @param algorithm			The hash algorithm.
+     * @param hash				The known hash, or {@code null}.  If known and
+     * 							the target is not seekable, the header is
+     * 							written at once.
+     * @param verify			If true, compute the hash even if known.
+     * @throws IOException		An error occurred writing the header.
+     */
+    private PicoOutputStream(byte[] key, OutputStream os,
+            SeekableByteChannel channel, int threshold, HashAlgorithm algorithm,
+            byte[] hash, boolean verify) throws IOException {
     	super(os);
     	
         if (key == null) {
@@ -74,52 +286,135 @@ public class PicoOutputStream extends BufferedOutputStream {
         if (os == null) {
             throw new NullPointerException("The output stream is null.");
         }
+        if (algorithm == null) {
+            throw new NullPointerException("The hash algorithm is null.");
+        }
         _backing = os;
+        _channel = channel;
+        _knownhash = hash;
         
-        try {
-            _hash = MessageDigest.getInstance(PicoStructure.HASH);
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new RuntimeException("Failed to create hash.", nsae);
+        if (hash == null || verify) {
+            _hash = algorithm.newDigest();
+        } else {
+            _hash = null;
         }
         
-        // Construct a temporary file to get the encrypted data.
-        _tmpfile = File.createTempFile("pico", "pico");
-        _tmpfile.deleteOnExit();
-        _encrypted = new FileOutputStream(_tmpfile);
+        if (channel == null && hash == null) {
+            // Construct temporary storage to get the encrypted data.
+            _spill = new SpillBuffer(threshold);
+            _encrypted = _spill;
+        } else {
+            // Write the encrypted data straight to the target.
+            _spill = null;
+            _encrypted = new BufferedOutputStream(os, 64 * 1024);
+        }
         // Build the header.
         _head = new PicoHeader();
         _head.setKey(key);
+        _head.setHashAlgorithm(algorithm);
+
+        if (channel == null && hash != null) {
+            // Write the header now, since it is already complete.
+            _head.hash = hash;
+            _backing.write(_head.putHeader());
+        }
+    }
+
+    /**
+     * Check that a hash provided by the caller is usable.
+     * 
+     * @param hash				The hash.
+     * @param algorithm			The hash algorithm.
+     * @return	The hash.
+     */
+    private static byte[] _checkHash(byte[] hash, HashAlgorithm algorithm) {
+        if (hash == null) {
+            throw new NullPointerException("The hash is null.");
+        }
+        if (algorithm == null) {
+            throw new NullPointerException("The hash algorithm is null.");
+        }
+        if (hash.length != algorithm.getLength()) {
+            throw new IllegalArgumentException("The hash must be "
+                    + algorithm.getLength() + " bytes.");
+        }
+        return hash.clone();
+    }
+
+    /**
+     * Get a stream that writes to the given channel.
+     * 
+     * @param channel			The channel.
+     * @return	The stream.
+     */
+    private static OutputStream _stream(SeekableByteChannel channel) {
+        if (channel == null) {
+            throw new NullPointerException("The channel is null.");
+        }
+        return Channels.newOutputStream(channel);
+    }
+
+    /**
+     * Write the entire buffer to the seekable target at its current position.
+     * 
+     * @param buf				The buffer to write.
+     * @throws IOException		The buffer cannot be written.
+     */
+    private void _writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            _channel.write(buf);
+        } // Write everything.
+    }
+
+    /**
+     * Hash and encrypt the data on separate worker threads.  Written data is
+     * copied into one of a ring of buffers; when the ring is full, writes wait
+     * for the workers to catch up.  This must be called before any data is
+     * written.
+     * 
+     * @param buffers			The number of buffers in the ring.  At
+     * 							least two are required.
+     * @param buffersize		The size of each buffer.
+     * @return	This stream.
+     */
+    public PicoOutputStream setPipelined(int buffers, int buffersize) {
+        if (_pipeline != null || _position != 0L || _closed) {
+            throw new IllegalStateException("Pipelining must be set before "
+                    + "any data is written.");
+        }
+        _pipeline = new Pipeline(_head, _hash, _encrypted, buffers, buffersize);
+        return this;
     }
 
     @Override
     public void write(byte[] arr, int off, int len) throws IOException {
         if (_closed)
             return;
+        if (off < 0 || len < 0 || len > arr.length - off) {
+            throw new IndexOutOfBoundsException("The range is outside the array.");
+        }
 
-        
-        // first make copy of relevant part of array
-        // TODO : add bounds checking
-        // JMC: Why not just new byte[len]??
-        byte[] encodedArr = new byte[len-off];
-        System.arraycopy(arr, off, encodedArr, 0, len);
-        
-        for (int i=off; i<(off+len); i++) {
-        	byte b = arr[i];
-        	
-        	// Add to the message digest.
-        	_hash.update((byte) b);
-        	
-        	// Encode.
-        	b = _head.crypt((byte) b, _position);
-        	_position++;
-        	
-        	// Add encoded byte to b
-        	encodedArr[i] = b;
+        if (_pipeline != null) {
+            // Let the workers do it.
+            _pipeline.write(arr, off, len);
+            _position += len;
+            return;
         }
 
-        // Write.
-        _encrypted.write(encodedArr);
-//        System.out.println("SBJHBKJDBH");
+        // Add to the message digest.
+        if (_hash != null)
+            _hash.update(arr, off, len);
+
+        // Encode into the scratch space, one piece at a time, and write.
+        // The caller's array must not be changed.
+        while (len > 0) {
+            int length = Math.min(len, _scratch.length);
+            _head.crypt(arr, off, _scratch, 0, length, _position);
+            _encrypted.write(_scratch, 0, length);
+            _position += length;
+            off += length;
+            len -= length;
+        } // Encode all the data.
     }
     
     @Override
@@ -138,8 +433,16 @@ public class PicoOutputStream extends BufferedOutputStream {
         // Byteify this.
         datum &= 0xff;
 
+        if (_pipeline != null) {
+            // Let the workers do it.
+            _pipeline.write(datum);
+            _position += 1;
+            return;
+        }
+
         // Add to the message digest.
-        _hash.update((byte) datum);
+        if (_hash != null)
+            _hash.update((byte) datum);
 
         // Encode.
         datum = _head.crypt((byte) datum, _position);
@@ -154,10 +457,13 @@ public class PicoOutputStream extends BufferedOutputStream {
      */
     @Override
     public void close() throws IOException {
-        if (!_closed) {
-            finish();
+        try {
+            if (!_closed) {
+                finish();
+            }
+        } finally {
+            _backing.close();
         }
-        _backing.close();
     }
 
     /**
@@ -169,28 +475,69 @@ public class PicoOutputStream extends BufferedOutputStream {
      * @throws IOException	An error occurred writing the file.
      */
     public void finish() throws IOException {
+        if (_closed)
+            return;
+
+        if (_pipeline != null) {
+            // Wait for the workers to digest and write everything.
+            Pipeline pipeline = _pipeline;
+            _pipeline = null;
+            try {
+                pipeline.finish();
+            } catch (IOException ioe) {
+                _closed = true;
+                if (_spill != null) {
+                    _spill.discard();
+                }
+                throw ioe;
+            }
+        }
+
+        if (_knownhash != null) {
+            // The header is already written; just push out the data.
+            _encrypted.flush();
+            _backing.flush();
+            _closed = true;
+
+            // Check the hash if asked.
+            if (_hash != null && !MessageDigest.isEqual(_hash.digest(), _knownhash)) {
+                throw new IOException("The data written does not match the "
+                        + "hash provided.");
+            }
+            return;
+        }
+
         // Finish the hash and store it in the header.
         _head.hash = _hash.digest();
 
-        // Write the header to the backing store.
-        _backing.write(_head.putHeader());
+        if (_spill != null) {
+            // The transfer discards the temporary storage, but if it is never
+            // reached that must be done here.
+            boolean transferring = false;
+            try {
+                // Write the header to the backing store.
+                _backing.write(_head.putHeader());
 
-        // Write the encrypted data to the backing store.
-        _encrypted.flush();
-        _encrypted.close();
-        
-        // Now we perform that transfer from temporary file to final file.
-        InputStream fis = new FileInputStream(_tmpfile);
-        byte[] buffer = new byte[1024];
-        while (fis.available() > 0) {
-            int length = fis.read(buffer);
-            if (length >= 0) {
-                _backing.write(buffer, 0, length);
+                // Now we perform the transfer from temporary storage to the
+                // backing store.
+                transferring = true;
+                _spill.transferTo(_backing, _scratch);
+            } finally {
+                if (!transferring) {
+                    _closed = true;
+                    _spill.discard();
+                }
             }
-        } // Copy all encrypted data.
-        fis.close();
+        } else {
+            // The data is already in place.  Go back and fill in the header,
+            // and then return to the end of the data.
+            _encrypted.flush();
+            long end = _channel.position();
+            _channel.position(_headstart);
+            _writeFully(ByteBuffer.wrap(_head.putHeader()));
+            _channel.position(end);
+        }
         _backing.flush();
-        _tmpfile.delete();
         _closed = true;
     }
 }
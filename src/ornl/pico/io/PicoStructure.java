@@ -41,6 +41,12 @@ import java.security.NoSuchAlgorithmException;
  * <p>
  * To avoid having to keep track of this, the byte order is stored in the
  * {@code ORDER} field.
+ * <p>
+ * Since version 0.1 the optional metadata is a sequence of entries.  Each
+ * entry is a tag ({@code META_TAG_LENGTH} bytes), the length of its value
+ * ({@code META_SIZE_LENGTH} bytes), and the value.  A tag of
+ * {@code META_END} ends the sequence; any bytes after it, up to the start of
+ * the data, are padding.  Readers skip entries whose tags they do not know.
  * 
  * @author Stacy Prowell (prowellsj@ornl.gov)
  * @version {@value MAJOR}.{@value MINOR}
@@ -68,8 +74,15 @@ public interface PicoStructure {
 	/** Length of the major version.  Currently {@value}. */
 	static final long MAJOR_LENGTH = Short.SIZE / 8;
 
-	/** Minor version of the Pico file format.  Currently {@value}.*/
-	static final short MINOR = 0;
+	/**
+	 * Minor version of the Pico file format.  Currently {@value}.
+	 * <ul>
+	 * <li>0: The original format.</li>
+	 * <li>1: Metadata entries, including the chunked tree hash.</li>
+	 * <li>2: The hash algorithm is chosen per file.</li>
+	 * </ul>
+	 */
+	static final short MINOR = 2;
 	
 	/** Position of the minor version. */
 	static final long MINOR_OFFSET = MAJOR_OFFSET + MAJOR_LENGTH;
@@ -84,15 +97,17 @@ public interface PicoStructure {
 	static final long OFFSET_LENGTH = Integer.SIZE / 8;
 	
 	/**
-	 * Kind of hash to use.  This must be known to {@link MessageDigest}, and
-	 * is currently {@value}.
+	 * Kind of hash stored in the hash field.  This must be known to
+	 * {@link MessageDigest}, and is currently {@value}.  Since version 0.2 a
+	 * file may use another {@link HashAlgorithm}; the hash field is then
+	 * zero, and the hash is stored in a {@code META_HASH} entry instead.
 	 */
 	static final String HASH = "md5";
 	
 	/** Position of the hash; the HashCode is of the decrypted bytes. */
 	static final long HASH_OFFSET = OFFSET_OFFSET + OFFSET_LENGTH;
 	
-	/** Length of the hash. */
+	/** Length of the hash field. */
 	static final long HASH_LENGTH = HashLength.getHashLength();
 	
 	/**
@@ -131,6 +146,43 @@ public interface PicoStructure {
 	 */
 	static final long FIXED_HEADER_LENGTH = KEY_OFFSET;
 	
+	/** Length of the tag of a metadata entry.  Currently {@value}. */
+	static final long META_TAG_LENGTH = Short.SIZE / 8;
+	
+	/** Length of the value length of a metadata entry.  Currently {@value}. */
+	static final long META_SIZE_LENGTH = Integer.SIZE / 8;
+	
+	/** Tag that ends the metadata entries.  Currently {@value}. */
+	static final short META_END = 0;
+	
+	/**
+	 * Tag of the chunked tree hash entry.  Currently {@value}.  The value
+	 * holds the chunk size, a hash per group of chunks, and the root hash.
+	 */
+	static final short META_TREE = 1;
+	
+	/**
+	 * Tag of the hash algorithm entry.  Currently {@value}.  The value holds
+	 * the identifier of the {@link HashAlgorithm} ({@code META_TAG_LENGTH}
+	 * bytes), the length of the hash ({@code META_TAG_LENGTH} bytes), and the
+	 * hash.  When present, this is the first entry.  Files without it use
+	 * {@code HASH}.
+	 */
+	static final short META_HASH = 2;
+	
+	/**
+	 * Tag of the storage CRC entry.  Currently {@value}.  The value holds a
+	 * CRC-32C of each block of the encrypted data as stored, so damage can
+	 * be found without decoding.
+	 */
+	static final short META_STORAGE = 3;
+	
+	/**
+	 * Tag of the typed values entry.  Currently {@value}.  The value holds
+	 * key-value pairs, encoded as described in {@link PicoMetadata}.
+	 */
+	static final short META_VALUES = 4;
+	
 	/** Specify the byte order for the numeric fields. */
 	static final ByteOrder ORDER = ByteOrder.BIG_ENDIAN;
 }
@@ -0,0 +1,361 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hash and encrypt data on separate threads. The caller copies its data into
+ * blocks from a bounded ring. Each full block goes to two workers: one feeds
+ * the message digest, and the other encrypts the block and writes it out.
+ * Both read the same block, which neither changes, and the block returns to
+ * the ring once both are done with it. When the ring is empty the caller
+ * waits, so the workers can never fall more than a ring behind.
+ * <p>
+ * Because each worker sees the blocks in order, the digest and the output
+ * are exactly what they would be if the work were done on the caller thread.
+ * <p>
+ * Instances are not safe for use by more than one producer thread.
+ * 
+ * @author jcarter
+ */
+class Pipeline {
+
+    /** A block of unencrypted data. */
+    private static final class Block {
+        /** The data. */
+        final byte[] data;
+
+        /** The number of valid bytes in the block. */
+        int length = 0;
+
+        /** The position of the first byte in the data section. */
+        long position = 0L;
+
+        /** The number of workers still using the block. */
+        final AtomicInteger users = new AtomicInteger();
+
+        /**
+         * Make a new block.
+         * 
+         * @param size The capacity of the block.
+         */
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /** How long the producer waits for a block before checking the workers. */
+    private static final long WAIT_MILLIS = 100L;
+
+    /** The marker sent to the workers when there is no more data. */
+    private static final Block END = new Block(0);
+
+    /** The header used to encrypt the data. */
+    private final PicoHeader _head;
+
+    /** The digest to update, or {@code null} if there is none. */
+    private final MessageDigest _digest;
+
+    /** The stream to get the encrypted data. */
+    private final OutputStream _sink;
+
+    /** The ring of empty blocks. */
+    private final BlockingQueue<Block> _free;
+
+    /** Blocks waiting to be digested. */
+    private final BlockingQueue<Block> _todigest;
+
+    /** Blocks waiting to be encrypted and written. */
+    private final BlockingQueue<Block> _toencode;
+
+    /** The digest worker, or {@code null} if there is no digest. */
+    private final Thread _digester;
+
+    /** The encrypt worker. */
+    private final Thread _encoder;
+
+    /** The first failure encountered by a worker, if any. */
+    private volatile IOException _failure = null;
+
+    /** The block being filled by the caller, or {@code null} if none. */
+    private Block _current = null;
+
+    /** The position of the next byte in the data section. */
+    private long _position = 0L;
+
+    /**
+     * Start the workers.
+     * 
+     * @param head The header used to encrypt the data.
+     * @param digest The digest to update, or {@code null} to skip hashing.
+     * @param sink The stream to get the encrypted data.
+     * @param buffers The number of blocks in the ring, which must be at least
+     *            two.
+     * @param size The size of each block, which must be positive.
+     */
+    Pipeline(PicoHeader head, MessageDigest digest, OutputStream sink, int buffers,
+            final int size) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least two buffers are required.");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("The buffer size must be positive.");
+        }
+        _head = head;
+        _digest = digest;
+        _sink = sink;
+        _free = new ArrayBlockingQueue<Block>(buffers);
+        _todigest = new ArrayBlockingQueue<Block>(buffers + 1);
+        _toencode = new ArrayBlockingQueue<Block>(buffers + 1);
+        for (int index = 0; index < buffers; index++) {
+            _free.add(new Block(size));
+        } // Make the ring.
+
+        if (digest != null) {
+            _digester = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        _digest();
+                    } catch (Throwable thr) {
+                        _fail(new IOException("Digest worker failed.", thr));
+                    }
+                }
+            }, "pico-digest");
+            _digester.setDaemon(true);
+            _digester.start();
+        } else {
+            _digester = null;
+        }
+        _encoder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _encode(new byte[size]);
+                } catch (Throwable thr) {
+                    _fail(new IOException("Encrypt worker failed.", thr));
+                }
+            }
+        }, "pico-encode");
+        _encoder.setDaemon(true);
+        _encoder.start();
+    }
+
+    // ======================================================================
+    // Workers.
+    // ======================================================================
+
+    /**
+     * Feed blocks to the digest until the end marker arrives. After a failure
+     * the blocks are still drained, so the caller does not wait forever.
+     */
+    private void _digest() {
+        try {
+            Block block;
+            while ((block = _todigest.take()) != END) {
+                if (_failure == null) {
+                    try {
+                        _digest.update(block.data, 0, block.length);
+                    } catch (RuntimeException re) {
+                        _fail(new IOException("Digest worker failed.", re));
+                    }
+                }
+                _release(block);
+            } // Digest all blocks.
+        } catch (InterruptedException ie) {
+            _fail(new InterruptedIOException("Digest worker interrupted."));
+        }
+    }
+
+    /**
+     * Encrypt and write blocks until the end marker arrives. After a failure
+     * the blocks are still drained, so the caller does not wait forever.
+     * 
+     * @param scratch Space to hold the encrypted data.
+     */
+    private void _encode(byte[] scratch) {
+        try {
+            Block block;
+            while ((block = _toencode.take()) != END) {
+                if (_failure == null) {
+                    try {
+                        _head.crypt(block.data, 0, scratch, 0, block.length, block.position);
+                        _sink.write(scratch, 0, block.length);
+                    } catch (IOException ioe) {
+                        _fail(ioe);
+                    } catch (RuntimeException re) {
+                        _fail(new IOException("Encrypt worker failed.", re));
+                    }
+                }
+                _release(block);
+            } // Encrypt all blocks.
+        } catch (InterruptedException ie) {
+            _fail(new InterruptedIOException("Encrypt worker interrupted."));
+        }
+    }
+
+    /**
+     * Record a failure, keeping the first one.
+     * 
+     * @param ioe The failure.
+     */
+    private synchronized void _fail(IOException ioe) {
+        if (_failure == null) {
+            _failure = ioe;
+        }
+    }
+
+    /**
+     * Note that a worker is done with a block, and return it to the ring if
+     * it was the last.
+     * 
+     * @param block The block.
+     */
+    private void _release(Block block) {
+        if (block.users.decrementAndGet() == 0) {
+            _free.offer(block);
+        }
+    }
+
+    // ======================================================================
+    // Producer.
+    // ======================================================================
+
+    /**
+     * Throw the first worker failure, if there is one.
+     * 
+     * @throws IOException The failure.
+     */
+    private void _check() throws IOException {
+        IOException failure = _failure;
+        if (failure != null) {
+            throw new IOException("Pipelined write failed.", failure);
+        }
+    }
+
+    /**
+     * Make sure there is a block with room in it, waiting for one if the ring
+     * is empty. While waiting the workers are checked, so one that has died
+     * is reported rather than waited on forever.
+     * 
+     * @throws IOException A worker failed, or the wait was interrupted.
+     */
+    private void _ensureBlock() throws IOException {
+        if (_current != null && _current.length < _current.data.length) {
+            return;
+        }
+        if (_current != null) {
+            _submit();
+        }
+        try {
+            while ((_current = _free.poll(WAIT_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                _check();
+            } // Wait for a block.
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a buffer.");
+        }
+        _current.length = 0;
+        _current.position = _position;
+    }
+
+    /**
+     * Pass the current block to the workers.
+     * 
+     * @throws IOException The wait was interrupted.
+     */
+    private void _submit() throws IOException {
+        Block block = _current;
+        _current = null;
+        block.users.set(_digester == null ? 1 : 2);
+        try {
+            // These never wait, since the queues can hold every block.
+            if (_digester != null) {
+                _todigest.put(block);
+            }
+            _toencode.put(block);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted passing a buffer.");
+        }
+    }
+
+    /**
+     * Write data.
+     * 
+     * @param data The array holding the data.
+     * @param off The offset of the first byte.
+     * @param len The number of bytes.
+     * @throws IOException A worker failed, or a wait was interrupted.
+     */
+    void write(byte[] data, int off, int len) throws IOException {
+        _check();
+        while (len > 0) {
+            _ensureBlock();
+            int length = Math.min(len, _current.data.length - _current.length);
+            System.arraycopy(data, off, _current.data, _current.length, length);
+            _current.length += length;
+            _position += length;
+            off += length;
+            len -= length;
+        } // Copy all data.
+    }
+
+    /**
+     * Write a byte.
+     * 
+     * @param datum The byte.
+     * @throws IOException A worker failed, or a wait was interrupted.
+     */
+    void write(int datum) throws IOException {
+        _check();
+        _ensureBlock();
+        _current.data[_current.length++] = (byte) datum;
+        _position++;
+    }
+
+    /**
+     * Pass on any partial block, and wait for both workers to finish. After
+     * this the digest is complete and all encrypted data has been written to
+     * the sink (but the sink has not been flushed). The pipeline cannot be
+     * used after this.
+     * 
+     * @throws IOException A worker failed, or a wait was interrupted.
+     */
+    void finish() throws IOException {
+        try {
+            if (_current != null && _current.length > 0) {
+                _submit();
+            }
+            if (_digester != null) {
+                _todigest.put(END);
+            }
+            _toencode.put(END);
+            if (_digester != null) {
+                _digester.join();
+            }
+            _encoder.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the workers.");
+        }
+        _check();
+    }
+}
@@ -0,0 +1,231 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Read ahead of sequential reads of a {@link PicoFile}. When a read follows
+ * on from the last one and misses the buffer, a window of bytes is read and
+ * decoded in bulk, and later reads are served from it. Each such refill
+ * doubles the window, from {@value #MIN_WINDOW} bytes up to a maximum, so
+ * streaming through a file soon costs one large read per few megabytes. A
+ * read anywhere else is served directly, and drops the window back to its
+ * smallest size, so random access does not pay for bytes it never uses.
+ * <p>
+ * The maximum window defaults to {@value #DEFAULT_MAX_WINDOW} bytes, and can
+ * be set with the system property {@code ornl.pico.io.readahead}.
+ * <p>
+ * Writes through the file drop the window only if they change bytes in it.
+ * Writes through any other {@link PicoFile} open on the same file drop the
+ * window, so it never serves bytes that another instance has overwritten.
+ * <p>
+ * Instances are safe for use by more than one thread, but reads from more
+ * than one thread will not look sequential.
+ * 
+ * @author jcarter
+ */
+class Prefetch {
+
+    /** The smallest window. */
+    static final int MIN_WINDOW = 64 * 1024;
+
+    /** The default largest window. */
+    static final int DEFAULT_MAX_WINDOW = 4 * 1024 * 1024;
+
+    /** The file to read. */
+    private final PicoFile _file;
+
+    /** The largest window. */
+    private final int _maxwindow;
+
+    /** The size of the next window to read. */
+    private int _window = MIN_WINDOW;
+
+    /** The decoded bytes, from zero to the limit. */
+    private ByteBuffer _buffer = ByteBuffer.allocate(0);
+
+    /** The position of the first byte in the buffer. */
+    private long _start = 0L;
+
+    /** The position just past the last byte read. */
+    private long _expected = 0L;
+
+    /**
+     * The number of writes to the file before the buffer was filled, plus the
+     * writes through this file since.
+     */
+    private long _writes = 0L;
+
+    /** A buffer for the single-byte read. */
+    private final ByteBuffer _single = ByteBuffer.allocate(1);
+
+    /**
+     * Prepare to read ahead. Nothing is read until it is needed.
+     * 
+     * @param file The file to read.
+     */
+    Prefetch(PicoFile file) {
+        _file = file;
+        int max = Integer.getInteger("ornl.pico.io.readahead", DEFAULT_MAX_WINDOW);
+        if (max < MIN_WINDOW) {
+            throw new IllegalArgumentException("The read-ahead must be at least " + MIN_WINDOW
+                    + " bytes.");
+        }
+        _maxwindow = max;
+    }
+
+    /**
+     * Read bytes starting at the given position.
+     * 
+     * @param dst The buffer to get the bytes.
+     * @param position The position of the first byte.
+     * @return The number of bytes read, or -1 at the end of the file.
+     * @throws IOException The file cannot be read.
+     */
+    synchronized int read(ByteBuffer dst, long position) throws IOException {
+        _check();
+        boolean sequential = (position == _expected);
+        int total = 0;
+        while (dst.hasRemaining()) {
+            long here = position + total;
+            if (here >= _start && here < _start + _buffer.limit()) {
+                // Serve what we can from the buffer.
+                ByteBuffer view = _buffer.duplicate();
+                view.position((int) (here - _start));
+                int length = Math.min(dst.remaining(), view.remaining());
+                view.limit(view.position() + length);
+                dst.put(view);
+                total += length;
+                continue;
+            }
+            if (!sequential) {
+                // Random access, so read only what was asked.
+                _window = MIN_WINDOW;
+                int length = _file.read(dst, here);
+                if (length > 0) {
+                    total += length;
+                } else {
+                    break;
+                }
+                continue;
+            }
+            if (dst.remaining() >= _window) {
+                // The read is big enough on its own.
+                int length = _file.read(dst, here);
+                if (length > 0) {
+                    total += length;
+                }
+                break;
+            }
+            if (!_fill(here)) {
+                break;
+            }
+        } // Read until full or at the end.
+        if (total > 0) {
+            _expected = position + total;
+            return total;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the byte at the given position.
+     * 
+     * @param position The position of the byte.
+     * @return The byte, or -1 at the end of the file.
+     * @throws IOException The file cannot be read.
+     */
+    synchronized int read(long position) throws IOException {
+        _check();
+        long index = position - _start;
+        if (index < 0 || index >= _buffer.limit()) {
+            _single.clear();
+            if (read(_single, position) <= 0) {
+                return -1;
+            }
+            return _single.get(0) & 0xff;
+        }
+        _expected = position + 1;
+        return _buffer.get((int) index) & 0xff;
+    }
+
+    /**
+     * Read the next window of bytes into the buffer, and grow the window.
+     * 
+     * @param position The position of the first byte.
+     * @return True if any bytes were read, and false at the end of the file.
+     * @throws IOException The file cannot be read.
+     */
+    private boolean _fill(long position) throws IOException {
+        if (_buffer.capacity() < _window) {
+            _buffer = ByteBuffer.allocate(_window);
+        }
+        _writes = _file.writes();
+        _buffer.clear();
+        _buffer.limit(_window);
+        _start = position;
+        while (_buffer.hasRemaining()) {
+            if (_file.read(_buffer, position + _buffer.position()) <= 0) {
+                break;
+            }
+        } // Fill the window.
+        _buffer.flip();
+        _window = Math.min(_maxwindow, _window * 2);
+        return _buffer.hasRemaining();
+    }
+
+    /**
+     * Drop the buffer if another instance has written the file since it was
+     * filled.
+     */
+    private void _check() {
+        if (_buffer.limit() > 0 && _file.writes() != _writes) {
+            _buffer.limit(0);
+        }
+    }
+
+    /**
+     * Drop the buffer if it holds any of a range of bytes, because they are
+     * about to change.
+     * 
+     * @param start The position of the first byte.
+     * @param end The position just past the last byte, or
+     *            {@link Long#MAX_VALUE} for the rest of the file.
+     */
+    synchronized void invalidate(long start, long end) {
+        if (start < _start + _buffer.limit() && _start < end) {
+            _buffer.limit(0);
+        }
+    }
+
+    /**
+     * Note a write through the file, which has completed, and drop the
+     * buffer if it holds any of the bytes. The write is counted for every
+     * instance open on the file, but not against the buffer here, since it
+     * is dropped only if it holds the bytes.
+     * 
+     * @param start The position of the first byte.
+     * @param end The position just past the last byte, or
+     *            {@link Long#MAX_VALUE} for the rest of the file.
+     * @param count The count of writes to the file, or {@code null} if
+     *            there is none.
+     */
+    synchronized void written(long start, long end, WriteCount count) {
+        invalidate(start, end);
+        if (count != null) {
+            count.increment();
+            _writes++;
+        }
+    }
+}
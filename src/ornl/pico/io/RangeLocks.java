@@ -0,0 +1,114 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock ranges of a file with a fixed set of striped locks. The file is split
+ * into blocks, and each block is guarded by one of the stripes, in rotation.
+ * Locking a range takes the stripes of every block it touches, always in
+ * increasing stripe order, so two lockers cannot deadlock. Ranges far enough
+ * apart usually share no stripes and proceed in parallel; overlapping ranges
+ * always share a stripe and are serialized.
+ * 
+ * @author jcarter
+ */
+class RangeLocks {
+
+    /** The stripes. */
+    private final ReentrantLock[] _stripes;
+
+    /** The size of a block. */
+    private final long _blocksize;
+
+    /**
+     * Make a new set of locks.
+     * 
+     * @param stripes The number of stripes.
+     * @param blocksize The size of the block guarded by each stripe.
+     */
+    RangeLocks(int stripes, long blocksize) {
+        if (stripes < 1 || blocksize < 1) {
+            throw new IllegalArgumentException("The stripes and block size must be positive.");
+        }
+        _stripes = new ReentrantLock[stripes];
+        for (int index = 0; index < stripes; index++) {
+            _stripes[index] = new ReentrantLock();
+        } // Make the stripes.
+        _blocksize = blocksize;
+    }
+
+    /**
+     * Lock a range, waiting for any overlapping range to be unlocked.
+     * 
+     * @param start The offset of the first byte.
+     * @param end The offset just past the last byte.
+     */
+    void lock(long start, long end) {
+        _apply(start, end, true);
+    }
+
+    /**
+     * Unlock a range locked by {@link #lock(long, long)}.
+     * 
+     * @param start The offset of the first byte.
+     * @param end The offset just past the last byte.
+     */
+    void unlock(long start, long end) {
+        _apply(start, end, false);
+    }
+
+    /**
+     * Lock or unlock the stripes of all blocks in a range, in increasing
+     * stripe order.
+     * 
+     * @param start The offset of the first byte.
+     * @param end The offset just past the last byte.
+     * @param lock If true, lock the stripes; otherwise unlock them.
+     */
+    private void _apply(long start, long end, boolean lock) {
+        int count = _stripes.length;
+        long first = start / _blocksize;
+        long last = (Math.max(end, start + 1) - 1) / _blocksize;
+        if (last - first + 1 >= count) {
+            _apply(0, count - 1, lock);
+            return;
+        }
+        int low = (int) (first % count);
+        int high = (int) (last % count);
+        if (low <= high) {
+            _apply(low, high, lock);
+        } else {
+            // The range wraps around the stripes.
+            _apply(0, high, lock);
+            _apply(low, count - 1, lock);
+        }
+    }
+
+    /**
+     * Lock or unlock a run of stripes.
+     * 
+     * @param low The first stripe.
+     * @param high The last stripe.
+     * @param lock If true, lock the stripes; otherwise unlock them.
+     */
+    private void _apply(int low, int high, boolean lock) {
+        for (int index = low; index <= high; index++) {
+            if (lock) {
+                _stripes[index].lock();
+            } else {
+                _stripes[index].unlock();
+            }
+        } // Process all stripes in the run.
+    }
+}
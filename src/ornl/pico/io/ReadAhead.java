@@ -0,0 +1,278 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Read and decode the data section of a Pico stream on a background thread,
+ * so that reading the next block overlaps with the consumer draining the
+ * current one.
+ * <p>
+ * A fixed set of blocks circulates between two queues. The background thread
+ * takes an empty block, fills it from the source, decodes it, and passes it
+ * on. The consumer drains the block and hands it back. With two blocks this
+ * is double buffering, with three it is triple buffering, and so on.
+ * <p>
+ * Instances are not safe for use by more than one consumer thread.
+ * 
+ * @author jcarter
+ */
+class ReadAhead implements Runnable {
+
+    /** A block of decoded data. */
+    private static final class Block {
+        /** The decoded bytes. */
+        final byte[] data;
+
+        /** The number of valid bytes in the block. */
+        int length = 0;
+
+        /**
+         * Make a new block.
+         * 
+         * @param size The capacity of the block.
+         */
+        Block(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /** The longest wait before reading again from a source that had nothing. */
+    private static final long MAX_PAUSE_MILLIS = 100L;
+
+    /** How long to wait for the background thread to stop on close. */
+    private static final long CLOSE_MILLIS = 5000L;
+
+    /** The marker passed to the consumer when the source is exhausted. */
+    private static final Block END = new Block(0);
+
+    /** The stream providing the encoded data. */
+    private final InputStream _source;
+
+    /** The header used to decode the data. */
+    private final PicoHeader _head;
+
+    /** Blocks waiting to be filled. */
+    private final BlockingQueue<Block> _empty;
+
+    /** Blocks waiting to be drained, in order. */
+    private final BlockingQueue<Block> _full;
+
+    /** The background thread. */
+    private final Thread _thread;
+
+    /** The failure encountered by the background thread, if any. */
+    private volatile IOException _failure = null;
+
+    /** Set when the consumer closes the stream. */
+    private volatile boolean _closed = false;
+
+    /** The block being drained, or {@code null} if none. */
+    private Block _current = null;
+
+    /** The index of the next byte to drain in the current block. */
+    private int _index = 0;
+
+    /**
+     * Start reading ahead from the source. The source must be positioned at
+     * the first byte of the data section.
+     * 
+     * @param source The stream providing the encoded data.
+     * @param head The header used to decode the data.
+     * @param buffers The number of blocks, which must be at least two.
+     * @param size The size of each block, which must be positive.
+     */
+    ReadAhead(InputStream source, PicoHeader head, int buffers, int size) {
+        if (buffers < 2) {
+            throw new IllegalArgumentException("At least two buffers are required.");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("The buffer size must be positive.");
+        }
+        _source = source;
+        _head = head;
+        _empty = new ArrayBlockingQueue<Block>(buffers);
+        _full = new ArrayBlockingQueue<Block>(buffers + 1);
+        for (int index = 0; index < buffers; index++) {
+            _empty.add(new Block(size));
+        } // Make the blocks.
+        _thread = new Thread(this, "pico-read-ahead");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        long position = 0L;
+        try {
+            while (!_closed) {
+                Block block = _empty.take();
+                int length = _source.read(block.data, 0, block.data.length);
+                long pause = 1L;
+                while (length == 0 && !_closed) {
+                    // Nothing yet, and the consumer only wants non-empty
+                    // blocks. Wait a little longer each time rather than spin.
+                    Thread.sleep(pause);
+                    pause = Math.min(MAX_PAUSE_MILLIS, pause * 2);
+                    length = _source.read(block.data, 0, block.data.length);
+                } // Read until there are bytes.
+                if (length <= 0) {
+                    break;
+                }
+                _head.crypt(block.data, 0, length, position);
+                position += length;
+                block.length = length;
+                _full.put(block);
+            } // Read until the end of the source.
+        } catch (InterruptedException ie) {
+            // The stream was closed. Fall through.
+        } catch (IOException ioe) {
+            if (!_closed) {
+                _failure = ioe;
+            }
+        } catch (Throwable thr) {
+            // Anything else, such as a runtime exception from the source,
+            // must still reach the consumer rather than leave it waiting.
+            if (!_closed) {
+                _failure = new IOException("Read-ahead thread failed.", thr);
+            }
+        } finally {
+            // There is always room for the end marker.
+            _full.offer(END);
+        }
+    }
+
+    /**
+     * Make sure there are bytes available in the current block, waiting for
+     * the background thread if necessary.
+     * 
+     * @return True if there are bytes available, and false at the end of the
+     *         data.
+     * @throws IOException The background thread failed, or the wait was
+     *             interrupted.
+     */
+    private boolean _fill() throws IOException {
+        if (_current != null && _index < _current.length) {
+            return true;
+        }
+        if (_current == END) {
+            return false;
+        }
+        if (_current != null) {
+            _empty.offer(_current);
+            _current = null;
+        }
+        try {
+            _current = _full.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for data.");
+        }
+        _index = 0;
+        if (_current == END) {
+            if (_failure != null) {
+                throw new IOException("Read-ahead failed.", _failure);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read the next decoded byte.
+     * 
+     * @return The byte, or -1 at the end of the data.
+     * @throws IOException The data cannot be read.
+     */
+    int read() throws IOException {
+        if (!_fill()) {
+            return -1;
+        }
+        return _current.data[_index++] & 0xff;
+    }
+
+    /**
+     * Read decoded bytes into an array. This copies from at most one block.
+     * 
+     * @param data The array to get the bytes.
+     * @param off The offset of the first byte in the array.
+     * @param len The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 at the end of the data.
+     * @throws IOException The data cannot be read.
+     */
+    int read(byte[] data, int off, int len) throws IOException {
+        if (!_fill()) {
+            return -1;
+        }
+        int length = Math.min(len, _current.length - _index);
+        System.arraycopy(_current.data, _index, data, off, length);
+        _index += length;
+        return length;
+    }
+
+    /**
+     * Skip decoded bytes. This skips within at most one block.
+     * 
+     * @param count The maximum number of bytes to skip.
+     * @return The number of bytes skipped.
+     * @throws IOException The data cannot be read.
+     */
+    long skip(long count) throws IOException {
+        if (count <= 0 || !_fill()) {
+            return 0L;
+        }
+        int length = (int) Math.min(count, _current.length - _index);
+        _index += length;
+        return length;
+    }
+
+    /**
+     * Get the number of decoded bytes that can be read without waiting.
+     * 
+     * @return The number of bytes left in the current block.
+     */
+    int available() {
+        return (_current == null) ? 0 : _current.length - _index;
+    }
+
+    /**
+     * Stop the background thread and close the source. This waits a while
+     * for the background thread to finish, but not forever, since a source
+     * may not release a thread blocked in a read when it is closed.
+     * 
+     * @throws IOException The source cannot be closed.
+     */
+    void close() throws IOException {
+        _closed = true;
+        _thread.interrupt();
+        try {
+            // Closing the source also releases a thread blocked in a read.
+            _source.close();
+        } finally {
+            try {
+                _thread.join(CLOSE_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
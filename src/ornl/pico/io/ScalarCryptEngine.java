@@ -0,0 +1,73 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Apply a keystream tile a {@code long} word at a time. This works on any
+ * platform, and is the fallback when no faster engine is available.
+ * 
+ * @author jcarter
+ */
+final class ScalarCryptEngine extends CryptEngine {
+
+    /** The number of bytes processed per step. */
+    static final int WORD = Long.SIZE / 8;
+
+    /**
+     * Access to the bytes of an array as {@code long} words. The byte order
+     * does not matter, so long as it is the same for the data and the tile.
+     */
+    private static final VarHandle WORDS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ornl.pico.io.CryptEngine#granularity()
+     */
+    @Override
+    int granularity() {
+        return WORD;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ornl.pico.io.CryptEngine#xor(byte[], int, byte[], int, int, byte[],
+     * int, int)
+     */
+    @Override
+    void xor(byte[] src, int srcoff, byte[] dst, int dstoff, int len, byte[] tile, int period,
+            int index) {
+        // Work through the range a word at a time.
+        int stop = srcoff + (len & ~(WORD - 1));
+        while (srcoff < stop) {
+            WORDS.set(dst, dstoff, (long) WORDS.get(src, srcoff) ^ (long) WORDS.get(tile, index));
+            srcoff += WORD;
+            dstoff += WORD;
+            index += WORD;
+            if (index >= period) {
+                index -= period;
+            }
+        } // Process all whole words.
+
+        // Finish any trailing bytes. These fit in the slack.
+        stop += len & (WORD - 1);
+        while (srcoff < stop) {
+            dst[dstoff++] = (byte) (src[srcoff++] ^ tile[index++]);
+        } // Process the tail.
+    }
+}
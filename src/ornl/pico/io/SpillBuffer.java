@@ -0,0 +1,204 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Hold bytes in memory up to a threshold, and in a temporary file past it.
+ * The bytes can then be copied to another stream in one go. This lets small
+ * payloads avoid the file system entirely, while large payloads do not have
+ * to fit in memory.
+ * 
+ * @author jcarter
+ */
+class SpillBuffer extends OutputStream {
+
+    /** The size of the buffer used for the temporary file. */
+    private static final int FILE_BUFFER = 64 * 1024;
+
+    /** The most bytes to hold in memory. */
+    private final int _threshold;
+
+    /** The bytes held in memory, until the buffer spills. */
+    private byte[] _memory = new byte[0];
+
+    /** The number of bytes written. */
+    private long _count = 0L;
+
+    /** The temporary file, or {@code null} if the buffer has not spilled. */
+    private File _file = null;
+
+    /** The stream writing the temporary file. */
+    private OutputStream _fileout = null;
+
+    /**
+     * Make a new, empty buffer.
+     * 
+     * @param threshold The most bytes to hold in memory. If this is zero, all
+     *            bytes go to a temporary file.
+     */
+    SpillBuffer(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("The threshold is negative.");
+        }
+        _threshold = threshold;
+    }
+
+    /**
+     * Get the number of bytes written.
+     * 
+     * @return The number of bytes.
+     */
+    long size() {
+        return _count;
+    }
+
+    /**
+     * Determine whether the bytes have spilled to a temporary file.
+     * 
+     * @return True if the bytes are in a temporary file.
+     */
+    boolean spilled() {
+        return _file != null;
+    }
+
+    /**
+     * Move everything held in memory to a new temporary file. All subsequent
+     * writes go to the file.
+     * 
+     * @throws IOException The temporary file cannot be created or written.
+     */
+    private void _spill() throws IOException {
+        _file = File.createTempFile("pico", "pico");
+        _file.deleteOnExit();
+        _fileout = new BufferedOutputStream(new FileOutputStream(_file), FILE_BUFFER);
+        _fileout.write(_memory, 0, (int) _count);
+        _memory = null;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    @Override
+    public void write(byte[] data, int off, int len) throws IOException {
+        if (_file == null) {
+            if (_count + len <= _threshold) {
+                if (_count + len > _memory.length) {
+                    // Grow geometrically, but never past the threshold.
+                    int size = (int) Math.min(_threshold,
+                            Math.max(_count + len, 2L * _memory.length));
+                    _memory = Arrays.copyOf(_memory, size);
+                }
+                System.arraycopy(data, off, _memory, (int) _count, len);
+                _count += len;
+                return;
+            }
+            _spill();
+        }
+        _fileout.write(data, off, len);
+        _count += len;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.OutputStream#write(int)
+     */
+    @Override
+    public void write(int datum) throws IOException {
+        if (_file == null && _count < _memory.length) {
+            _memory[(int) _count++] = (byte) datum;
+            return;
+        }
+        if (_file == null && _count < _threshold) {
+            // Let the array write grow the memory.
+            write(new byte[] { (byte) datum }, 0, 1);
+            return;
+        }
+        if (_file == null) {
+            _spill();
+        }
+        _fileout.write(datum);
+        _count++;
+    }
+
+    /**
+     * Copy all bytes written to the given stream, and then discard them. The
+     * buffer cannot be used after this.
+     * <p>
+     * If the bytes are in a temporary file and the stream is a
+     * {@link FileOutputStream}, the copy is done channel to channel, so the
+     * operating system can move the bytes without bringing them into the
+     * process. Otherwise the copy is done through the given buffer until the
+     * end of the file is reached.
+     * 
+     * @param out The stream to get the bytes.
+     * @param buffer Space to use for copying.
+     * @throws IOException The bytes cannot be copied.
+     */
+    void transferTo(OutputStream out, byte[] buffer) throws IOException {
+        try {
+            if (_file == null) {
+                out.write(_memory, 0, (int) _count);
+                return;
+            }
+            _fileout.close();
+            FileInputStream fis = new FileInputStream(_file);
+            try {
+                if (out instanceof FileOutputStream) {
+                    FileChannel source = fis.getChannel();
+                    FileChannel target = ((FileOutputStream) out).getChannel();
+                    long done = 0L;
+                    while (done < _count) {
+                        done += source.transferTo(done, _count - done, target);
+                    } // Copy all bytes.
+                    return;
+                }
+                int length;
+                while ((length = fis.read(buffer)) >= 0) {
+                    out.write(buffer, 0, length);
+                } // Copy until the end of the file.
+            } finally {
+                fis.close();
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Discard all bytes written, deleting the temporary file if there is one.
+     * The buffer cannot be used after this.
+     * 
+     * @throws IOException The temporary file cannot be closed.
+     */
+    void discard() throws IOException {
+        _memory = null;
+        if (_file != null) {
+            try {
+                _fileout.close();
+            } finally {
+                _file.delete();
+            }
+        }
+    }
+}
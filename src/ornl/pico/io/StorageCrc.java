@@ -0,0 +1,312 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.zip.CRC32C;
+
+import ornl.pico.PicoException;
+
+/**
+ * Keep a CRC-32C of each block of the encrypted data as stored, so the
+ * stored bytes can be checked for damage at disk speed, without the key and
+ * without decoding anything. This only detects changes to the stored bytes;
+ * it says nothing about whether the data is what was meant to be written,
+ * which is what the hash is for.
+ * <p>
+ * The header has a fixed amount of room for CRCs, given by the capacity. As
+ * the data grows past the capacity the block size doubles, and the CRCs of
+ * each pair of blocks are combined without reading the data again (see
+ * {@link CrcCombine}). After a write only the changed blocks are read.
+ * <p>
+ * The value of the {@link PicoStructure#META_STORAGE} entry is the following,
+ * with numbers stored in {@link PicoStructure#ORDER}.
+ * <table>
+ * <tr><th>Item</th><th>Length</th></tr>
+ * <tr><td>Block size</td><td>4</td></tr>
+ * <tr><td>Capacity</td><td>4</td></tr>
+ * <tr><td>Size of the data checked</td><td>8</td></tr>
+ * <tr><td>Number of stored CRCs</td><td>4</td></tr>
+ * <tr><td>Stored CRCs</td><td>capacity times 4</td></tr>
+ * </table>
+ * The CRCs cover the encrypted data only, from the offset to the end of the
+ * file, and not the header.
+ * 
+ * @author jcarter
+ */
+class StorageCrc {
+
+    /** The default block size. */
+    static final int DEFAULT_BLOCK = 1024 * 1024;
+
+    /** The default number of stored CRCs. */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** The length of the value before the stored CRCs. */
+    private static final int FIXED_LENGTH = 4 + 4 + 8 + 4;
+
+    /** The size of the buffer used to read a block. */
+    private static final int READ_SIZE = 1024 * 1024;
+
+    /** The size of a block. */
+    private int _block;
+
+    /** The most CRCs that can be stored. */
+    private final int _capacity;
+
+    /** The size of the data when last checked. */
+    private long _size = 0L;
+
+    /** The number of stored CRCs in use. */
+    private int _count = 0;
+
+    /** The stored CRCs. */
+    private final int[] _crcs;
+
+    /** The blocks changed since the CRCs were last computed. */
+    private final BitSet _dirty = new BitSet();
+
+    /**
+     * Make a new set of CRCs for empty data.
+     * 
+     * @param block The size of a block.
+     * @param capacity The most CRCs to store in the header.
+     */
+    StorageCrc(int block, int capacity) {
+        if (block < 1 || capacity < 1) {
+            throw new IllegalArgumentException("The block size and capacity must be positive.");
+        }
+        _block = block;
+        _capacity = capacity;
+        _crcs = new int[capacity];
+    }
+
+    /**
+     * Read a set of CRCs from the value of its metadata entry.
+     * 
+     * @param value The value.
+     * @return The CRCs.
+     * @throws PicoException The value is damaged.
+     */
+    static StorageCrc parse(byte[] value) throws PicoException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(value).order(PicoStructure.ORDER);
+            int block = buf.getInt();
+            int capacity = buf.getInt();
+            long size = buf.getLong();
+            int count = buf.getInt();
+            if (block < 1 || capacity < 1 || size < 0 || count < 0 || count > capacity
+                    || (size + block - 1) / block != count
+                    || buf.remaining() != (long) capacity * 4) {
+                throw new PicoException("The storage CRCs are damaged.");
+            }
+            StorageCrc crcs = new StorageCrc(block, capacity);
+            crcs._size = size;
+            crcs._count = count;
+            buf.asIntBuffer().get(crcs._crcs, 0, count);
+            return crcs;
+        } catch (RuntimeException re) {
+            throw new PicoException("The storage CRCs are damaged.");
+        }
+    }
+
+    /**
+     * Make the metadata entry for these CRCs. The length of the entry depends
+     * only on the capacity, so it can be rewritten in place.
+     * 
+     * @return The entry, including its tag and length.
+     */
+    synchronized byte[] encode() {
+        ByteBuffer buf = ByteBuffer.allocate(FIXED_LENGTH + _capacity * 4)
+                .order(PicoStructure.ORDER);
+        buf.putInt(_block).putInt(_capacity).putLong(_size).putInt(_count);
+        for (int index = 0; index < _count; index++) {
+            buf.putInt(_crcs[index]);
+        } // Write all stored CRCs; the rest stay zero.
+        return PicoHeader.makeMetadata(PicoStructure.META_STORAGE, buf.array());
+    }
+
+    /**
+     * Note that a range of the data has changed. Safe to call from
+     * concurrent writers.
+     * 
+     * @param start The position of the first byte changed.
+     * @param end The position just past the last byte changed.
+     */
+    synchronized void mark(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        _dirty.set(_index(start / _block), _index((end - 1) / _block) + 1);
+    }
+
+    /**
+     * Note that the data has been cut (or extended) to the given size.
+     * 
+     * @param size The new size.
+     */
+    synchronized void truncate(long size) {
+        if (size > 0) {
+            // The last block has changed.
+            mark(size - 1, size);
+        }
+    }
+
+    /**
+     * Bring the CRCs up to date with the stored data, reading only the
+     * blocks that have changed.
+     * 
+     * @param channel The channel of the file.
+     * @param offset The offset of the data in the file.
+     * @param size The size of the data.
+     * @throws IOException The data cannot be read.
+     */
+    synchronized void update(FileChannel channel, long offset, long size) throws IOException {
+        while (_blocks(size) > _capacity) {
+            _raise();
+        } // Grow the blocks until the CRCs fit.
+        int count = (int) _blocks(size);
+        if (count != _count || size != _size) {
+            // The blocks at the end have come, gone, or changed length.
+            int first = Math.max(0, Math.min(count, _count) - 1);
+            _dirty.set(first, Math.max(count, _count));
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_SIZE);
+        for (int index = _dirty.nextSetBit(0); index >= 0 && index < count;
+                index = _dirty.nextSetBit(index + 1)) {
+            _crcs[index] = _crcOf(channel, offset, index, size, buf);
+        } // Compute the changed blocks.
+        for (int index = count; index < _count; index++) {
+            _crcs[index] = 0;
+        } // Drop CRCs past the end.
+        _count = count;
+        _size = size;
+        _dirty.clear();
+    }
+
+    /**
+     * Check the stored CRCs against the stored data, reading every block.
+     * 
+     * @param channel The channel of the file.
+     * @param offset The offset of the data in the file.
+     * @param size The size of the data.
+     * @return True if the stored data matches.
+     * @throws IOException The data cannot be read.
+     */
+    synchronized boolean verify(FileChannel channel, long offset, long size) throws IOException {
+        if (size != _size) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(READ_SIZE);
+        for (int index = 0; index < _count; index++) {
+            if (_crcOf(channel, offset, index, size, buf) != _crcs[index]) {
+                return false;
+            }
+        } // Check all blocks.
+        return true;
+    }
+
+    // ======================================================================
+    // Internal methods.
+    // ======================================================================
+
+    /**
+     * Compute the CRC of a block as stored.
+     * 
+     * @param channel The channel of the file.
+     * @param offset The offset of the data in the file.
+     * @param index The block.
+     * @param size The size of the data.
+     * @param buf A buffer to read into.
+     * @return The CRC.
+     * @throws IOException The data cannot be read, or ends early.
+     */
+    private int _crcOf(FileChannel channel, long offset, int index, long size, ByteBuffer buf)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        long position = (long) index * _block;
+        long end = Math.min(position + _block, size);
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            int length = channel.read(buf, offset + position);
+            if (length <= 0) {
+                throw new IOException("The file ends before the data.");
+            }
+            buf.flip();
+            crc.update(buf);
+            position += length;
+        } // Read the block.
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Double the block size, combining the CRCs of each pair of blocks. A
+     * pair with a changed block gives a changed block, which must be read
+     * again.
+     */
+    private void _raise() {
+        if (_block > Integer.MAX_VALUE / 2) {
+            throw new IllegalStateException("Too much data for the storage CRCs.");
+        }
+        BitSet dirty = new BitSet();
+        int count = 0;
+        for (int index = 0; index < _count; index += 2) {
+            if (_dirty.get(index) || _dirty.get(index + 1)) {
+                dirty.set(count);
+            }
+            if (index + 1 < _count) {
+                long length = Math.min(_block, _size - (long) (index + 1) * _block);
+                _crcs[count++] = CrcCombine.combine(_crcs[index], _crcs[index + 1], length);
+            } else {
+                _crcs[count++] = _crcs[index];
+            }
+        } // Combine all pairs.
+        for (int index = _dirty.nextSetBit(_count); index >= 0;
+                index = _dirty.nextSetBit(index + 1)) {
+            dirty.set(index / 2);
+        } // Keep changes past the end.
+        for (int index = count; index < _count; index++) {
+            _crcs[index] = 0;
+        } // Drop the old CRCs.
+        _dirty.clear();
+        _dirty.or(dirty);
+        _count = count;
+        _block *= 2;
+    }
+
+    /**
+     * Get the number of blocks in data of the given size.
+     * 
+     * @param size The size.
+     * @return The number of blocks.
+     */
+    private long _blocks(long size) {
+        return (size + _block - 1) / _block;
+    }
+
+    /**
+     * Convert a block number to a bit index.
+     * 
+     * @param block The block number.
+     * @return The index.
+     */
+    private static int _index(long block) {
+        if (block > Integer.MAX_VALUE - 1) {
+            throw new IllegalStateException("Too many blocks for the storage CRCs.");
+        }
+        return (int) block;
+    }
+}
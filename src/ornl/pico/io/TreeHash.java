@@ -0,0 +1,482 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.stream.IntStream;
+
+import ornl.pico.PicoException;
+
+/**
+ * Hash the unencrypted data as a tree of fixed-size chunks, so that after a
+ * change only the changed part must be hashed again. Each chunk is hashed
+ * (a leaf), and pairs of hashes are hashed together level by level up to a
+ * single root. A lone node at the end of a level moves up unchanged.
+ * <p>
+ * The header has a fixed amount of room for hashes, given by the capacity.
+ * The hashes stored are those of the lowest level that fits, so each stored
+ * hash covers a group of 2<sup>level</sup> chunks. As the data grows, the
+ * level rises and pairs of stored hashes are combined. After a write only
+ * the groups holding changed chunks are hashed again, and each group can be
+ * hashed, or checked, in parallel with the others.
+ * <p>
+ * The value of the {@link PicoStructure#META_TREE} entry is the following,
+ * with numbers stored in {@link PicoStructure#ORDER}.
+ * <table>
+ * <tr><th>Item</th><th>Length</th></tr>
+ * <tr><td>Chunk size</td><td>4</td></tr>
+ * <tr><td>Capacity</td><td>4</td></tr>
+ * <tr><td>Flags; bit 0 set if the whole-data hash is kept too</td><td>1</td></tr>
+ * <tr><td>Level</td><td>1</td></tr>
+ * <tr><td>Size of the data hashed</td><td>8</td></tr>
+ * <tr><td>Number of stored hashes</td><td>4</td></tr>
+ * <tr><td>Hash length</td><td>2</td></tr>
+ * <tr><td>Root hash</td><td>hash length</td></tr>
+ * <tr><td>Stored hashes</td><td>capacity times hash length</td></tr>
+ * </table>
+ * A leaf hash is the hash of a zero byte followed by the chunk. A node hash
+ * is the hash of a one byte followed by the two hashes below it. The root of
+ * no data is the leaf hash of an empty chunk.
+ * 
+ * @author jcarter
+ */
+class TreeHash {
+
+    /** The default chunk size. */
+    static final int DEFAULT_CHUNK = 1024 * 1024;
+
+    /** The default number of stored hashes. */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** The length of the value before the root hash. */
+    private static final int FIXED_LENGTH = 4 + 4 + 1 + 1 + 8 + 4 + 2;
+
+    /** The prefix of a leaf hash. */
+    private static final byte LEAF = 0;
+
+    /** The prefix of a node hash. */
+    private static final byte NODE = 1;
+
+    /** The size of the buffer used to read a chunk. */
+    private static final int READ_SIZE = 64 * 1024;
+
+    /** The size of a chunk. */
+    private final int _chunk;
+
+    /** The most hashes that can be stored. */
+    private final int _capacity;
+
+    /** Whether the whole-data hash is kept as well. */
+    private final boolean _legacy;
+
+    /** The level of the stored hashes; each covers 2^level chunks. */
+    private int _level = 0;
+
+    /** The size of the data when last hashed. */
+    private long _size = 0L;
+
+    /** The number of stored hashes in use. */
+    private int _count = 0;
+
+    /** The stored hashes. */
+    private final byte[][] _hashes;
+
+    /** The root hash. */
+    private byte[] _root;
+
+    /** The chunks changed since the data was last hashed. */
+    private final BitSet _dirty = new BitSet();
+
+    /**
+     * Make a new tree hash for empty data.
+     * 
+     * @param chunk The size of a chunk.
+     * @param capacity The most hashes to store in the header.
+     * @param legacy If true, the whole-data hash is to be kept as well.
+     */
+    TreeHash(int chunk, int capacity, boolean legacy) {
+        if (chunk < 1 || capacity < 1) {
+            throw new IllegalArgumentException("The chunk size and capacity must be positive.");
+        }
+        _chunk = chunk;
+        _capacity = capacity;
+        _legacy = legacy;
+        _hashes = new byte[capacity][];
+        MessageDigest digest = _newDigest();
+        digest.update(LEAF);
+        _root = digest.digest();
+    }
+
+    /**
+     * Read a tree hash from the value of its metadata entry.
+     * 
+     * @param value The value.
+     * @return The tree hash.
+     * @throws PicoException The value is damaged.
+     */
+    static TreeHash parse(byte[] value) throws PicoException {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(value).order(PicoStructure.ORDER);
+            int chunk = buf.getInt();
+            int capacity = buf.getInt();
+            byte flags = buf.get();
+            int level = buf.get();
+            long size = buf.getLong();
+            int count = buf.getInt();
+            int hashlen = buf.getShort();
+            if (chunk < 1 || capacity < 1 || level < 0 || level > 62 || size < 0
+                    || count < 0 || count > capacity || hashlen != PicoStructure.HASH_LENGTH
+                    || buf.remaining() != (long) (capacity + 1) * hashlen) {
+                throw new PicoException("The tree hash is damaged.");
+            }
+            TreeHash tree = new TreeHash(chunk, capacity, (flags & 1) != 0);
+            tree._level = level;
+            tree._size = size;
+            tree._count = count;
+            buf.get(tree._root);
+            for (int index = 0; index < count; index++) {
+                tree._hashes[index] = new byte[hashlen];
+                buf.get(tree._hashes[index]);
+            } // Read all stored hashes.
+            return tree;
+        } catch (RuntimeException re) {
+            throw new PicoException("The tree hash is damaged.");
+        }
+    }
+
+    /**
+     * Make the metadata entry for this tree hash. The length of the entry
+     * depends only on the capacity, so it can be rewritten in place.
+     * 
+     * @return The entry, including its tag and length.
+     */
+    synchronized byte[] encode() {
+        int hashlen = _root.length;
+        ByteBuffer buf = ByteBuffer.allocate(FIXED_LENGTH + (_capacity + 1) * hashlen)
+                .order(PicoStructure.ORDER);
+        buf.putInt(_chunk).putInt(_capacity).put((byte) (_legacy ? 1 : 0)).put((byte) _level);
+        buf.putLong(_size).putInt(_count).putShort((short) hashlen).put(_root);
+        for (int index = 0; index < _count; index++) {
+            buf.put(_hashes[index]);
+        } // Write all stored hashes; the rest stay zero.
+        return PicoHeader.makeMetadata(PicoStructure.META_TREE, buf.array());
+    }
+
+    /**
+     * Determine whether the whole-data hash is kept as well.
+     * 
+     * @return True if the whole-data hash is kept.
+     */
+    boolean legacy() {
+        return _legacy;
+    }
+
+    /**
+     * Get the root hash, as of the last update.
+     * 
+     * @return The root hash. This is a copy.
+     */
+    synchronized byte[] root() {
+        return _root.clone();
+    }
+
+    /**
+     * Note that a range of the data has changed. Safe to call from
+     * concurrent writers.
+     * 
+     * @param start The position of the first byte changed.
+     * @param end The position just past the last byte changed.
+     */
+    synchronized void mark(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        _dirty.set(_index(start / _chunk), _index((end - 1) / _chunk) + 1);
+    }
+
+    /**
+     * Note that the data has been cut (or extended) to the given size.
+     * 
+     * @param size The new size.
+     */
+    synchronized void truncate(long size) {
+        if (size > 0) {
+            // The last chunk, and so the last group, has changed.
+            mark(size - 1, size);
+        }
+    }
+
+    /**
+     * Bring the hashes up to date with the data, hashing only the groups
+     * that hold changed chunks.
+     * 
+     * @param file The file holding the data.
+     * @param size The size of the data.
+     * @throws IOException The data cannot be read, or is too large for the
+     *             capacity.
+     */
+    synchronized void update(final PicoFile file, final long size) throws IOException {
+        final long chunks = _chunks(size);
+        long oldchunks = _chunks(_size);
+        if (chunks != oldchunks) {
+            // The chunks at the end have come or gone.
+            long first = Math.max(0L, Math.min(chunks, oldchunks) - 1);
+            _dirty.set(_index(first), _index(Math.max(chunks, oldchunks)));
+        }
+        while (_groups(chunks) > _capacity) {
+            _raise();
+        } // Rise until the hashes fit.
+        final int count = (int) _groups(chunks);
+
+        // Find the groups to hash.
+        int[] todo = IntStream.range(0, count).filter(group -> {
+            if (group >= _count || _hashes[group] == null) {
+                return true;
+            }
+            int next = _dirty.nextSetBit((int) ((long) group << _level));
+            return next >= 0 && next < Math.min((long) (group + 1) << _level, chunks);
+        }).toArray();
+        final byte[][] results = new byte[todo.length][];
+        _run(IntStream.range(0, todo.length), index -> {
+            results[index] = _hashGroup(file, todo[index], chunks);
+        });
+        for (int index = 0; index < todo.length; index++) {
+            _hashes[todo[index]] = results[index];
+        } // Store the new hashes.
+        for (int index = count; index < _capacity; index++) {
+            _hashes[index] = null;
+        } // Drop hashes past the end.
+        _count = count;
+        _size = size;
+        _dirty.clear();
+        _root = _rootOf(_hashes, count);
+    }
+
+    /**
+     * Check the stored hashes and the root against the data, hashing every
+     * group in parallel.
+     * 
+     * @param file The file holding the data.
+     * @param size The size of the data.
+     * @return True if the data matches.
+     * @throws IOException The data cannot be read.
+     */
+    synchronized boolean verify(final PicoFile file, long size) throws IOException {
+        final long chunks = _chunks(size);
+        if (size != _size || _groups(chunks) != _count) {
+            return false;
+        }
+        final byte[][] results = new byte[_count][];
+        _run(IntStream.range(0, _count), group -> {
+            results[group] = _hashGroup(file, group, chunks);
+        });
+        for (int group = 0; group < _count; group++) {
+            if (!MessageDigest.isEqual(results[group], _hashes[group])) {
+                return false;
+            }
+        } // Check all groups.
+        return MessageDigest.isEqual(_rootOf(results, _count), _root);
+    }
+
+    // ======================================================================
+    // Internal methods.
+    // ======================================================================
+
+    /** Work to do for one index, which may throw an I/O exception. */
+    private interface Task {
+        void run(int index) throws IOException;
+    }
+
+    /**
+     * Run a task for each index, in parallel.
+     * 
+     * @param indices The indices.
+     * @param task The task.
+     * @throws IOException A task failed.
+     */
+    private static void _run(IntStream indices, final Task task) throws IOException {
+        try {
+            indices.parallel().forEach(index -> {
+                try {
+                    task.run(index);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        } catch (UncheckedIOException uioe) {
+            throw uioe.getCause();
+        }
+    }
+
+    /**
+     * Hash a group of chunks.
+     * 
+     * @param file The file holding the data.
+     * @param group The group.
+     * @param chunks The number of chunks in the data.
+     * @return The hash of the group.
+     * @throws IOException The data cannot be read.
+     */
+    private byte[] _hashGroup(PicoFile file, int group, long chunks) throws IOException {
+        long first = (long) group << _level;
+        long last = Math.min(first + (1L << _level), chunks);
+        byte[][] nodes = new byte[(int) (last - first)][];
+        MessageDigest digest = _newDigest();
+        ByteBuffer buf = ByteBuffer.allocate(READ_SIZE);
+        for (long chunk = first; chunk < last; chunk++) {
+            digest.update(LEAF);
+            long position = chunk * _chunk;
+            long end = position + _chunk;
+            while (position < end) {
+                buf.clear();
+                buf.limit((int) Math.min(READ_SIZE, end - position));
+                int length = file.read(buf, position);
+                if (length <= 0) {
+                    break;
+                }
+                buf.flip();
+                digest.update(buf);
+                position += length;
+            } // Hash the chunk.
+            nodes[(int) (chunk - first)] = digest.digest();
+        } // Hash all chunks in the group.
+        int count = nodes.length;
+        for (int level = 0; level < _level; level++) {
+            count = _combine(digest, nodes, count);
+        } // Combine up to the level of the group.
+        return nodes[0];
+    }
+
+    /**
+     * Combine the stored hashes into the root.
+     * 
+     * @param hashes The hashes.
+     * @param count The number of hashes.
+     * @return The root.
+     */
+    private byte[] _rootOf(byte[][] hashes, int count) {
+        if (count == 0) {
+            MessageDigest digest = _newDigest();
+            digest.update(LEAF);
+            return digest.digest();
+        }
+        byte[][] nodes = new byte[count][];
+        System.arraycopy(hashes, 0, nodes, 0, count);
+        MessageDigest digest = _newDigest();
+        while (count > 1) {
+            count = _combine(digest, nodes, count);
+        } // Combine to the root.
+        return nodes[0];
+    }
+
+    /**
+     * Raise the level of the stored hashes by one, combining pairs. A pair
+     * with a missing hash gives a missing hash, which must be recomputed.
+     */
+    private void _raise() {
+        MessageDigest digest = _newDigest();
+        int count = 0;
+        for (int index = 0; index < _count; index += 2) {
+            byte[] left = _hashes[index];
+            byte[] right = (index + 1 < _count) ? _hashes[index + 1] : null;
+            if (index + 1 >= _count) {
+                _hashes[count++] = left;
+            } else if (left == null || right == null) {
+                _hashes[count++] = null;
+            } else {
+                digest.update(NODE);
+                digest.update(left);
+                digest.update(right);
+                _hashes[count++] = digest.digest();
+            }
+        } // Combine all pairs.
+        for (int index = count; index < _count; index++) {
+            _hashes[index] = null;
+        } // Drop the old hashes.
+        _count = count;
+        _level++;
+    }
+
+    /**
+     * Combine one level of nodes in place into the next level up.
+     * 
+     * @param digest The digest to use.
+     * @param nodes The nodes.
+     * @param count The number of nodes.
+     * @return The number of nodes in the next level.
+     */
+    private static int _combine(MessageDigest digest, byte[][] nodes, int count) {
+        int next = 0;
+        for (int index = 0; index < count; index += 2) {
+            if (index + 1 < count) {
+                digest.update(NODE);
+                digest.update(nodes[index]);
+                digest.update(nodes[index + 1]);
+                nodes[next++] = digest.digest();
+            } else {
+                nodes[next++] = nodes[index];
+            }
+        } // Combine all pairs.
+        return next;
+    }
+
+    /**
+     * Get the number of chunks in data of the given size.
+     * 
+     * @param size The size.
+     * @return The number of chunks.
+     */
+    private long _chunks(long size) {
+        return (size + _chunk - 1) / _chunk;
+    }
+
+    /**
+     * Get the number of groups at the current level.
+     * 
+     * @param chunks The number of chunks.
+     * @return The number of groups.
+     */
+    private long _groups(long chunks) {
+        return (chunks + (1L << _level) - 1) >> _level;
+    }
+
+    /**
+     * Convert a chunk number to a bit index.
+     * 
+     * @param chunk The chunk number.
+     * @return The index.
+     */
+    private static int _index(long chunk) {
+        if (chunk > Integer.MAX_VALUE - 1) {
+            throw new IllegalStateException("Too many chunks for the tree hash.");
+        }
+        return (int) chunk;
+    }
+
+    /**
+     * Make a new digest.
+     * 
+     * @return The digest.
+     */
+    private static MessageDigest _newDigest() {
+        try {
+            return MessageDigest.getInstance(PicoStructure.HASH);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new RuntimeException("Failed to create hash.", nsae);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Apply a keystream tile a whole vector at a time, using the preferred vector
+ * species of the platform.
+ * <p>
+ * This class needs the {@code jdk.incubator.vector} module both to compile and
+ * to run. The build only compiles it when the JDK provides the module, and
+ * {@link CryptEngine} only loads it when the module is present at run time.
+ * 
+ * @author jcarter
+ */
+final class VectorCryptEngine extends CryptEngine {
+
+    /** The vector shape to use. */
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    /** The engine used for the bytes that do not fill a vector. */
+    private final ScalarCryptEngine _tail = new ScalarCryptEngine();
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ornl.pico.io.CryptEngine#granularity()
+     */
+    @Override
+    int granularity() {
+        // The species length is a power of two, so this is also a multiple
+        // of the scalar word.
+        return Math.max(SPECIES.length(), ScalarCryptEngine.WORD);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see ornl.pico.io.CryptEngine#xor(byte[], int, byte[], int, int, byte[],
+     * int, int)
+     */
+    @Override
+    void xor(byte[] src, int srcoff, byte[] dst, int dstoff, int len, byte[] tile, int period,
+            int index) {
+        int lanes = SPECIES.length();
+        int stop = srcoff + SPECIES.loopBound(len);
+        while (srcoff < stop) {
+            ByteVector.fromArray(SPECIES, src, srcoff)
+                    .lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, tile, index))
+                    .intoArray(dst, dstoff);
+            srcoff += lanes;
+            dstoff += lanes;
+            index += lanes;
+            if (index >= period) {
+                index -= period;
+            }
+        } // Process all whole vectors.
+
+        // Hand what is left to the scalar engine. The index is still before
+        // the period, and the slack covers a whole vector.
+        _tail.xor(src, srcoff, dst, dstoff, len & (lanes - 1), tile, period, index);
+    }
+}
@@ -0,0 +1,97 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Count the writes made to a physical file through every {@link PicoFile}
+ * instance open on it, so each instance can tell when bytes it holds
+ * decoded, such as those read ahead, may have been changed by another.
+ * <p>
+ * A count is shared by all instances that {@link #acquire(Object)} it with
+ * the same file identity, and is forgotten once they have all released it,
+ * so only open files are tracked.
+ * 
+ * @author jcarter
+ */
+final class WriteCount {
+
+    /** The counts of the files that are open. */
+    private static final HashMap<Object, WriteCount> _open = new HashMap<Object, WriteCount>();
+
+    /**
+     * Get the count for a file, and note one more instance using it.
+     * 
+     * @param file The identity of the file.
+     * @return The count.
+     */
+    static WriteCount acquire(Object file) {
+        synchronized (_open) {
+            WriteCount count = _open.get(file);
+            if (count == null) {
+                count = new WriteCount(file);
+                _open.put(file, count);
+            }
+            count._users++;
+            return count;
+        }
+    }
+
+    /** The identity of the file. */
+    private final Object _file;
+
+    /** The number of instances using this count. */
+    private int _users = 0;
+
+    /** The number of writes. */
+    private final AtomicLong _writes = new AtomicLong();
+
+    /**
+     * Make a new count.
+     * 
+     * @param file The identity of the file.
+     */
+    private WriteCount(Object file) {
+        _file = file;
+    }
+
+    /**
+     * Get the number of writes so far.
+     * 
+     * @return The number of writes.
+     */
+    long get() {
+        return _writes.get();
+    }
+
+    /**
+     * Note a write. This is done after the bytes are written, so bytes read
+     * while the write was in progress are seen to be stale.
+     */
+    void increment() {
+        _writes.incrementAndGet();
+    }
+
+    /**
+     * Note one less instance using this count. The count must not be used
+     * after this.
+     */
+    void release() {
+        synchronized (_open) {
+            if (--_users == 0) {
+                _open.remove(_file);
+            }
+        }
+    }
+}
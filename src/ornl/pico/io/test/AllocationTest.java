@@ -0,0 +1,129 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import ornl.pico.io.PicoOutputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Check that steady-state writes to a {@link PicoOutputStream} do not
+ * allocate.  This relies on the per-thread allocation counter of HotSpot, and
+ * is skipped on platforms that do not provide it.
+ * 
+ * @author jcarter
+ */
+public class AllocationTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x0f, (byte) 0x1e, (byte) 0x2d, (byte) 0x3c, (byte) 0x4b };
+
+	/** Allowance for allocation by the measurement itself. */
+	static final long SLACK = 4096L;
+
+	/**
+	 * A stream that discards everything written to it.
+	 */
+	static class NullStream extends OutputStream {
+		@Override
+		public void write(int datum) throws IOException {
+			// Discard.
+		}
+
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+			// Discard.
+		}
+	}
+
+	@Test
+	public void computedHashTest() throws Exception {
+		// The threshold forces all data to the temporary file, which is
+		// written through a fixed buffer.
+		PicoOutputStream pos = new PicoOutputStream(key, new NullStream(), 0);
+		measure(pos);
+		pos.close();
+	}
+
+	@Test
+	public void knownHashTest() throws Exception {
+		byte[] hash = new byte[(int) PicoStructure.HASH_LENGTH];
+		PicoOutputStream pos = new PicoOutputStream(key, hash, new NullStream());
+		measure(pos);
+		pos.close();
+
+		// Verification also digests the data.  The hash is wrong, though.
+		pos = new PicoOutputStream(key, hash, new NullStream(), true);
+		measure(pos);
+		try {
+			pos.close();
+			fail("The wrong hash was not detected.");
+		} catch (IOException ioe) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Write to the stream until the JIT has settled, and then check that a
+	 * further run of writes allocates nothing.  The stream is left open.
+	 */
+	static void measure(PicoOutputStream pos) throws IOException {
+		byte[] data = new byte[40000];
+		for (int index = 0; index < data.length; index++) {
+			data[index] = (byte) index;
+		} // Fill with something.
+		for (int round = 0; round < 20000; round++) {
+			pos.write(data, round % 7, 1000 + round % 3000);
+			pos.write(round);
+		} // Warm up.
+
+		long allocated = -1L;
+		for (int attempt = 0; attempt < 5 && (allocated < 0 || allocated > SLACK); attempt++) {
+			long before = allocatedBytes();
+			if (before < 0) {
+				// Not supported.
+				return;
+			}
+			for (int round = 0; round < 1000; round++) {
+				pos.write(data, round % 7, 30000 + round);
+				pos.write(round);
+			} // Measure.
+			allocated = allocatedBytes() - before;
+		} // Allow a few attempts, since compilation can happen in the middle.
+		assertTrue("Steady-state writes allocated " + allocated + " bytes.",
+				allocated <= SLACK);
+	}
+
+	/**
+	 * Get the number of bytes allocated by this thread, or -1 if this cannot
+	 * be determined.
+	 */
+	static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1L;
+		}
+		com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+		if (!sun.isThreadAllocatedMemorySupported()) {
+			return -1L;
+		}
+		return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,101 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Overwrite and truncate a Pico file at random, finishing after each change,
+ * and check the hash every time.  The checkpoint interval is made small, so
+ * the digest is rebuilt from checkpoints many times.
+ * 
+ * @author jcarter
+ */
+public class CheckpointTest {
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		System.setProperty("ornl.pico.io.checkpoint", "1000");
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@Test
+	public void rewriteTest() throws Exception {
+		Random rand = new Random(41L);
+		byte[] expected = new byte[300000];
+		rand.nextBytes(expected);
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x52, 0x0b });
+		pf.write(ByteBuffer.wrap(expected));
+		pf.finish();
+		check(expected, pf);
+
+		for (int trial = 0; trial < 50; trial++) {
+			if (trial % 10 == 9) {
+				// Cut the file short.
+				int size = expected.length - rand.nextInt(expected.length / 10);
+				pf.truncate(size);
+				expected = Arrays.copyOf(expected, size);
+			} else {
+				// Overwrite some bytes, possibly past the end.
+				byte[] patch = new byte[1 + rand.nextInt(5000)];
+				rand.nextBytes(patch);
+				int start = rand.nextInt(expected.length);
+				if (trial % 3 == 0) {
+					pf.position(start);
+					for (byte datum : patch) {
+						pf.write(datum);
+					}
+				} else {
+					pf.write(ByteBuffer.wrap(patch), start);
+				}
+				if (start + patch.length > expected.length) {
+					expected = Arrays.copyOf(expected, start + patch.length);
+				}
+				System.arraycopy(patch, 0, expected, start, patch.length);
+			}
+			pf.finish();
+			check(expected, pf);
+		} // Make random changes.
+		pf.close();
+	}
+
+	/**
+	 * Check the hash in the header of the file.
+	 */
+	static void check(byte[] expected, PicoFile pf) throws Exception {
+		assertArrayEquals("Incorrect hash:",
+				MessageDigest.getInstance(PicoStructure.HASH).digest(expected),
+				pf.getHeader().hash);
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		System.clearProperty("ornl.pico.io.checkpoint");
+		tmpfile.delete();
+	}
+}
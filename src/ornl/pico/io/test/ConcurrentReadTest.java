@@ -0,0 +1,146 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+
+/**
+ * Read ranges of a single Pico file from several threads at once, checking
+ * every byte, and report the throughput for increasing thread counts.
+ * 
+ * @author jcarter
+ */
+public class ConcurrentReadTest {
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[4 * 1024 * 1024 + 13];
+
+	static {
+		new Random(31L).nextBytes(testdata);
+	}
+
+	/** The number of ranges each thread reads. */
+	static final int RANGES = 200;
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x61, 0x1f, 0x3a, 0x77, 0x02 });
+		pf.write(ByteBuffer.wrap(testdata));
+		pf.close();
+	}
+
+	@Test
+	public void channelTest() throws Exception {
+		PicoFile pf = PicoFile.open(tmpfile, "r");
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			run("channel", pf, threads);
+		}
+		pf.close();
+	}
+
+	@Test
+	public void mappedTest() throws Exception {
+		PicoFile pf = PicoFile.openMapped(tmpfile, "r");
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			run("mapped", pf, threads);
+		}
+		pf.close();
+	}
+
+	/**
+	 * Have the given number of threads read random ranges at once, and print
+	 * the throughput.
+	 */
+	static void run(String name, final PicoFile pf, int threads) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			long start = System.nanoTime();
+			for (int thread = 0; thread < threads; thread++) {
+				final long seed = thread;
+				results.add(pool.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return check(pf, new Random(seed));
+					}
+				}));
+			} // Start all threads.
+			long total = 0L;
+			for (Future<Long> result : results) {
+				total += result.get();
+			} // Wait for all threads.
+			long elapsed = Math.max(1L, System.nanoTime() - start);
+			assertTrue("Nothing was read.", total > 0);
+			System.out.printf("%s: %d threads read %d bytes at %.1f MB/s%n", name,
+					threads, total, total * 1e9 / elapsed / (1024 * 1024));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Read random ranges through range streams, checking every byte, and
+	 * return the number of bytes read.
+	 */
+	static long check(PicoFile pf, Random rand) throws Exception {
+		byte[] buffer = new byte[8192];
+		long total = 0L;
+		for (int range = 0; range < RANGES; range++) {
+			int start = rand.nextInt(testdata.length);
+			int length = rand.nextInt(64 * 1024);
+			int expected = Math.min(length, testdata.length - start);
+			InputStream in = pf.openRange(start, length);
+			int index = 0;
+			int count;
+			while ((count = in.read(buffer, 0, 1 + (index % buffer.length))) > 0) {
+				for (int here = 0; here < count; here++) {
+					if (testdata[start + index + here] != buffer[here]) {
+						assertEquals("Incorrect byte at index " + (start + index + here) + ":",
+								testdata[start + index + here], buffer[here]);
+					}
+				} // Check the block.
+				index += count;
+			}
+			assertEquals("Incorrect range length:", expected, index);
+			in.close();
+			total += index;
+		} // Read all ranges.
+		return total;
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		tmpfile.delete();
+	}
+}
@@ -0,0 +1,192 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Fill disjoint regions of a single Pico file from several threads at once,
+ * check the data and the hash, and report the throughput for increasing
+ * thread counts.
+ * 
+ * @author jcarter
+ */
+public class ConcurrentWriteTest {
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[4 * 1024 * 1024 + 29];
+
+	static {
+		new Random(37L).nextBytes(testdata);
+	}
+
+	/** The size of each piece written. */
+	static final int PIECE = 10007;
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@Test
+	public void channelTest() throws Exception {
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x27, 0x4e, 0x11 });
+			run("channel", pf, threads);
+			check();
+		}
+	}
+
+	@Test
+	public void mappedTest() throws Exception {
+		// Make a file of the right size, and then overwrite it in place.
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x27, 0x4e, 0x11 });
+		pf.write(ByteBuffer.allocate(testdata.length));
+		pf.close();
+		for (int threads = 1; threads <= 8; threads *= 2) {
+			run("mapped", PicoFile.openMapped(tmpfile, "rw"), threads);
+			check();
+		}
+	}
+
+	@Test
+	public void sharedSourceTest() throws Exception {
+		// Every thread writes the same source array to its own ranges. The
+		// source must never change, or other threads would write garbage.
+		final byte[] shared = new byte[256 * 1024 + 5];
+		new Random(41L).nextBytes(shared);
+		final byte[] expected = shared.clone();
+		final int threads = 4;
+		final int copies = 6;
+		final PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x27, 0x4e, 0x11 });
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int thread = 0; thread < threads; thread++) {
+				final int first = thread;
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						for (int copy = first; copy < threads * copies; copy += threads) {
+							pf.write(ByteBuffer.wrap(shared), (long) copy * shared.length);
+						} // Write all copies for this thread.
+						return null;
+					}
+				}));
+			} // Start all threads.
+			for (Future<Object> result : results) {
+				result.get();
+			} // Wait for all threads.
+			pf.close();
+		} finally {
+			pool.shutdown();
+		}
+		assertArrayEquals("The source was modified:", expected, shared);
+
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		byte[] data = new byte[shared.length];
+		for (int copy = 0; copy < threads * copies; copy++) {
+			int index = 0;
+			int length;
+			while (index < data.length
+					&& (length = pis.read(data, index, data.length - index)) > 0) {
+				index += length;
+			}
+			assertArrayEquals("Incorrect copy " + copy + ":", expected, data);
+		} // Check all copies.
+		pis.close();
+	}
+
+	/**
+	 * Have the given number of threads write interleaved pieces of the data
+	 * at once, close the file, and print the throughput.
+	 */
+	static void run(String name, final PicoFile pf, final int threads) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			long start = System.nanoTime();
+			for (int thread = 0; thread < threads; thread++) {
+				final int first = thread;
+				results.add(pool.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						// Write every piece assigned to this thread, last first.
+						int pieces = (testdata.length + PIECE - 1) / PIECE;
+						for (int piece = pieces - 1 - first; piece >= 0; piece -= threads) {
+							int offset = piece * PIECE;
+							int length = Math.min(PIECE, testdata.length - offset);
+							pf.write(ByteBuffer.wrap(testdata, offset, length), offset);
+						} // Write all pieces.
+						return null;
+					}
+				}));
+			} // Start all threads.
+			for (Future<Object> result : results) {
+				result.get();
+			} // Wait for all threads.
+			pf.close();
+			long elapsed = Math.max(1L, System.nanoTime() - start);
+			System.out.printf("%s: %d threads wrote %d bytes at %.1f MB/s%n", name,
+					threads, testdata.length,
+					testdata.length * 1e9 / elapsed / (1024 * 1024));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Read the file back and check the data and the hash.
+	 */
+	private void check() throws Exception {
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		byte[] data = new byte[testdata.length];
+		int index = 0;
+		int length;
+		while (index < data.length && (length = pis.read(data, index, data.length - index)) > 0) {
+			index += length;
+		}
+		pis.close();
+		assertArrayEquals("Incorrect data read back:", testdata, data);
+		assertArrayEquals("Incorrect hash:",
+				MessageDigest.getInstance(PicoStructure.HASH).digest(testdata),
+				pis.getHeader().hash);
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		tmpfile.delete();
+	}
+}
@@ -0,0 +1,157 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+
+import ornl.pico.io.KeyUtils;
+import ornl.pico.io.PicoHeader;
+
+/**
+ * Check the bulk crypt methods of {@link PicoHeader} against the per-byte
+ * method.
+ * 
+ * @author jcarter
+ */
+public class CryptTest {
+
+	/** Key lengths to try.  These are deliberately not multiples of a word. */
+	static int[] keylengths = { 1, 31, 32767 };
+
+	/** Array offsets to try. */
+	static int[] offsets = { 0, 1, 3, 7, 8, 13 };
+
+	/** Positions in the data to try. */
+	static long[] positions = { 0L, 1L, 5L, 4099L, 32766L, (1L << 33) + 3L };
+
+	/** Range lengths to try. */
+	static int[] lengths = { 0, 1, 7, 8, 9, 1000, 70001 };
+
+	/** Source of random data. */
+	private Random rand = new Random(1L);
+
+	@Test
+	public void inPlaceTest() {
+		for (int keylength : keylengths) {
+			PicoHeader head = new PicoHeader();
+			head.setKey(KeyUtils.makeKey(keylength));
+			for (int off : offsets) {
+				for (long position : positions) {
+					for (int len : lengths) {
+						byte[] data = new byte[off + len + 5];
+						rand.nextBytes(data);
+						byte[] expected = data.clone();
+						for (int index = 0; index < len; index++) {
+							expected[off+index] = head.crypt(expected[off+index],
+									position+index);
+						} // Encrypt one byte at a time.
+						head.crypt(data, off, len, position);
+						check(expected, data, keylength, off, position, len);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void copyTest() {
+		for (int keylength : keylengths) {
+			PicoHeader head = new PicoHeader();
+			head.setKey(KeyUtils.makeKey(keylength));
+			for (int off : offsets) {
+				for (long position : positions) {
+					for (int len : lengths) {
+						byte[] src = new byte[off + len];
+						rand.nextBytes(src);
+						byte[] original = src.clone();
+						int dstoff = (off * 5) % 11;
+						byte[] dst = new byte[dstoff + len];
+						byte[] expected = new byte[dstoff + len];
+						for (int index = 0; index < len; index++) {
+							expected[dstoff+index] = head.crypt(src[off+index],
+									position+index);
+						} // Encrypt one byte at a time.
+						head.crypt(src, off, dst, dstoff, len, position);
+						check(expected, dst, keylength, off, position, len);
+						check(original, src, keylength, off, position, len);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void bufferTest() {
+		for (int keylength : keylengths) {
+			PicoHeader head = new PicoHeader();
+			head.setKey(KeyUtils.makeKey(keylength));
+			for (int off : offsets) {
+				for (long position : positions) {
+					for (int len : lengths) {
+						for (ByteOrder order : new ByteOrder[] {
+								ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+							byte[] data = new byte[off + len + 3];
+							rand.nextBytes(data);
+							byte[] expected = data.clone();
+							for (int index = 0; index < len; index++) {
+								expected[off+index] = head.crypt(expected[off+index],
+										position+index);
+							} // Encrypt one byte at a time.
+							ByteBuffer buf = ByteBuffer.allocateDirect(data.length).order(order);
+							buf.put(data);
+							buf.position(off);
+							buf.limit(off + len);
+							head.crypt(buf, position);
+							assertEquals("Position changed:", off, buf.position());
+							assertEquals("Limit changed:", off + len, buf.limit());
+							buf.clear();
+							byte[] actual = new byte[data.length];
+							buf.get(actual);
+							check(expected, actual, keylength, off, position, len);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void roundTripTest() {
+		PicoHeader head = new PicoHeader();
+		head.setKey(KeyUtils.makeKey(31));
+		byte[] data = new byte[10007];
+		rand.nextBytes(data);
+		byte[] work = data.clone();
+		head.crypt(work, 3, work.length - 3, 17L);
+		head.crypt(work, 3, work.length - 3, 17L);
+		check(data, work, 31, 3, 17L, work.length - 3);
+	}
+
+	/**
+	 * Compare two arrays, reporting the case on a mismatch.
+	 */
+	private static void check(byte[] expected, byte[] actual, int keylength,
+			int off, long position, int len) {
+		assertEquals("Incorrect length:", expected.length, actual.length);
+		for (int index = 0; index < expected.length; index++) {
+			assertEquals("Incorrect byte at index " + index + " (key length " +
+					keylength + ", offset " + off + ", position " + position +
+					", length " + len + "):", expected[index], actual[index]);
+		} // Check all bytes.
+	}
+}
@@ -0,0 +1,137 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.PicoException;
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+
+/**
+ * Write and read a Pico file using direct buffers.
+ * 
+ * @author jcarter
+ */
+public class DirectBufferTest {
+
+	/** The test data file to write and read back. */
+	static byte[] testdata = new byte[100003];
+
+	static {
+		new Random(7L).nextBytes(testdata);
+	}
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		// Make a temporary file and Pico-encode the data from a direct buffer.
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		ByteBuffer src = ByteBuffer.allocateDirect(testdata.length);
+		src.put(testdata);
+		src.flip();
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x13, 0x57, 0x7f });
+		assertEquals("Not all data was written:", testdata.length, pf.write(src));
+		pf.close();
+
+		// The caller's buffer must be left as it was.
+		for (int index = 0; index < testdata.length; index++) {
+			assertEquals("Source buffer modified at index " + index + ":",
+					testdata[index], src.get(index));
+		} // Check the source.
+	}
+
+	@Test
+	public void fileTest() throws IOException, PicoException {
+		// Now the data is encoded.  Open the file and read it back.
+		ByteBuffer bb = ByteBuffer.allocateDirect(4099);
+		PicoFile pf = PicoFile.open(tmpfile);
+		int length;
+		int index = 0;
+		do {
+			// Try to fill the buffer.
+			bb.clear();
+			length = pf.read(bb);
+			if (length > 0) {
+				// Check.
+				for (int here = 0; here < length; here++) {
+					assertEquals("Incorrect byte on read at index "+
+							(index+here)+":",
+							testdata[index+here], bb.get(here));
+				}
+				index += length;
+			}
+		} while (length > 0);
+		assertEquals("Not all data was read back:", testdata.length, index);
+		pf.close();
+	}
+
+	@Test
+	public void streamTest() throws IOException, PicoException {
+		// Read it back through a stream in as few reads as possible.
+		byte[] data = new byte[testdata.length];
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		int index = 0;
+		int length;
+		while ((length = pis.read(data, index, data.length - index)) > 0) {
+			index += length;
+		}
+		pis.close();
+		assertEquals("Not all data was read back:", testdata.length, index);
+		for (index = 0; index < testdata.length; index++) {
+			assertEquals("Incorrect byte on read at index " + index + ":",
+					testdata[index], data[index]);
+		} // Check all bytes.
+	}
+
+	@Test
+	public void heapSourceTest() throws IOException, PicoException {
+		// A heap buffer larger than the write scratch is left as it was too.
+		byte[] source = testdata.clone();
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x13, 0x57, 0x7f });
+		pf.write(ByteBuffer.wrap(source), 0L);
+		pf.write(ByteBuffer.wrap(source).asReadOnlyBuffer(), source.length);
+		pf.close();
+		for (int index = 0; index < testdata.length; index++) {
+			assertEquals("Source array modified at index " + index + ":",
+					testdata[index], source[index]);
+		} // Check the source.
+		pf = PicoFile.open(tmpfile, "r");
+		ByteBuffer bb = ByteBuffer.allocate(2 * testdata.length);
+		while (bb.hasRemaining() && pf.read(bb) > 0) {
+			// Read it all.
+		}
+		pf.close();
+		for (int index = 0; index < bb.capacity(); index++) {
+			assertEquals("Incorrect byte on read at index " + index + ":",
+					testdata[index % testdata.length], bb.get(index));
+		} // Check all bytes.
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		// Discard the temp file.
+		tmpfile.delete();
+	}
+}
@@ -0,0 +1,213 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.HashAlgorithm;
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoHeader;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoOutputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Write Pico files with each hash algorithm, and check that the algorithm
+ * and hash are recorded and read back.
+ * 
+ * @author jcarter
+ */
+public class HashAlgorithmTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { 0x19, (byte) 0x84, 0x2f, 0x6e, 0x03 };
+
+	/** The test data. */
+	static byte[] testdata = new byte[100003];
+
+	static {
+		new Random(41L).nextBytes(testdata);
+	}
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@After
+	public void teardown() {
+		tmpfile.delete();
+	}
+
+	@Test
+	public void digestTest() throws Exception {
+		// Known XXH64 values.
+		String[] inputs = { "", "a", "abc", "Nobody inspects the spammish repetition" };
+		long[] outputs = { 0xef46db3751d8e999L, 0xd24ec4f1a98c6e5bL, 0x44bc2cf5ad770999L,
+				0xfbcea83c8a378bf1L };
+		for (int index = 0; index < inputs.length; index++) {
+			byte[] hash = HashAlgorithm.XXH64.newDigest().digest(inputs[index].getBytes("UTF-8"));
+			assertEquals("Incorrect XXH64 of \"" + inputs[index] + "\":", outputs[index],
+					ByteBuffer.wrap(hash).getLong());
+		} // Check each input.
+
+		// CRC-32C must match the JDK.
+		CRC32C crc = new CRC32C();
+		crc.update(testdata);
+		byte[] hash = HashAlgorithm.CRC32C.newDigest().digest(testdata);
+		assertEquals("Incorrect CRC-32C:", (int) crc.getValue(), ByteBuffer.wrap(hash).getInt());
+
+		// Copies taken part way must carry on correctly.
+		Random rand = new Random(43L);
+		for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+			if (algorithm == HashAlgorithm.NONE) {
+				continue;
+			}
+			byte[] expected = algorithm.newDigest().digest(testdata);
+			MessageDigest digest = algorithm.newDigest();
+			int index = 0;
+			while (index < testdata.length) {
+				int length = Math.min(testdata.length - index, 1 + rand.nextInt(1000));
+				digest.update(testdata, index, length);
+				index += length;
+				if (rand.nextInt(4) == 0) {
+					MessageDigest copy = (MessageDigest) digest.clone();
+					if (rand.nextBoolean()) {
+						digest = copy;
+					}
+				}
+			} // Digest in pieces, copying along the way.
+			assertArrayEquals("Incorrect " + algorithm + " after copies:", expected,
+					digest.digest());
+		} // Check each algorithm.
+	}
+
+	@Test
+	public void streamTest() throws Exception {
+		for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+			byte[] expected = hash(algorithm, testdata);
+
+			// Computed hash, held until finished.
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			PicoOutputStream pos = new PicoOutputStream(key, baos, 1000, algorithm);
+			pos.write(testdata);
+			pos.close();
+			check(algorithm, expected, testdata, new ByteArrayInputStream(baos.toByteArray()));
+
+			// Computed hash, written back to a seekable target.
+			FileOutputStream fos = new FileOutputStream(tmpfile);
+			pos = new PicoOutputStream(key, fos.getChannel(), algorithm);
+			pos.write(testdata);
+			pos.close();
+			check(algorithm, expected, testdata, new FileInputStream(tmpfile));
+
+			// Known hash, verified.
+			baos = new ByteArrayOutputStream();
+			pos = new PicoOutputStream(key, algorithm, expected, baos, true);
+			pos.write(testdata);
+			pos.close();
+			check(algorithm, expected, testdata, new ByteArrayInputStream(baos.toByteArray()));
+		} // Try each algorithm.
+	}
+
+	@Test
+	public void fileTest() throws Exception {
+		for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+			byte[] data = testdata.clone();
+			PicoFile pf = PicoFile.create(tmpfile, key, algorithm);
+			pf.write(ByteBuffer.wrap(data));
+			Random rand = new Random(47L);
+			for (int trial = 0; trial < 20; trial++) {
+				int start = rand.nextInt(data.length - 100);
+				byte[] change = new byte[100];
+				rand.nextBytes(change);
+				System.arraycopy(change, 0, data, start, change.length);
+				pf.write(ByteBuffer.wrap(change), start);
+			} // Overwrite earlier data.
+			pf.close();
+			byte[] expected = hash(algorithm, data);
+			check(algorithm, expected, data, new FileInputStream(tmpfile));
+
+			pf = PicoFile.open(tmpfile, "r");
+			PicoHeader head = pf.getHeader();
+			assertEquals("Incorrect algorithm:", algorithm, head.getHashAlgorithm());
+			assertArrayEquals("Incorrect hash:", expected, head.hash);
+			ByteBuffer bb = ByteBuffer.allocate(data.length);
+			while (bb.hasRemaining() && pf.read(bb) > 0) {
+				// Keep reading.
+			}
+			pf.close();
+			assertArrayEquals("Incorrect data:", data, bb.array());
+		} // Try each algorithm.
+	}
+
+	@Test
+	public void oldVersionTest() throws Exception {
+		// MD5 files keep the hash in the fixed header, as before, so a file
+		// marked with an earlier version reads the same.
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.write(ByteBuffer.wrap(testdata));
+		pf.close();
+		byte[] encoded = Files.readAllBytes(tmpfile.toPath());
+		encoded[(int) PicoStructure.MINOR_OFFSET] = 0;
+		encoded[(int) PicoStructure.MINOR_OFFSET + 1] = 0;
+		check(HashAlgorithm.MD5, hash(HashAlgorithm.MD5, testdata), testdata,
+				new ByteArrayInputStream(encoded));
+	}
+
+	/**
+	 * Hash data with an algorithm.
+	 */
+	static byte[] hash(HashAlgorithm algorithm, byte[] data) {
+		MessageDigest digest = algorithm.newDigest();
+		return (digest == null) ? new byte[0] : digest.digest(data);
+	}
+
+	/**
+	 * Decode a Pico stream and check the algorithm, the hash, and the data.
+	 */
+	static void check(HashAlgorithm algorithm, byte[] expected, byte[] data,
+			InputStream is) throws Exception {
+		PicoInputStream pis = new PicoInputStream(is);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = pis.read(buffer)) >= 0) {
+			baos.write(buffer, 0, length);
+		}
+		pis.close();
+		PicoHeader head = pis.getHeader();
+		assertEquals("Incorrect algorithm:", algorithm, head.getHashAlgorithm());
+		assertArrayEquals("Incorrect hash for " + algorithm + ":", expected, head.hash);
+		assertArrayEquals("Incorrect data read back:", data, baos.toByteArray());
+	}
+}
@@ -0,0 +1,218 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.PicoException;
+import ornl.pico.io.HashAlgorithm;
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoHeader;
+import ornl.pico.io.PicoHeaderView;
+
+/**
+ * Write headers into a reused buffer and read them back, and probe Pico
+ * files for what their headers say.
+ * 
+ * @author jcarter
+ */
+public class HeaderCodecTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x17, (byte) 0x2b, (byte) 0x4d, (byte) 0x71 };
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@After
+	public void teardown() {
+		tmpfile.delete();
+	}
+
+	@Test
+	public void codecTest() throws Exception {
+		Random rand = new Random(71L);
+		// One buffer, in the wrong byte order, serves every header.
+		ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+		for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+			PicoHeader head = new PicoHeader();
+			byte[] thekey = new byte[1 + rand.nextInt(200)];
+			rand.nextBytes(thekey);
+			head.setKey(thekey);
+			head.setHashAlgorithm(algorithm);
+			head.hash = new byte[algorithm.getLength()];
+			rand.nextBytes(head.hash);
+			head.getMetadata().putString("name", algorithm.name()).putLong("size", 12345L);
+
+			buffer.clear();
+			buffer.position(7);
+			head.encode(buffer);
+			assertEquals(7 + head.getLength(), buffer.position());
+			assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+
+			buffer.flip();
+			buffer.position(7);
+			PicoHeader read = PicoHeader.decode(buffer);
+			assertEquals(7 + head.offset, buffer.position());
+			assertEquals(head.offset, read.offset);
+			assertEquals(algorithm, read.getHashAlgorithm());
+			assertArrayEquals(thekey, read.getKey());
+			assertArrayEquals(head.hash, read.hash);
+			assertEquals(algorithm.name(), read.getMetadata().getString("name"));
+			assertEquals(Long.valueOf(12345L), read.getMetadata().getLong("size"));
+		}
+	}
+
+	@Test
+	public void unhashedTest() throws Exception {
+		// Before the file is finished its hash is not known, and is encoded
+		// as zeros.
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+			PicoFile pf = PicoFile.create(tmpfile, key, algorithm);
+			pf.write(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5 }));
+			PicoHeader head = pf.getHeader();
+			assertNull(head.hash);
+			buffer.clear();
+			head.encode(buffer);
+			assertEquals(head.getLength(), buffer.position());
+			pf.close();
+
+			buffer.flip();
+			PicoHeader read = PicoHeader.decode(buffer);
+			assertEquals(algorithm, read.getHashAlgorithm());
+			assertArrayEquals(new byte[algorithm.getLength()], read.hash);
+		}
+	}
+
+	@Test
+	public void probeTest() throws Exception {
+		byte[] data = new byte[3000];
+		new Random(73L).nextBytes(data);
+		// A long key makes the probe read a second time for the hash entry.
+		byte[] longkey = new byte[1000];
+		new Random(79L).nextBytes(longkey);
+		for (byte[] thekey : new byte[][] { key, longkey }) {
+			for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+				PicoFile pf = PicoFile.create(tmpfile, thekey, algorithm);
+				pf.write(ByteBuffer.wrap(data));
+				pf.close();
+				pf = PicoFile.open(tmpfile, "r");
+				PicoHeader head = pf.getHeader();
+				pf.close();
+
+				PicoHeaderView view = PicoHeader.probe(tmpfile.toPath());
+				assertEquals(algorithm, view.getHashAlgorithm());
+				assertArrayEquals(head.hash, view.getHash());
+				assertTrue(view.hashEquals(head.hash));
+				assertEquals(thekey.length, view.getKeyLength());
+				assertEquals(head.offset, view.getOffset());
+				assertEquals(data.length, view.getDataLength());
+				assertEquals(tmpfile.length(), view.getFileLength());
+			}
+		}
+	}
+
+	@Test
+	public void probeBoundaryTest() throws Exception {
+		// Sweep the hash algorithm entry across the end of the first read.
+		byte[] data = new byte[] { 9, 8, 7 };
+		Random rand = new Random(83L);
+		for (int keylength = 440; keylength <= 520; keylength++) {
+			byte[] thekey = new byte[keylength];
+			rand.nextBytes(thekey);
+			for (HashAlgorithm algorithm : HashAlgorithm.values()) {
+				PicoFile pf = PicoFile.create(tmpfile, thekey, algorithm);
+				pf.write(ByteBuffer.wrap(data));
+				pf.close();
+				pf = PicoFile.open(tmpfile, "r");
+				PicoHeader head = pf.getHeader();
+				pf.close();
+
+				PicoHeaderView view = PicoHeader.probe(tmpfile.toPath());
+				assertEquals("Incorrect algorithm for key length " + keylength + ":",
+						algorithm, view.getHashAlgorithm());
+				assertArrayEquals("Incorrect hash for key length " + keylength + ":",
+						head.hash, view.getHash());
+				assertEquals(keylength, view.getKeyLength());
+				assertEquals(head.offset, view.getOffset());
+			}
+		} // Try each key length.
+	}
+
+	@Test
+	public void probeFailureTest() throws Exception {
+		FileOutputStream fos = new FileOutputStream(tmpfile);
+		fos.write("This is not a Pico file, but it is long enough.".getBytes("UTF-8"));
+		fos.close();
+		try {
+			PicoHeader.probe(tmpfile.toPath());
+			fail("A plain file was probed.");
+		} catch (PicoException pe) {
+			// Expected.
+		}
+		Files.write(tmpfile.toPath(), new byte[] { (byte) 0x91, (byte) 0xc0, 0 });
+		try {
+			PicoHeader.probe(tmpfile.toPath());
+			fail("A short file was probed.");
+		} catch (PicoException pe) {
+			// Expected.
+		}
+
+		// Damage the offset to the data, which follows the magic string and
+		// the version.
+		for (int offset : new int[] { 10, 4000, -1 }) {
+			PicoFile pf = PicoFile.create(tmpfile, key);
+			pf.write(ByteBuffer.wrap(new byte[100]));
+			pf.close();
+			RandomAccessFile raf = new RandomAccessFile(tmpfile, "rw");
+			raf.seek(6L);
+			raf.writeInt(offset);
+			raf.close();
+			try {
+				PicoHeader.probe(tmpfile.toPath());
+				fail("An incorrect offset " + offset + " was probed.");
+			} catch (PicoException pe) {
+				// Expected.
+			}
+		} // Try each damaged offset.
+
+		// The buffer must hold the longest hash algorithm entry.
+		try {
+			PicoHeader.probe(tmpfile.toPath(), ByteBuffer.allocate(30));
+			fail("A buffer too small was used.");
+		} catch (IllegalArgumentException iae) {
+			// Expected.
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.PicoException;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoOutputStream;
+
+/**
+ * Exercise the bulk read, skip, and available methods of
+ * {@link PicoInputStream}.
+ * 
+ * @author jcarter
+ */
+public class InputStreamTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = {
+			(byte) 0x00, (byte) 0x11, (byte) 0x77, (byte) 0x55, (byte) 0xff,
+			(byte) 0xa8, (byte) 0x23, (byte) 0x26, (byte) 0xa4, (byte) 0x3e,
+			(byte) 0x2a, (byte) 0x7a, (byte) 0x43,
+	};
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[50021];
+
+	static {
+		new Random(11L).nextBytes(testdata);
+	}
+
+	/** The encoded data. */
+	private byte[] encoded;
+
+	@Before
+	public void setup() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PicoOutputStream pos = new PicoOutputStream(key, baos);
+		pos.write(testdata);
+		pos.close();
+		encoded = baos.toByteArray();
+	}
+
+	@Test
+	public void bulkReadTest() throws IOException, PicoException {
+		PicoInputStream pis = new PicoInputStream(new ByteArrayInputStream(encoded));
+		byte[] data = new byte[testdata.length + 10];
+		int index = 5;
+		int length;
+		while ((length = pis.read(data, index, Math.min(997, data.length - index))) > 0) {
+			index += length;
+		}
+		assertEquals("Not all data was read back:", testdata.length + 5, index);
+		for (int here = 0; here < testdata.length; here++) {
+			assertEquals("Incorrect byte on read at index " + here + ":",
+					testdata[here], data[here + 5]);
+		} // Check all bytes.
+		assertEquals("Read past the end:", -1, pis.read());
+		pis.close();
+	}
+
+	@Test
+	public void skipTest() throws IOException, PicoException {
+		PicoInputStream pis = new PicoInputStream(new ByteArrayInputStream(encoded));
+		assertEquals("Incorrect available count:", testdata.length, pis.available());
+		int index = 0;
+		byte[] data = new byte[13];
+		while (index < testdata.length) {
+			// Alternate reads and skips of different lengths.
+			int length = pis.read(data);
+			for (int here = 0; here < length; here++) {
+				assertEquals("Incorrect byte on read at index " + (index + here) + ":",
+						testdata[index + here], data[here]);
+			} // Check what was read.
+			index += length;
+			if (index < testdata.length) {
+				assertEquals("Incorrect byte after skip at index " + index + ":",
+						testdata[index] & 0xff, pis.read());
+				index++;
+			}
+			index += (int) pis.skip(index % 101);
+			assertEquals("Incorrect available count:", testdata.length - index,
+					pis.available());
+		}
+		assertEquals("Skipped past the end:", testdata.length, index);
+		assertEquals("Skip at the end:", 0L, pis.skip(10L));
+		pis.close();
+	}
+}
@@ -0,0 +1,155 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Read and write a Pico file through a memory mapping.  The mapping window
+ * is made small, so that reads and writes cross windows.
+ * 
+ * @author jcarter
+ */
+public class MappedTest {
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[100003];
+
+	static {
+		new Random(11L).nextBytes(testdata);
+	}
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		System.setProperty("ornl.pico.io.window", "4096");
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x35, 0x6a, 0x09, 0x12 });
+		pf.write(ByteBuffer.wrap(testdata));
+		pf.close();
+	}
+
+	@Test
+	public void readTest() throws Exception {
+		PicoFile pf = PicoFile.openMapped(tmpfile, "r");
+		assertEquals("Incorrect size:", testdata.length, pf.size());
+		Random rand = new Random(13L);
+		for (int trial = 0; trial < 200; trial++) {
+			int start = rand.nextInt(testdata.length);
+			ByteBuffer bb = ByteBuffer.allocate(1 + rand.nextInt(10000));
+			pf.position(start);
+			int length = pf.read(bb);
+			assertEquals("Incorrect length:",
+					Math.min(bb.capacity(), testdata.length - start), length);
+			assertEquals("Incorrect position:", start + length, pf.position());
+			for (int here = 0; here < length; here++) {
+				assertEquals("Incorrect byte at index " + (start + here) + ":",
+						testdata[start + here], bb.get(here));
+			} // Check the block.
+			pf.position(start);
+			assertEquals("Incorrect single byte:", testdata[start] & 0xff, pf.read());
+		} // Read random ranges.
+		pf.position(testdata.length);
+		assertEquals("Read past the end:", -1, pf.read(ByteBuffer.allocate(10)));
+		assertEquals("Read past the end:", -1, pf.read());
+		pf.close();
+	}
+
+	@Test
+	public void writeTest() throws Exception {
+		byte[] expected = testdata.clone();
+		PicoFile pf = PicoFile.openMapped(tmpfile, "rw");
+
+		// Overwrite across a window boundary, in place.
+		byte[] patch = new byte[10000];
+		new Random(17L).nextBytes(patch);
+		System.arraycopy(patch, 0, expected, 3000, patch.length);
+		pf.position(3000);
+		pf.write(ByteBuffer.wrap(patch));
+		pf.position(50);
+		pf.write(0x5c);
+		expected[50] = 0x5c;
+
+		// Extend the file past the end.
+		byte[] tail = new byte[5000];
+		new Random(19L).nextBytes(tail);
+		pf.position(testdata.length);
+		pf.write(ByteBuffer.wrap(tail));
+		pf.close();
+		byte[] all = new byte[expected.length + tail.length];
+		System.arraycopy(expected, 0, all, 0, expected.length);
+		System.arraycopy(tail, 0, all, expected.length, tail.length);
+
+		// Read it all back through a stream, and check the hash.
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		byte[] data = new byte[all.length];
+		int index = 0;
+		int length;
+		while ((length = pis.read(data, index, data.length - index)) > 0) {
+			index += length;
+		}
+		assertEquals("Read past the end:", -1, pis.read());
+		pis.close();
+		assertArrayEquals("Incorrect data read back:", all, data);
+		assertArrayEquals("Incorrect hash:",
+				MessageDigest.getInstance(PicoStructure.HASH).digest(all),
+				pis.getHeader().hash);
+	}
+
+	@Test
+	public void sourceTest() throws Exception {
+		PicoFile pf = PicoFile.openMapped(tmpfile, "rw");
+		byte[] patch = new byte[70000];
+		new Random(23L).nextBytes(patch);
+		byte[] original = patch.clone();
+
+		// Heap, read-only, and direct sources, none of which may be changed.
+		ByteBuffer direct = ByteBuffer.allocateDirect(patch.length);
+		direct.put(patch).flip();
+		ByteBuffer[] sources = { ByteBuffer.wrap(patch),
+				ByteBuffer.wrap(patch).asReadOnlyBuffer(), direct };
+		for (ByteBuffer source : sources) {
+			pf.write(source, 1000L);
+			for (int index = 0; index < patch.length; index++) {
+				assertEquals("Source changed at index " + index + ":", original[index],
+						source.get(index));
+			} // Check the source.
+			ByteBuffer bb = ByteBuffer.allocate(patch.length);
+			pf.read(bb, 1000L);
+			assertArrayEquals("Incorrect data read back:", original, bb.array());
+		} // Write from each source.
+		pf.close();
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		System.clearProperty("ornl.pico.io.window");
+		tmpfile.delete();
+	}
+}
@@ -0,0 +1,164 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoMetadata;
+
+/**
+ * Store typed values in the header of Pico files, change them, and check
+ * that they are read back and that reserved space keeps the data in place.
+ * 
+ * @author jcarter
+ */
+public class MetadataTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x3c, (byte) 0x5a, (byte) 0x96, (byte) 0xe1, (byte) 0x07 };
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@After
+	public void teardown() {
+		tmpfile.delete();
+	}
+
+	@Test
+	public void roundTripTest() throws Exception {
+		byte[] data = new byte[10000];
+		new Random(61L).nextBytes(data);
+		byte[] index = { 0, 1, 2, (byte) 0xff };
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.getMetadata().putString("content-type", "text/plain; charset=\u00fc")
+				.putLong("original-size", data.length).putLong("negative", -123456789012L)
+				.putDouble("ratio", 0.25).putBoolean("compressed", false)
+				.putBytes("index", index);
+		pf.write(ByteBuffer.wrap(data));
+		pf.close();
+
+		pf = PicoFile.open(tmpfile, "r");
+		PicoMetadata values = pf.getMetadata();
+		assertEquals("text/plain; charset=\u00fc", values.getString("content-type"));
+		assertEquals(Long.valueOf(data.length), values.getLong("original-size"));
+		assertEquals(Long.valueOf(-123456789012L), values.getLong("negative"));
+		assertEquals(Double.valueOf(0.25), values.getDouble("ratio"));
+		assertEquals(Boolean.FALSE, values.getBoolean("compressed"));
+		assertArrayEquals(index, values.getBytes("index"));
+		assertEquals(PicoMetadata.Type.BYTES, values.getType("index"));
+		assertNull(values.getString("missing"));
+		assertEquals(6, values.keys().size());
+		pf.close();
+
+		// The stream reader sees the same values and data.
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		assertEquals(Long.valueOf(data.length), pis.getHeader().getMetadata()
+				.getLong("original-size"));
+		byte[] read = new byte[data.length];
+		int length = 0;
+		while (length < read.length) {
+			length += pis.read(read, length, read.length - length);
+		}
+		pis.close();
+		assertArrayEquals(data, read);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void wrongTypeTest() throws Exception {
+		new PicoMetadata().putLong("size", 5L).getString("size");
+	}
+
+	@Test
+	public void inPlaceTest() throws Exception {
+		byte[] data = new byte[5000];
+		new Random(67L).nextBytes(data);
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.reserveMetadata(256);
+		pf.getMetadata().putString("state", "new");
+		pf.write(ByteBuffer.wrap(data));
+		pf.close();
+		long length = tmpfile.length();
+		long offset = length - data.length;
+
+		// Values that fit in the reserve are written over the old ones.
+		pf = PicoFile.open(tmpfile, "rw");
+		pf.getMetadata().putString("state", "indexed").putBytes("index", new byte[100]);
+		pf.close();
+		assertEquals("The file length changed:", length, tmpfile.length());
+		pf = PicoFile.open(tmpfile, "r");
+		assertEquals(offset, pf.getHeader().offset);
+		assertEquals("indexed", pf.getMetadata().getString("state"));
+		assertEquals(100, pf.getMetadata().getBytes("index").length);
+		byte[] read = new byte[data.length];
+		pf.read(ByteBuffer.wrap(read), 0L);
+		assertArrayEquals(data, read);
+		pf.close();
+
+		// Removing values leaves the space for later.
+		pf = PicoFile.open(tmpfile, "rw");
+		pf.getMetadata().remove("index");
+		pf.close();
+		assertEquals("The file length changed:", length, tmpfile.length());
+		pf = PicoFile.open(tmpfile, "r");
+		assertTrue(pf.getMetadata().keys().contains("state"));
+		assertEquals(1, pf.getMetadata().keys().size());
+		pf.close();
+	}
+
+	@Test
+	public void outgrownTest() throws Exception {
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.reserveMetadata(16);
+		pf.write(ByteBuffer.wrap(new byte[100]), 0L);
+		try {
+			pf.reserveMetadata(64);
+			fail("Space was reserved after data was written.");
+		} catch (IllegalStateException ise) {
+			// Expected.
+		}
+		pf.getMetadata().putBytes("index", new byte[1000]);
+		try {
+			pf.finish();
+			fail("The data was moved to make room for the metadata.");
+		} catch (IOException ioe) {
+			// Expected.
+		}
+		pf.getMetadata().remove("index");
+		pf.close();
+		pf = PicoFile.open(tmpfile, "r");
+		assertTrue(pf.getMetadata().isEmpty());
+		assertEquals(100, pf.size());
+		pf.close();
+	}
+}
@@ -0,0 +1,359 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoOutputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Write Pico streams of various sizes and read them back.
+ * 
+ * @author jcarter
+ */
+public class OutputStreamTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x21, (byte) 0x43, (byte) 0x65, (byte) 0x87, (byte) 0xa9 };
+
+	/** Payload sizes to try. */
+	static int[] sizes = { 0, 1, 50, 100, 101, 300007 };
+
+	/** Thresholds to try. */
+	static int[] thresholds = { 0, 100, PicoOutputStream.DEFAULT_THRESHOLD };
+
+	/** Source of random data. */
+	private Random rand = new Random(3L);
+
+	@Test
+	public void roundTripTest() throws Exception {
+		for (int threshold : thresholds) {
+			for (int size : sizes) {
+				byte[] data = new byte[size];
+				rand.nextBytes(data);
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				PicoOutputStream pos = new PicoOutputStream(key, baos, threshold);
+				// Write in uneven pieces.
+				int index = 0;
+				while (index < size) {
+					int length = Math.min(size - index, 1 + index % 997);
+					pos.write(data, index, length);
+					index += length;
+				}
+				pos.close();
+				check(data, baos.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void noTempFileTest() throws Exception {
+		byte[] data = new byte[4096];
+		rand.nextBytes(data);
+		int before = countTempFiles();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PicoOutputStream pos = new PicoOutputStream(key, baos);
+		pos.write(data);
+		assertEquals("A temporary file was created:", before, countTempFiles());
+		pos.close();
+		check(data, baos.toByteArray());
+	}
+
+	@Test
+	public void spillTest() throws Exception {
+		byte[] data = new byte[4096];
+		rand.nextBytes(data);
+		int before = countTempFiles();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PicoOutputStream pos = new PicoOutputStream(key, baos, 1024);
+		pos.write(data);
+		assertTrue("No temporary file was created.", countTempFiles() > before);
+		pos.close();
+		assertEquals("The temporary file was not removed:", before, countTempFiles());
+		check(data, baos.toByteArray());
+	}
+
+	@Test
+	public void spillFailureTest() throws Exception {
+		// The header cannot be written, so the data is never transferred.
+		byte[] data = new byte[5000];
+		rand.nextBytes(data);
+		int before = countTempFiles();
+		PicoOutputStream pos = new PicoOutputStream(key, new OutputStream() {
+			@Override
+			public void write(int datum) throws IOException {
+				throw new IOException("The sink failed.");
+			}
+		}, 1024);
+		pos.write(data);
+		assertTrue("No temporary file was created.", countTempFiles() > before);
+		try {
+			pos.close();
+			fail("The failure was not reported.");
+		} catch (IOException ioe) {
+			// Expected.
+		}
+		assertEquals("The temporary file was not removed:", before, countTempFiles());
+	}
+
+	@Test
+	public void spillToFileTest() throws Exception {
+		// Spilled data goes to a file output stream channel to channel.
+		File tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		try {
+			byte[] data = new byte[300007];
+			rand.nextBytes(data);
+			PicoOutputStream pos = new PicoOutputStream(key,
+					new FileOutputStream(tmpfile), 1000);
+			pos.write(data);
+			pos.close();
+			check(data, Files.readAllBytes(tmpfile.toPath()));
+		} finally {
+			tmpfile.delete();
+		}
+	}
+
+	@Test
+	public void seekableTest() throws Exception {
+		File tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		try {
+			for (int size : sizes) {
+				byte[] data = new byte[size];
+				rand.nextBytes(data);
+				byte[] prefix = { 1, 2, 3 };
+				int before = countTempFiles();
+				FileOutputStream fos = new FileOutputStream(tmpfile);
+				FileChannel channel = fos.getChannel();
+				fos.write(prefix);
+				PicoOutputStream pos = new PicoOutputStream(key, channel);
+				pos.write(data, 0, size / 2);
+				pos.write(data, size / 2, size - size / 2);
+				assertEquals("A temporary file was created:", before, countTempFiles());
+				pos.close();
+				byte[] encoded = Files.readAllBytes(tmpfile.toPath());
+				assertEquals("The prefix was overwritten:", prefix[2], encoded[2]);
+				byte[] wrapped = new byte[encoded.length - prefix.length];
+				System.arraycopy(encoded, prefix.length, wrapped, 0, wrapped.length);
+				check(data, wrapped);
+			}
+		} finally {
+			tmpfile.delete();
+		}
+	}
+
+	@Test
+	public void knownHashTest() throws Exception {
+		for (int size : sizes) {
+			byte[] data = new byte[size];
+			rand.nextBytes(data);
+			byte[] hash = MessageDigest.getInstance(PicoStructure.HASH).digest(data);
+			for (boolean verify : new boolean[] { false, true }) {
+				int before = countTempFiles();
+				ByteArrayOutputStream baos = new ByteArrayOutputStream();
+				PicoOutputStream pos = new PicoOutputStream(key, hash, baos, verify);
+				pos.write(data);
+				assertEquals("A temporary file was created:", before, countTempFiles());
+				pos.close();
+				check(data, baos.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void wrongHashTest() throws Exception {
+		byte[] data = new byte[1000];
+		rand.nextBytes(data);
+		byte[] hash = new byte[(int) PicoStructure.HASH_LENGTH];
+
+		// Without verification the claimed hash is simply used.
+		PicoOutputStream pos = new PicoOutputStream(key, hash, new ByteArrayOutputStream());
+		pos.write(data);
+		pos.close();
+
+		// With verification the mismatch is reported.
+		pos = new PicoOutputStream(key, hash, new ByteArrayOutputStream(), true);
+		pos.write(data);
+		try {
+			pos.close();
+			fail("The wrong hash was not detected.");
+		} catch (IOException ioe) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void pipelinedTest() throws Exception {
+		for (int size : sizes) {
+			byte[] data = new byte[size];
+			rand.nextBytes(data);
+			byte[] hash = MessageDigest.getInstance(PicoStructure.HASH).digest(data);
+			for (int mode = 0; mode < 3; mode++) {
+				ByteArrayOutputStream plain = new ByteArrayOutputStream();
+				ByteArrayOutputStream piped = new ByteArrayOutputStream();
+				PicoOutputStream first = open(mode, plain, hash);
+				PicoOutputStream second = open(mode, piped, hash).setPipelined(3, 1000);
+				// Write in uneven pieces, with some single bytes.
+				int index = 0;
+				while (index < size) {
+					int length = Math.min(size - index, 1 + index % 2003);
+					first.write(data, index, length);
+					second.write(data, index, length);
+					index += length;
+					if (index < size) {
+						first.write(data[index]);
+						second.write(data[index]);
+						index++;
+					}
+				}
+				first.close();
+				second.close();
+				assertArrayEquals("Pipelined output differs in mode " + mode + ":",
+						plain.toByteArray(), piped.toByteArray());
+				check(data, piped.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void pipelinedWrongHashTest() throws Exception {
+		byte[] data = new byte[100000];
+		rand.nextBytes(data);
+		byte[] hash = new byte[(int) PicoStructure.HASH_LENGTH];
+		PicoOutputStream pos = new PicoOutputStream(key, hash,
+				new ByteArrayOutputStream(), true).setPipelined(2, 4096);
+		pos.write(data);
+		try {
+			pos.close();
+			fail("The wrong hash was not detected.");
+		} catch (IOException ioe) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void pipelinedFailureTest() throws Exception {
+		// The sink fails in a way no worker expects, and kills its thread.
+		final OutputStream sink = new OutputStream() {
+			private int written = 0;
+
+			@Override
+			public void write(int datum) throws IOException {
+				write(new byte[] { (byte) datum }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] data, int off, int len) throws IOException {
+				written += len;
+				if (written > 20000) {
+					throw new Error("The sink failed.");
+				}
+			}
+		};
+		final byte[] data = new byte[1000];
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Void> result = executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					PicoOutputStream pos = new PicoOutputStream(key, new byte[16], sink)
+							.setPipelined(2, 4096);
+					for (int count = 0; count < 1000; count++) {
+						pos.write(data);
+					}
+					pos.close();
+					return null;
+				}
+			});
+			result.get(30, TimeUnit.SECONDS);
+			fail("The failure was not reported.");
+		} catch (ExecutionException ee) {
+			assertTrue("Incorrect failure: " + ee.getCause(), ee.getCause() instanceof IOException);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Open a stream: 0 computes the hash, 1 uses a known hash, and 2
+	 * verifies a known hash.
+	 */
+	static PicoOutputStream open(int mode, ByteArrayOutputStream baos,
+			byte[] hash) throws IOException {
+		switch (mode) {
+		case 0:
+			return new PicoOutputStream(key, baos, 100);
+		case 1:
+			return new PicoOutputStream(key, hash, baos);
+		default:
+			return new PicoOutputStream(key, hash, baos, true);
+		}
+	}
+
+	/**
+	 * Count the temporary files that look like they belong to a Pico stream.
+	 */
+	static int countTempFiles() {
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		String[] names = dir.list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("pico") && name.endsWith("pico");
+			}
+		});
+		return (names == null) ? 0 : names.length;
+	}
+
+	/**
+	 * Decode a Pico stream and check both the data and the hash.
+	 */
+	static void check(byte[] expected, byte[] encoded) throws Exception {
+		PicoInputStream pis = new PicoInputStream(new ByteArrayInputStream(encoded));
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int length;
+		while ((length = pis.read(buffer)) >= 0) {
+			baos.write(buffer, 0, length);
+		}
+		pis.close();
+		assertArrayEquals("Incorrect data read back:", expected, baos.toByteArray());
+		assertArrayEquals("Incorrect hash:",
+				MessageDigest.getInstance(PicoStructure.HASH).digest(expected),
+				pis.getHeader().hash);
+	}
+}
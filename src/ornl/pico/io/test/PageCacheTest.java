@@ -0,0 +1,225 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PageCache;
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoOutputStream;
+
+/**
+ * Read Pico files through the shared page cache, and check that hits are
+ * shared between instances, that writes drop stale pages, and that the
+ * budget is kept.
+ * 
+ * @author jcarter
+ */
+public class PageCacheTest {
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[5 * PageCache.PAGE_SIZE + 1234];
+
+	static {
+		new Random(17L).nextBytes(testdata);
+	}
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x11, 0x7c, 0x2e });
+		pf.write(ByteBuffer.wrap(testdata));
+		pf.close();
+	}
+
+	@After
+	public void teardown() {
+		PageCache.setShared(null);
+		tmpfile.delete();
+	}
+
+	@Test
+	public void sharedTest() throws Exception {
+		PageCache cache = new PageCache(64L * PageCache.PAGE_SIZE);
+		PageCache.setShared(cache);
+		PicoFile first = PicoFile.open(tmpfile, "r");
+		check(first);
+		long misses = cache.getMisses();
+		assertTrue("Nothing was cached.", cache.getSize() > 0);
+
+		// A second instance on the same file hits the pages of the first.
+		PicoFile second = PicoFile.open(tmpfile, "r");
+		check(second);
+		assertTrue("No pages were shared.", cache.getHits() > 0);
+		// Only the short last page, which is never kept, is read again.
+		assertEquals("Full pages were read again:", misses - 5, cache.getMisses() - misses);
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void invalidateTest() throws Exception {
+		PageCache.setShared(new PageCache(64L * PageCache.PAGE_SIZE));
+		PicoFile reader = PicoFile.open(tmpfile, "r");
+		check(reader);
+
+		// Write through another instance, and read through the first.
+		PicoFile writer = PicoFile.open(tmpfile, "rw");
+		Random rand = new Random(19L);
+		for (int trial = 0; trial < 20; trial++) {
+			int start = rand.nextInt(testdata.length - 100);
+			byte[] change = new byte[1 + rand.nextInt(100)];
+			rand.nextBytes(change);
+			System.arraycopy(change, 0, testdata, start, change.length);
+			writer.write(ByteBuffer.wrap(change), start);
+		} // Make random changes.
+		writer.position(17L);
+		writer.write(0x5a);
+		writer.flush();
+		testdata[17] = 0x5a;
+		check(reader);
+
+		// Extend the file, and read the new bytes.
+		byte[] grown = new byte[testdata.length + 5000];
+		rand.nextBytes(grown);
+		System.arraycopy(testdata, 0, grown, 0, testdata.length);
+		writer.write(ByteBuffer.wrap(grown, testdata.length, 5000), testdata.length);
+		testdata = grown;
+		check(reader);
+
+		// Truncate the file, and make sure the cut bytes are gone.
+		writer.truncate(3 * PageCache.PAGE_SIZE + 10);
+		assertEquals("Read past the end:", -1,
+				reader.read(ByteBuffer.allocate(10), 3 * PageCache.PAGE_SIZE + 10));
+		writer.finish();
+		writer.close();
+		reader.close();
+	}
+
+	@Test
+	public void rewrapTest() throws Exception {
+		PageCache.setShared(new PageCache(64L * PageCache.PAGE_SIZE));
+		byte[] key = new byte[] { 0x21, 0x3d };
+		for (byte value = '1'; value <= '3'; value++) {
+			// Replace the file by other means than a Pico file instance.
+			byte[] data = new byte[3 * PageCache.PAGE_SIZE];
+			Arrays.fill(data, value);
+			PicoOutputStream pos = new PicoOutputStream(key, new FileOutputStream(tmpfile));
+			pos.write(data);
+			pos.close();
+			PicoFile pf = PicoFile.open(tmpfile, "r");
+			ByteBuffer bb = ByteBuffer.allocate(data.length);
+			assertEquals("Incorrect length:", data.length, pf.read(bb, 0L));
+			for (int index = 0; index < data.length; index++) {
+				assertEquals("Stale byte at index " + index + ":", value, bb.get(index));
+			} // Check the data.
+			pf.close();
+		} // Wrap each value.
+	}
+
+	@Test
+	public void forgetTest() throws Exception {
+		PageCache cache = new PageCache(2L * PageCache.PAGE_SIZE);
+		PageCache.setShared(cache);
+		PicoFile pf = PicoFile.open(tmpfile, "rw");
+		check(pf);
+		assertEquals("Incorrect file count:", 1, cache.getFileCount());
+
+		// Dropping the last page of a file forgets the file.
+		pf.write(ByteBuffer.wrap(testdata));
+		assertEquals("The file was not forgotten:", 0, cache.getFileCount());
+		pf.close();
+
+		// So do evictions, however many files have come and gone.
+		for (int trial = 0; trial < 10; trial++) {
+			File other = File.createTempFile("test", "pico");
+			other.deleteOnExit();
+			PicoFile opf = PicoFile.create(other, new byte[] { 0x5e });
+			opf.write(ByteBuffer.wrap(testdata));
+			opf.close();
+			opf = PicoFile.open(other, "r");
+			check(opf);
+			opf.close();
+			other.delete();
+		} // Cache many files.
+		assertTrue("Files were not forgotten.", cache.getFileCount() <= 2);
+		cache.clear();
+		assertEquals("The cache was not cleared:", 0, cache.getFileCount());
+	}
+
+	@Test
+	public void lateCacheTest() throws Exception {
+		// An instance opened before the cache was installed has no stamp.
+		PicoFile early = PicoFile.open(tmpfile, "r");
+		PageCache cache = new PageCache(64L * PageCache.PAGE_SIZE);
+		PageCache.setShared(cache);
+		check(early);
+		assertEquals("Incorrect file count:", 1, cache.getFileCount());
+
+		// Its pages are dropped when the file is next opened.
+		PicoFile late = PicoFile.open(tmpfile, "r");
+		assertEquals("Pages without a stamp were kept:", 0, cache.getFileCount());
+		check(late);
+		early.close();
+		late.close();
+	}
+
+	@Test
+	public void budgetTest() throws Exception {
+		PageCache cache = new PageCache(2L * PageCache.PAGE_SIZE);
+		PageCache.setShared(cache);
+		PicoFile pf = PicoFile.open(tmpfile, "r");
+		check(pf);
+		assertTrue("The budget was exceeded.", cache.getSize() <= cache.getBudget());
+		assertTrue("Nothing was evicted.", cache.getEvictions() > 0);
+		cache.clear();
+		assertEquals("The cache was not cleared:", 0L, cache.getSize());
+		check(pf);
+		pf.close();
+	}
+
+	/**
+	 * Read the whole file in uneven pieces and compare it with the test data.
+	 */
+	static void check(PicoFile pf) throws Exception {
+		assertEquals("Incorrect size:", testdata.length, pf.size());
+		long here = 0;
+		int piece = 1;
+		while (here < testdata.length) {
+			ByteBuffer bb = ByteBuffer.allocate(piece);
+			int length = pf.read(bb, here);
+			assertEquals("Incorrect length at " + here + ":",
+					Math.min(piece, testdata.length - here), length);
+			for (int index = 0; index < length; index++) {
+				assertEquals("Incorrect byte at index " + (here + index) + ":",
+						testdata[(int) (here + index)], bb.get(index));
+			} // Check the piece.
+			here += length;
+			piece = piece * 7 % 100003 + 1;
+		} // Read the file.
+		assertEquals("Read past the end:", -1, pf.read(ByteBuffer.allocate(10), here));
+	}
+}
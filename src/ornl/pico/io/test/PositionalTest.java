@@ -0,0 +1,99 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Read and write a Pico file at explicit positions, and check that the
+ * position of the channel is left alone.
+ * 
+ * @author jcarter
+ */
+public class PositionalTest {
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[70001];
+
+	static {
+		new Random(23L).nextBytes(testdata);
+	}
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@Test
+	public void positionalTest() throws Exception {
+		// Write the data back to front, in pieces, at explicit positions.
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x44, 0x0d, 0x7e });
+		pf.position(17L);
+		int end = testdata.length;
+		while (end > 0) {
+			int start = Math.max(0, end - 9999);
+			assertEquals("Incorrect length written:", end - start,
+					pf.write(ByteBuffer.wrap(testdata, start, end - start), start));
+			end = start;
+		}
+		assertEquals("The position moved:", 17L, pf.position());
+		assertEquals("Incorrect size:", testdata.length, pf.size());
+		pf.close();
+
+		for (String method : new String[] { "r", "m" }) {
+			pf = method.equals("r") ? PicoFile.open(tmpfile, "r")
+					: PicoFile.openMapped(tmpfile, "r");
+			pf.position(5L);
+			Random rand = new Random(29L);
+			for (int trial = 0; trial < 100; trial++) {
+				int start = rand.nextInt(testdata.length);
+				ByteBuffer bb = ByteBuffer.allocate(1 + rand.nextInt(5000));
+				int length = pf.read(bb, start);
+				assertEquals("Incorrect length read:",
+						Math.min(bb.capacity(), testdata.length - start), length);
+				for (int here = 0; here < length; here++) {
+					assertEquals("Incorrect byte at index " + (start + here) + ":",
+							testdata[start + here], bb.get(here));
+				} // Check the block.
+			} // Read random ranges.
+			assertEquals("The position moved:", 5L, pf.position());
+			assertEquals("Incorrect byte at the position:", testdata[5] & 0xff, pf.read());
+			assertEquals("Read past the end:", -1,
+					pf.read(ByteBuffer.allocate(1), testdata.length));
+			assertArrayEquals("Incorrect hash:",
+					MessageDigest.getInstance(PicoStructure.HASH).digest(testdata),
+					pf.getHeader().hash);
+			pf.close();
+		}
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		tmpfile.delete();
+	}
+}
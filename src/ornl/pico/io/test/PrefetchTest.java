@@ -0,0 +1,178 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PageCache;
+import ornl.pico.io.PicoFile;
+
+/**
+ * Read a Pico file at the current position, sequentially and at random, and
+ * check that the bytes read ahead stay correct as the file is written.
+ * 
+ * @author jcarter
+ */
+public class PrefetchTest {
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[3 * 1024 * 1024 + 17];
+
+	static {
+		new Random(31L).nextBytes(testdata);
+	}
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+		PicoFile pf = PicoFile.create(tmpfile, new byte[] { 0x6b, 0x02, 0x5f });
+		pf.write(ByteBuffer.wrap(testdata));
+		pf.close();
+	}
+
+	@After
+	public void teardown() {
+		tmpfile.delete();
+	}
+
+	@Test
+	public void sequentialTest() throws Exception {
+		PicoFile pf = PicoFile.open(tmpfile, "r");
+		byte[] actual = new byte[testdata.length];
+		long start = System.nanoTime();
+		for (int index = 0; index < actual.length; index++) {
+			actual[index] = (byte) pf.read();
+		} // Read a byte at a time.
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("Read %d bytes one at a time: %.1f MB/s%n", actual.length,
+				actual.length * 1e3 / elapsed);
+		assertArrayEquals("Incorrect data read:", testdata, actual);
+		assertEquals("Read past the end:", -1, pf.read());
+
+		// Read again in small pieces.
+		pf.position(0L);
+		int index = 0;
+		while (index < testdata.length) {
+			ByteBuffer bb = ByteBuffer.allocate(1 + index % 1013);
+			int length = pf.read(bb);
+			for (int here = 0; here < length; here++) {
+				assertEquals("Incorrect byte at index " + (index + here) + ":",
+						testdata[index + here], bb.get(here));
+			} // Check the piece.
+			index += length;
+		} // Read the file.
+		assertEquals("Incorrect position:", testdata.length, pf.position());
+		pf.close();
+	}
+
+	@Test
+	public void mixedTest() throws Exception {
+		PicoFile pf = PicoFile.open(tmpfile, "rw");
+		Random rand = new Random(37L);
+		for (int trial = 0; trial < 300; trial++) {
+			int start = rand.nextInt(testdata.length - 5000);
+			pf.position(start);
+			if (trial % 3 == 0) {
+				// Change bytes, possibly in the window read ahead.
+				byte[] change = new byte[1 + rand.nextInt(100)];
+				rand.nextBytes(change);
+				System.arraycopy(change, 0, testdata, start, change.length);
+				pf.write(ByteBuffer.wrap(change), start);
+			}
+			for (int here = start; here < start + 5000; here++) {
+				assertEquals("Incorrect byte at index " + here + ":", testdata[here] & 0xff,
+						pf.read());
+				if (here % 1000 == 999) {
+					// Write a byte at the current position.
+					testdata[here + 1] = (byte) rand.nextInt();
+					pf.write(testdata[here + 1]);
+					here++;
+				}
+			} // Read a run of bytes.
+		} // Read from random positions.
+		pf.close();
+	}
+
+	@Test
+	public void sharedTest() throws Exception {
+		PicoFile reader = PicoFile.open(tmpfile, "r");
+		PicoFile writer = PicoFile.open(tmpfile, "rw");
+		Random rand = new Random(41L);
+		for (int trial = 0; trial < 50; trial++) {
+			int start = rand.nextInt(testdata.length - 5000);
+			reader.position(start);
+			for (int here = start; here < start + 5000; here++) {
+				assertEquals("Incorrect byte at index " + here + ":", testdata[here] & 0xff,
+						reader.read());
+				if (here % 1000 == 999) {
+					// Change bytes ahead of the reader through the other instance.
+					byte[] change = new byte[1 + rand.nextInt(2000)];
+					rand.nextBytes(change);
+					System.arraycopy(change, 0, testdata, here + 1, change.length);
+					writer.write(ByteBuffer.wrap(change), here + 1);
+					writer.flush();
+				}
+			} // Read a run of bytes.
+
+			// Relative and positional reads agree.
+			ByteBuffer relative = ByteBuffer.allocate(100);
+			ByteBuffer positional = ByteBuffer.allocate(100);
+			reader.position(start);
+			reader.read(relative);
+			reader.read(positional, start);
+			assertArrayEquals("Relative and positional reads differ:", positional.array(),
+					relative.array());
+		} // Read from random positions.
+		writer.close();
+		reader.close();
+	}
+
+	@Test
+	public void ownWritesTest() throws Exception {
+		// Count the pages looked up, which only refilling the window does.
+		PageCache cache = new PageCache(64L * PageCache.PAGE_SIZE);
+		PageCache.setShared(cache);
+		try {
+			long[] lookups = new long[2];
+			for (int pass = 0; pass < 2; pass++) {
+				PicoFile pf = PicoFile.open(tmpfile, "rw");
+				long before = cache.getHits() + cache.getMisses();
+				for (int here = 0; here < 300000; here++) {
+					assertEquals("Incorrect byte at index " + here + ":", testdata[here] & 0xff,
+							pf.read());
+					if (pass == 1 && here % 1000 == 0) {
+						// Write far from the window, through the same instance.
+						int far = testdata.length - 1 - here / 1000;
+						pf.write(ByteBuffer.wrap(testdata, far, 1), far);
+					}
+				} // Read a run of bytes.
+				lookups[pass] = cache.getHits() + cache.getMisses() - before;
+				pf.close();
+			} // Read without and with writes.
+			assertEquals("Writes elsewhere dropped the window:", lookups[0], lookups[1]);
+		} finally {
+			PageCache.setShared(null);
+		}
+	}
+}
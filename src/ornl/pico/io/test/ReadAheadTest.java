@@ -0,0 +1,230 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.PicoException;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoOutputStream;
+
+/**
+ * Read a Pico stream with read-ahead enabled.
+ * 
+ * @author jcarter
+ */
+public class ReadAheadTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x5a, (byte) 0xc3, (byte) 0x01 };
+
+	/** The test data to write and read back. */
+	static byte[] testdata = new byte[200003];
+
+	static {
+		new Random(5L).nextBytes(testdata);
+	}
+
+	/** The encoded data. */
+	private byte[] encoded;
+
+	/**
+	 * A stream that returns short reads, to mimic slow storage.
+	 */
+	static class SlowStream extends FilterInputStream {
+		SlowStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+			return super.read(data, off, Math.min(len, 1000));
+		}
+	}
+
+	@Before
+	public void setup() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		PicoOutputStream pos = new PicoOutputStream(key, baos);
+		pos.write(testdata);
+		pos.close();
+		encoded = baos.toByteArray();
+	}
+
+	@Test
+	public void doubleBufferTest() throws IOException, PicoException {
+		check(new PicoInputStream(new SlowStream(
+				new ByteArrayInputStream(encoded)), 2, 4096));
+	}
+
+	@Test
+	public void tripleBufferTest() throws IOException, PicoException {
+		check(new PicoInputStream(new ByteArrayInputStream(encoded), 3, 777));
+	}
+
+	@Test
+	public void earlyCloseTest() throws IOException, PicoException, InterruptedException {
+		PicoInputStream pis = new PicoInputStream(new ByteArrayInputStream(encoded), 2, 64);
+		assertEquals("Incorrect first byte:", testdata[0] & 0xff, pis.read());
+		pis.close();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertFalse("Read-ahead thread still running.",
+					"pico-read-ahead".equals(thread.getName()) && thread.isAlive());
+		} // Look for the background thread.
+	}
+
+	@Test
+	public void sourceFailureTest() throws Exception {
+		// The source fails with a runtime exception part way through the
+		// data. The reader must see a failure, and not wait forever.
+		InputStream failing = new FilterInputStream(new ByteArrayInputStream(encoded)) {
+			private int count = 0;
+
+			@Override
+			public int read(byte[] data, int off, int len) throws IOException {
+				if (count > 10000) {
+					throw new IllegalStateException("Source failed.");
+				}
+				int length = super.read(data, off, len);
+				count += Math.max(length, 0);
+				return length;
+			}
+		};
+		final PicoInputStream pis = new PicoInputStream(failing, 2, 4096);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Future<Object> result = pool.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					byte[] data = new byte[4096];
+					while (pis.read(data) >= 0) {
+						// Drain.
+					}
+					return null;
+				}
+			});
+			try {
+				result.get(30, TimeUnit.SECONDS);
+				fail("The source failure was not reported.");
+			} catch (ExecutionException ee) {
+				assertTrue("Unexpected failure: " + ee.getCause(),
+						ee.getCause() instanceof IOException);
+			}
+		} finally {
+			pool.shutdownNow();
+			pis.close();
+		}
+	}
+
+	@Test
+	public void emptyReadTest() throws Exception {
+		// The source has nothing for a while, then carries on.
+		InputStream pausing = new FilterInputStream(new ByteArrayInputStream(encoded)) {
+			private int count = 0;
+
+			private int empty = 0;
+
+			@Override
+			public int read(byte[] data, int off, int len) throws IOException {
+				if (count > 5000 && empty < 20) {
+					empty++;
+					return 0;
+				}
+				int length = super.read(data, off, len);
+				count += Math.max(length, 0);
+				return length;
+			}
+		};
+		check(new PicoInputStream(pausing, 2, 4096));
+	}
+
+	@Test
+	public void stalledTest() throws Exception {
+		// The source never has anything more. The background thread must not
+		// spin, and closing must not wait for it forever.
+		final AtomicInteger calls = new AtomicInteger();
+		InputStream stalled = new FilterInputStream(new ByteArrayInputStream(encoded)) {
+			private int count = 0;
+
+			@Override
+			public int read(byte[] data, int off, int len) throws IOException {
+				if (count > 200) {
+					calls.incrementAndGet();
+					return 0;
+				}
+				int length = super.read(data, off, len);
+				count += Math.max(length, 0);
+				return length;
+			}
+		};
+		PicoInputStream pis = new PicoInputStream(stalled, 2, 4096);
+		assertEquals("Incorrect first byte:", testdata[0] & 0xff, pis.read());
+		Thread.sleep(500L);
+		assertTrue("The background thread spun: " + calls.get(), calls.get() < 100);
+		long start = System.nanoTime();
+		pis.close();
+		assertTrue("Close took too long.", System.nanoTime() - start < 10000000000L);
+		Thread.sleep(200L);
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			assertFalse("Read-ahead thread still running.",
+					"pico-read-ahead".equals(thread.getName()) && thread.isAlive());
+		} // Look for the background thread.
+	}
+
+	/**
+	 * Read the stream back with a mix of single byte, bulk, and skip calls.
+	 */
+	private static void check(PicoInputStream pis) throws IOException {
+		int index = 0;
+		byte[] data = new byte[5000];
+		while (index < testdata.length) {
+			int value = pis.read();
+			assertEquals("Incorrect byte on read at index " + index + ":",
+					testdata[index] & 0xff, value);
+			index++;
+			int length = pis.read(data, 0, (index % 4999) + 1);
+			if (length < 0) {
+				break;
+			}
+			for (int here = 0; here < length; here++) {
+				assertEquals("Incorrect byte on read at index " + (index + here) + ":",
+						testdata[index + here], data[here]);
+			} // Check the block.
+			index += length;
+			index += (int) pis.skip(index % 3);
+		}
+		assertEquals("Not all data was read back:", testdata.length, index);
+		assertEquals("Read past the end:", -1, pis.read());
+		assertEquals("Read past the end:", -1, pis.read(data, 0, 10));
+		pis.close();
+	}
+}
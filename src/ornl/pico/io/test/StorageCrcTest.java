@@ -0,0 +1,147 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+
+/**
+ * Write Pico files that keep CRCs of the stored data, change them, and check
+ * that the CRCs track the data and find damage.
+ * 
+ * @author jcarter
+ */
+public class StorageCrcTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x62, (byte) 0x0b, (byte) 0xd4, (byte) 0x19 };
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@After
+	public void teardown() {
+		tmpfile.delete();
+	}
+
+	@Test
+	public void updateTest() throws Exception {
+		Random rand = new Random(59L);
+		byte[] expected = new byte[50000];
+		rand.nextBytes(expected);
+
+		// Only eight CRCs fit, so the blocks grow as the data does.
+		PicoFile pf = PicoFile.createChecked(tmpfile, key, 1000, 8);
+		pf.write(ByteBuffer.wrap(expected));
+		pf.close();
+		check(expected);
+		long length = tmpfile.length() - expected.length;
+
+		for (int trial = 0; trial < 20; trial++) {
+			pf = PicoFile.open(tmpfile, "rw");
+			if (trial % 5 == 4) {
+				int size = rand.nextInt(expected.length);
+				pf.truncate(size);
+				expected = Arrays.copyOf(expected, size);
+			} else {
+				byte[] patch = new byte[1 + rand.nextInt(30000)];
+				rand.nextBytes(patch);
+				int start = rand.nextInt(expected.length + 1);
+				pf.write(ByteBuffer.wrap(patch), start);
+				if (start + patch.length > expected.length) {
+					expected = Arrays.copyOf(expected, start + patch.length);
+				}
+				System.arraycopy(patch, 0, expected, start, patch.length);
+			}
+			pf.close();
+			check(expected);
+			assertEquals("The header changed length:", length,
+					tmpfile.length() - expected.length);
+		} // Make random changes.
+	}
+
+	@Test
+	public void damageTest() throws Exception {
+		byte[] expected = new byte[100000];
+		new Random(61L).nextBytes(expected);
+		PicoFile pf = PicoFile.createChecked(tmpfile, key, 4096, 64);
+		pf.write(ByteBuffer.wrap(expected));
+		pf.close();
+
+		// Flip a bit in the stored data.
+		RandomAccessFile raf = new RandomAccessFile(tmpfile, "rw");
+		raf.seek(raf.length() - 30000);
+		int datum = raf.read();
+		raf.seek(raf.length() - 30000);
+		raf.write(datum ^ 0x04);
+		raf.close();
+
+		pf = PicoFile.open(tmpfile, "r");
+		assertFalse("The damage was not detected.", pf.verifyStorage());
+		pf.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void absentTest() throws Exception {
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.write(ByteBuffer.wrap(new byte[100]));
+		pf.close();
+		pf = PicoFile.open(tmpfile, "r");
+		try {
+			pf.verifyStorage();
+		} finally {
+			pf.close();
+		}
+	}
+
+	/**
+	 * Check that the file holds the expected data and that the stored data
+	 * matches the CRCs.
+	 */
+	void check(byte[] expected) throws Exception {
+		PicoFile pf = PicoFile.open(tmpfile, "r");
+		assertTrue("The stored data does not match.", pf.verifyStorage());
+		pf.close();
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		byte[] actual = new byte[expected.length];
+		int total = 0;
+		int length;
+		while (total < actual.length
+				&& (length = pis.read(actual, total, actual.length - total)) >= 0) {
+			total += length;
+		}
+		assertEquals("Data after the end:", -1, pis.read());
+		pis.close();
+		assertArrayEquals("Incorrect data read back:", expected, actual);
+	}
+}
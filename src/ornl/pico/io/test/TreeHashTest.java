@@ -0,0 +1,167 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Write Pico files that keep a chunked tree hash, change them, and check
+ * that the tree hash tracks the data.
+ * 
+ * @author jcarter
+ */
+public class TreeHashTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { (byte) 0x3d, (byte) 0x71, (byte) 0x0e };
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@Test
+	public void updateTest() throws Exception {
+		Random rand = new Random(43L);
+		byte[] expected = new byte[50000];
+		rand.nextBytes(expected);
+
+		// Only four hashes fit, so the groups grow as the data does.
+		PicoFile pf = PicoFile.createTree(tmpfile, key, 1000, 4, true);
+		pf.write(ByteBuffer.wrap(expected));
+		pf.close();
+		byte[] root = check(expected, true);
+
+		for (int trial = 0; trial < 20; trial++) {
+			pf = PicoFile.open(tmpfile, "rw");
+			if (trial % 5 == 4) {
+				int size = rand.nextInt(expected.length);
+				pf.truncate(size);
+				expected = Arrays.copyOf(expected, size);
+			} else {
+				byte[] patch = new byte[1 + rand.nextInt(3000)];
+				rand.nextBytes(patch);
+				int start = rand.nextInt(expected.length + 1);
+				pf.write(ByteBuffer.wrap(patch), start);
+				if (start + patch.length > expected.length) {
+					expected = Arrays.copyOf(expected, start + patch.length);
+				}
+				System.arraycopy(patch, 0, expected, start, patch.length);
+			}
+			pf.close();
+			byte[] next = check(expected, true);
+			assertFalse("The root did not change.", Arrays.equals(root, next));
+			root = next;
+		} // Make random changes.
+
+		// A fresh tree over the same data has the same root.
+		byte[] copy = expected.clone();
+		PicoFile fresh = PicoFile.createTree(tmpfile, key, 1000, 4, true);
+		fresh.write(ByteBuffer.wrap(copy));
+		fresh.close();
+		assertArrayEquals("Incorrect root:", root, check(expected, true));
+	}
+
+	@Test
+	public void noLegacyTest() throws Exception {
+		byte[] expected = new byte[12345];
+		new Random(47L).nextBytes(expected);
+		PicoFile pf = PicoFile.createTree(tmpfile, key, 512, 64, false);
+		pf.write(ByteBuffer.wrap(expected));
+		pf.close();
+		check(expected, false);
+	}
+
+	@Test
+	public void damageTest() throws Exception {
+		byte[] expected = new byte[10000];
+		new Random(53L).nextBytes(expected);
+		PicoFile pf = PicoFile.createTree(tmpfile, key, 1000, 16, false);
+		pf.write(ByteBuffer.wrap(expected));
+		pf.close();
+
+		// Flip a bit in the stored data.
+		RandomAccessFile raf = new RandomAccessFile(tmpfile, "rw");
+		raf.seek(raf.length() - 5000);
+		int datum = raf.read();
+		raf.seek(raf.length() - 5000);
+		raf.write(datum ^ 0x10);
+		raf.close();
+
+		pf = PicoFile.open(tmpfile, "r");
+		assertFalse("The damage was not detected.", pf.verifyTree());
+		pf.close();
+	}
+
+	/**
+	 * Check that the file holds the expected data, that the tree hash
+	 * verifies, and that the legacy hash is right (or absent).  Return the
+	 * root.
+	 */
+	private byte[] check(byte[] expected, boolean legacy) throws Exception {
+		PicoFile pf = PicoFile.open(tmpfile, "r");
+		assertEquals("Incorrect size:", expected.length, pf.size());
+		assertTrue("The tree hash does not verify.", pf.verifyTree());
+		byte[] root = pf.getTreeRoot();
+		assertNotNull("No tree root.", root);
+		if (legacy) {
+			assertArrayEquals("Incorrect hash:",
+					MessageDigest.getInstance(PicoStructure.HASH).digest(expected),
+					pf.getHeader().hash);
+		} else {
+			assertNull("A hash was reported.", pf.getHeader().hash);
+		}
+		pf.close();
+
+		// Streams skip the metadata.
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		byte[] data = new byte[expected.length];
+		int index = 0;
+		int length;
+		while (index < data.length && (length = pis.read(data, index, data.length - index)) > 0) {
+			index += length;
+		}
+		assertEquals("Read past the end:", -1, pis.read());
+		pis.close();
+		assertArrayEquals("Incorrect data read back:", expected, data);
+		return root;
+	}
+
+	@After
+	public void shutdown() throws Exception {
+		tmpfile.delete();
+	}
+}
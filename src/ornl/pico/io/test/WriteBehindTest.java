@@ -0,0 +1,168 @@
+/*------------------------------------------------------------------------------
+ *        _        
+ *   _ __(_)__ ___ 
+ *  | '_ \ / _/ _ \
+ *  | .__/_\__\___/
+ *  |_|            Pico
+ * 
+ * Copyright (c) 2012 by UT-Battelle, LLC.
+ * All rights reserved.
+ *----------------------------------------------------------------------------*/
+
+package ornl.pico.io.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import ornl.pico.io.PicoFile;
+import ornl.pico.io.PicoInputStream;
+import ornl.pico.io.PicoStructure;
+
+/**
+ * Write a Pico file in single bytes and small pieces, mixed with seeks,
+ * reads and positional writes, and check the data and hash.
+ * 
+ * @author jcarter
+ */
+public class WriteBehindTest {
+
+	/** The key to use to encode the data. */
+	static byte[] key = { 0x4d, 0x31, (byte) 0xe2, 0x07 };
+
+	private File tmpfile;
+
+	@Before
+	public void setup() throws Exception {
+		tmpfile = File.createTempFile("test", "pico");
+		tmpfile.deleteOnExit();
+	}
+
+	@After
+	public void teardown() {
+		tmpfile.delete();
+	}
+
+	@Test
+	public void sequentialTest() throws Exception {
+		byte[] data = new byte[200003];
+		new Random(23L).nextBytes(data);
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		int index = 0;
+		while (index < data.length) {
+			if (index % 3 == 0) {
+				pf.write(data[index++]);
+			} else {
+				int length = Math.min(data.length - index, 1 + index % 37);
+				pf.write(ByteBuffer.wrap(data, index, length));
+				index += length;
+			}
+			assertEquals("Incorrect size:", index, pf.size());
+		} // Write the data in small pieces.
+		pf.close();
+		check(data);
+	}
+
+	@Test
+	public void mixedTest() throws Exception {
+		byte[] data = new byte[100000];
+		Random rand = new Random(29L);
+		rand.nextBytes(data);
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.write(ByteBuffer.wrap(data));
+		for (int trial = 0; trial < 500; trial++) {
+			int start = rand.nextInt(data.length - 200);
+			int length = 1 + rand.nextInt(100);
+			switch (trial % 4) {
+			case 0:
+				// Seek and write single bytes.
+				pf.position(start);
+				for (int here = 0; here < length; here++) {
+					data[start + here] = (byte) rand.nextInt();
+					pf.write(data[start + here]);
+				}
+				break;
+			case 1:
+				// Read a range that may hold pending bytes.
+				ByteBuffer bb = ByteBuffer.allocate(length);
+				assertEquals("Incorrect length:", length, pf.read(bb, start));
+				for (int here = 0; here < length; here++) {
+					assertEquals("Incorrect byte at index " + (start + here) + ":",
+							data[start + here], bb.get(here));
+				}
+				break;
+			case 2:
+				// Write a range that may hold pending bytes.
+				byte[] change = new byte[length];
+				rand.nextBytes(change);
+				System.arraycopy(change, 0, data, start, length);
+				pf.write(ByteBuffer.wrap(change), start);
+				break;
+			default:
+				// Carry on writing at the current position.
+				long here = pf.position();
+				if (here + length <= data.length) {
+					byte[] more = new byte[length];
+					rand.nextBytes(more);
+					System.arraycopy(more, 0, data, (int) here, length);
+					pf.write(ByteBuffer.wrap(more));
+				}
+				break;
+			}
+		} // Mix writes and reads.
+		pf.close();
+		check(data);
+	}
+
+	@Test
+	public void hashTest() throws Exception {
+		byte[] data = new byte[5000];
+		new Random(31L).nextBytes(data);
+		PicoFile pf = PicoFile.create(tmpfile, key);
+		pf.write(ByteBuffer.wrap(data));
+		pf.finish();
+		MessageDigest md = MessageDigest.getInstance(PicoStructure.HASH);
+		assertArrayEquals("Incorrect hash:", md.digest(data), pf.getHeader().hash);
+
+		// A byte still pending makes the hash out of date.
+		pf.write('X');
+		assertNull("The hash is out of date:", pf.getHeader().hash);
+		pf.finish();
+		byte[] more = new byte[data.length + 1];
+		System.arraycopy(data, 0, more, 0, data.length);
+		more[data.length] = 'X';
+		assertArrayEquals("Incorrect hash:", md.digest(more), pf.getHeader().hash);
+		pf.close();
+		check(more);
+	}
+
+	/**
+	 * Decode the file and check both the data and the hash.
+	 */
+	void check(byte[] expected) throws Exception {
+		PicoInputStream pis = new PicoInputStream(new FileInputStream(tmpfile));
+		byte[] actual = new byte[expected.length];
+		int total = 0;
+		int length;
+		while (total < actual.length
+				&& (length = pis.read(actual, total, actual.length - total)) >= 0) {
+			total += length;
+		}
+		assertEquals("Data after the end:", -1, pis.read());
+		pis.close();
+		assertArrayEquals("Incorrect data read back:", expected, actual);
+		assertArrayEquals("Incorrect hash:",
+				MessageDigest.getInstance(PicoStructure.HASH).digest(expected),
+				pis.getHeader().hash);
+	}
+}
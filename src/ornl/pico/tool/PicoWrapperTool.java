@@ -20,6 +20,8 @@ import org.apache.commons.io.filefilter.NotFileFilter;
 import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import ornl.pico.PicoException;
+import ornl.pico.catalog.CatalogIndex;
+import ornl.pico.catalog.PicoCatalog;
 import ornl.pico.io.PicoFile;
 import ornl.pico.io.PicoInputStream;
 import ornl.pico.io.PicoOutputStream;
@@ -39,7 +41,7 @@ public class PicoWrapperTool {
     // /////////////////////////////////////////////////////////////////////////////
 
     /** Size in bytes of the buffer. */
-    private static int buffer_size = 10 * 2 ^ 10;
+    private static int buffer_size = 64 * 1024;
 
     /** File to file transfer buffer; instances can reuse this. */
     private static byte[] buffer = new byte[buffer_size];
@@ -51,6 +53,8 @@ public class PicoWrapperTool {
     public static void usage() {
         System.err
                 .println("Usage: java -jar PicoWrapperTool.jar [-catalog|-unwrap|-wrap] <infile> <outfile> [keystring] [password]");
+        System.err
+                .println("       java -jar PicoWrapperTool.jar -catalog <root directory> <index file>");
         System.exit(1);
     }
 
@@ -106,7 +110,9 @@ public class PicoWrapperTool {
 
         try {
 
-            PicoOutputStream pos = new PicoOutputStream(key, new FileOutputStream(wrappedfile));
+            // Write straight to the file, filling in the hash at the end.
+            PicoOutputStream pos = new PicoOutputStream(key,
+                    new FileOutputStream(wrappedfile).getChannel());
             FileInputStream fis = new FileInputStream(unwrappedfile);
             result = transfer(fis, pos);
 
@@ -177,12 +183,48 @@ public class PicoWrapperTool {
         return result;
     }
 
+    /**
+     * Bring a catalog index up to date with a directory structure, and report
+     * what it holds.
+     * 
+     * @param root The root of the directory structure.
+     * @param index The catalog index file.
+     * @return true on success; false on failure.
+     */
+    public static boolean catalog(File root, File index) {
+
+        boolean result = false;
+
+        try {
+
+            PicoCatalog catalog = new PicoCatalog(index.toPath());
+            PicoCatalog.Counts counts = catalog.update(root.toPath());
+            CatalogIndex ci = catalog.open();
+            try {
+                System.out.printf("%s: %s.\n", index.getPath(), counts);
+                System.out.printf("%d files catalogued, %d bytes of data under %s, "
+                        + "%d groups of duplicates.\n", ci.size(),
+                        ci.totalDataLength(root.getCanonicalPath()), root.getPath(),
+                        ci.findDuplicates().size());
+            } finally {
+                ci.close();
+            }
+            result = true;
+
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+        return result;
+    }
+
     /**
      * Search through the specified directory structure and either Pico wrap the
      * files or unwrap the Pico files.
      * 
      * $ tool -unwrap|-wrap <root directory> <extension for unwrapped files|key
      * for wrapped files> <buffersize>
+     * <p>
+     * $ tool -catalog <root directory> <index file>
      * 
      * @param args
      * @throws IOException
@@ -217,6 +259,13 @@ public class PicoWrapperTool {
             setBufferSize(Integer.parseInt(args[3]));
         }
 
+        // Cataloguing walks the tree itself, and only reads the headers of
+        // files that have changed.
+        if ("-catalog".equalsIgnoreCase(command)) {
+            rcode = catalog(file_source, new File(ext_or_key)) ? 0 : 1;
+            System.exit(rcode);
+        }
+
         // Assume we are unwrapping and will look for Pico files.
         IOFileFilter ff = new MagicNumberFileFilter(PicoStructure.MAGIC);
 